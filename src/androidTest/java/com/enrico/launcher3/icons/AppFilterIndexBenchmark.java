@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.enrico.launcher3.icons;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.res.Resources;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.util.Xml;
+
+import com.enrico.launcher3.R;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.File;
+import java.io.StringReader;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the first parse of a synthetic appfilter of 10k entries against the reload of its
+ * compiled index. The drawables of the appfilter are the drawables of the launcher, so that the
+ * resource lookups are real. Results are logged with the tag {@link #TAG}.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class AppFilterIndexBenchmark {
+
+    private static final String TAG = "AppFilterIndexBench";
+
+    private static final int ENTRY_COUNT = 10000;
+    private static final int ROUNDS = 5;
+
+    private Context mContext;
+    private Resources mRes;
+    private String mPackageName;
+    private PackageInfo mInfo;
+    private File mFile;
+    private String mAppFilter;
+    private ArrayList<String> mDrawableNames;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mRes = mContext.getResources();
+        mPackageName = mContext.getPackageName();
+        mInfo = mContext.getPackageManager().getPackageInfo(mPackageName, 0);
+        mFile = new File(mContext.getCacheDir(), "appfilter_index_benchmark");
+
+        mDrawableNames = new ArrayList<>();
+        for (Field field : R.drawable.class.getFields()) {
+            mDrawableNames.add(field.getName());
+        }
+        assertTrue(!mDrawableNames.isEmpty());
+
+        StringBuilder xml = new StringBuilder("<resources>\n")
+                .append("<iconback img1=\"").append(mDrawableNames.get(0)).append("\" />\n")
+                .append("<iconmask img1=\"").append(mDrawableNames.get(0)).append("\" />\n")
+                .append("<scale factor=\"0.8\" />\n");
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            xml.append("<item component=\"ComponentInfo{com.example.app").append(i)
+                    .append("/com.example.app").append(i).append(".MainActivity}\" drawable=\"")
+                    .append(mDrawableNames.get(i % mDrawableNames.size())).append("\" />\n");
+        }
+        mAppFilter = xml.append("</resources>\n").toString();
+    }
+
+    @Test
+    public void testCompileAndReload() throws Exception {
+        long compileNanos = 0;
+        long writeNanos = 0;
+        long readNanos = 0;
+        AppFilterIndex compiled = null;
+        AppFilterIndex read = null;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            compiled = AppFilterIndex.compile(newParser(mAppFilter), mRes, mPackageName);
+            long compiledTime = System.nanoTime();
+            AppFilterIndex.write(mFile, mInfo, compiled);
+            long writtenTime = System.nanoTime();
+            read = AppFilterIndex.read(mFile, mInfo);
+            long readTime = System.nanoTime();
+
+            compileNanos += compiledTime - start;
+            writeNanos += writtenTime - compiledTime;
+            readNanos += readTime - writtenTime;
+        }
+        mFile.delete();
+
+        assertNotNull(compiled);
+        assertNotNull(read);
+        assertEquals(compiled.getDrawableNames(), read.getDrawableNames());
+        for (int i = 0; i < ENTRY_COUNT; i += 97) {
+            String component = "ComponentInfo{com.example.app" + i + "/com.example.app" + i
+                    + ".MainActivity}";
+            assertEquals(compiled.getDrawableId(component), read.getDrawableId(component));
+        }
+        Log.d(TAG, "entries=" + ENTRY_COUNT + " file=" + mAppFilter.length() / 1024 + "Kb"
+                + " compileMs=" + (compileNanos / ROUNDS / 1000000)
+                + " writeMs=" + (writeNanos / ROUNDS / 1000000)
+                + " readMs=" + (readNanos / ROUNDS / 1000000));
+    }
+
+    @Test
+    public void testBrokenAppFilterIsNotIndexed() throws Exception {
+        // Cut in the middle of an entry.
+        String broken = mAppFilter.substring(0, mAppFilter.length() / 2);
+        assertNull(AppFilterIndex.compile(newParser(broken), mRes, mPackageName));
+    }
+
+    private static XmlPullParser newParser(String xml) throws Exception {
+        XmlPullParser parser = Xml.newPullParser();
+        parser.setInput(new StringReader(xml));
+        return parser;
+    }
+}
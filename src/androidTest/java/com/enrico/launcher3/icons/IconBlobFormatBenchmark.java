@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.enrico.launcher3.icons;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Compares the encode time, decode time and blob size of the {@link IconBlobFormat}s on the
+ * icons of the launchable apps installed on the device, rendered at the icon cache size.
+ * Results are logged with the tag {@link #TAG}.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class IconBlobFormatBenchmark {
+
+    private static final String TAG = "IconBlobFormatBench";
+
+    private static final int ICON_SIZE = 192;
+    private static final int MAX_ICONS = 200;
+    private static final int WARMUP_ROUNDS = 2;
+    private static final int ROUNDS = 5;
+
+    private final ArrayList<Bitmap> mIcons = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        PackageManager pm = context.getPackageManager();
+        Intent intent = new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_LAUNCHER);
+        List<ResolveInfo> activities = pm.queryIntentActivities(intent, 0);
+        for (ResolveInfo info : activities) {
+            if (mIcons.size() >= MAX_ICONS) {
+                break;
+            }
+            Drawable d = info.loadIcon(pm);
+            Bitmap icon = Bitmap.createBitmap(ICON_SIZE, ICON_SIZE, Bitmap.Config.ARGB_8888);
+            Canvas canvas = new Canvas(icon);
+            d.setBounds(0, 0, ICON_SIZE, ICON_SIZE);
+            d.draw(canvas);
+            mIcons.add(icon);
+        }
+        assertFalse("No launchable apps", mIcons.isEmpty());
+    }
+
+    @Test
+    public void testFormats() {
+        measure("png", IconBlobFormat.PNG);
+        measure("raw_deflate", IconBlobFormat.RAW_DEFLATE);
+        measure("raw", IconBlobFormat.RAW);
+    }
+
+    private void measure(String name, IconBlobFormat format) {
+        int count = mIcons.size();
+        byte[][] blobs = new byte[count][];
+        BitmapFactory.Options options = new BitmapFactory.Options();
+
+        long encodeNanos = 0;
+        long decodeNanos = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                blobs[i] = format.onEncode(mIcons.get(i));
+            }
+            long encoded = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                Bitmap decoded = format.onDecode(blobs[i], options);
+                assertNotNull(decoded);
+                assertEquals(ICON_SIZE, decoded.getWidth());
+            }
+            long decoded = System.nanoTime();
+            if (round >= WARMUP_ROUNDS) {
+                encodeNanos += encoded - start;
+                decodeNanos += decoded - encoded;
+            }
+        }
+
+        long blobBytes = 0;
+        for (byte[] blob : blobs) {
+            blobBytes += blob.length;
+        }
+        long samples = (long) count * ROUNDS;
+        Log.d(TAG, "format=" + name + " icons=" + count
+                + " avgBlobBytes=" + (blobBytes / count)
+                + " totalKb=" + (blobBytes / 1024)
+                + " avgEncodeUs=" + (encodeNanos / samples / 1000)
+                + " avgDecodeUs=" + (decodeNanos / samples / 1000));
+    }
+}
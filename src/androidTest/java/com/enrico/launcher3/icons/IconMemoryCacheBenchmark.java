@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.enrico.launcher3.icons;
+
+import android.content.ComponentName;
+import android.graphics.Bitmap;
+import android.os.Process;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.enrico.launcher3.icons.IconCache.CacheEntry;
+import com.enrico.launcher3.util.ComponentKey;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures the throughput of {@link IconMemoryCache#get} with 1, 2 and 4 reader threads, while
+ * a writer keeps the cache over its budget so that it trims concurrently.
+ * Results are logged with the tag {@link #TAG}.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class IconMemoryCacheBenchmark {
+
+    private static final String TAG = "IconMemoryCacheBench";
+
+    private static final int ICON_SIZE = 192;
+    private static final int ENTRY_COUNT = 256;
+    // Budget for half of the full-res entries, so that the writer triggers trims.
+    private static final long MAX_BYTES = (long) ICON_SIZE * ICON_SIZE * 4 * ENTRY_COUNT / 2;
+    private static final int READS_PER_THREAD = 500000;
+
+    private ComponentKey[] mKeys;
+    private Bitmap mFullRes;
+    private Bitmap mLowRes;
+    private IconMemoryCache mCache;
+
+    @Before
+    public void setUp() {
+        mFullRes = Bitmap.createBitmap(ICON_SIZE, ICON_SIZE, Bitmap.Config.ARGB_8888);
+        mLowRes = Bitmap.createBitmap(ICON_SIZE / 5, ICON_SIZE / 5, Bitmap.Config.RGB_565);
+        mKeys = new ComponentKey[ENTRY_COUNT];
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            mKeys[i] = new ComponentKey(
+                    new ComponentName("com.example.app" + i, "Activity"), Process.myUserHandle());
+        }
+        mCache = new IconMemoryCache(MAX_BYTES, ENTRY_COUNT, new IconMemoryCache.Demoter() {
+            @Override
+            public CacheEntry demote(ComponentKey key, CacheEntry entry) {
+                CacheEntry lowRes = new CacheEntry();
+                lowRes.icon = mLowRes;
+                lowRes.isLowResIcon = true;
+                return lowRes;
+            }
+        });
+        for (ComponentKey key : mKeys) {
+            mCache.put(key, newFullResEntry());
+        }
+    }
+
+    @Test
+    public void testReaders() throws Exception {
+        for (int readers : new int[] {1, 2, 4}) {
+            long elapsed = runReaders(readers);
+            long reads = (long) readers * READS_PER_THREAD;
+            Log.d(TAG, "readers=" + readers + " reads=" + reads
+                    + " ns/read=" + (elapsed / reads)
+                    + " reads/ms=" + (reads * 1000000 / Math.max(1, elapsed)));
+        }
+    }
+
+    private long runReaders(int readerCount) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(readerCount);
+        final int[] misses = new int[readerCount];
+        for (int t = 0; t < readerCount; t++) {
+            final int thread = t;
+            new Thread() {
+                @Override
+                public void run() {
+                    awaitQuietly(start);
+                    int miss = 0;
+                    for (int i = 0; i < READS_PER_THREAD; i++) {
+                        if (mCache.get(mKeys[(i * 31 + thread) % ENTRY_COUNT]) == null) {
+                            miss++;
+                        }
+                    }
+                    misses[thread] = miss;
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        // Keeps re-adding full-res entries, so that the readers race with the trims.
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                awaitQuietly(start);
+                for (int i = 0; done.getCount() > 0; i++) {
+                    mCache.put(mKeys[i % ENTRY_COUNT], newFullResEntry());
+                }
+            }
+        };
+        writer.start();
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - startTime;
+        writer.join();
+
+        int totalMisses = 0;
+        for (int miss : misses) {
+            totalMisses += miss;
+        }
+        Log.d(TAG, "readers=" + readerCount + " misses=" + totalMisses);
+        return elapsed;
+    }
+
+    @Test
+    public void testDemotesBeforeEvicting() {
+        // Demoting every entry is enough to fit in the budget, so nothing should be dropped.
+        int present = 0;
+        for (ComponentKey key : mKeys) {
+            if (mCache.get(key) != null) {
+                present++;
+            }
+        }
+        assertEquals(ENTRY_COUNT, present);
+    }
+
+    private CacheEntry newFullResEntry() {
+        CacheEntry entry = new CacheEntry();
+        entry.icon = mFullRes;
+        return entry;
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
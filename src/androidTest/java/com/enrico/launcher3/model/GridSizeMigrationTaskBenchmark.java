@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.enrico.launcher3.model;
+
+import android.content.Context;
+import android.graphics.Point;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.enrico.launcher3.LauncherSettings.Favorites;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures the migration of fully occupied screens to a grid with one row and one column less,
+ * for 5x5 to 4x4 and 6x6 to 5x5, with a mix of widgets, folders and apps. The items are provided
+ * directly to {@link GridSizeMigrationTask#migrateScreen(long)}, so only the placement search is
+ * measured. Results are logged with the tag {@link #TAG}.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class GridSizeMigrationTaskBenchmark {
+
+    private static final String TAG = "GridMigrationBench";
+
+    private static final int ROUNDS = 5;
+
+    @Test
+    public void testDense5x5To4x4() {
+        measure(5, 4, new int[][] {
+                // x, y, spanX, spanY
+                {0, 0, 2, 2},
+                {2, 0, 3, 1},
+        });
+    }
+
+    @Test
+    public void testDense6x6To5x5() {
+        measure(6, 5, new int[][] {
+                {0, 0, 2, 2},
+                {2, 0, 4, 1},
+                {3, 2, 2, 2},
+                {0, 4, 3, 1},
+        });
+    }
+
+    /**
+     * Migrates a {@param src} square screen filled with the provided widgets, the other cells
+     * alternating apps and folders, to a {@param trg} square grid.
+     */
+    private void measure(int src, int trg, int[][] widgets) {
+        ArrayList<GridSizeMigrationTask.DbEntry> items = createScreen(src, widgets);
+        Context context = InstrumentationRegistry.getTargetContext();
+
+        long totalNanos = 0;
+        long maxNanos = 0;
+        int placed = 0;
+        int carriedOver = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            TestMigrationTask task = new TestMigrationTask(context, items,
+                    new Point(src, src), new Point(trg, trg));
+            long start = System.nanoTime();
+            task.migrateScreen(0);
+            long elapsed = System.nanoTime() - start;
+            totalNanos += elapsed;
+            maxNanos = Math.max(maxNanos, elapsed);
+            placed = items.size() - task.mCarryOver.size();
+            carriedOver = task.mCarryOver.size();
+        }
+        // A dense screen can not fit on the smaller grid, the rest is carried over.
+        assertEquals(items.size(), placed + carriedOver);
+        Log.d(TAG, src + "x" + src + "->" + trg + "x" + trg + " items=" + items.size()
+                + " placed=" + placed + " carriedOver=" + carriedOver
+                + " avgMs=" + (totalNanos / ROUNDS / 1000000)
+                + " maxMs=" + (maxNanos / 1000000));
+    }
+
+    private static ArrayList<GridSizeMigrationTask.DbEntry> createScreen(int size, int[][] widgets) {
+        ArrayList<GridSizeMigrationTask.DbEntry> items = new ArrayList<>();
+        boolean[][] occupied = new boolean[size][size];
+        long id = 1;
+        for (int[] w : widgets) {
+            GridSizeMigrationTask.DbEntry entry = new GridSizeMigrationTask.DbEntry();
+            entry.id = id++;
+            entry.itemType = Favorites.ITEM_TYPE_APPWIDGET;
+            entry.cellX = w[0];
+            entry.cellY = w[1];
+            entry.spanX = w[2];
+            entry.spanY = w[3];
+            entry.minSpanX = 1;
+            entry.minSpanY = 1;
+            // Same weight as the loader gives to widgets.
+            entry.weight = Math.max(2, 0.6f * w[2] * w[3]);
+            items.add(entry);
+            for (int x = w[0]; x < w[0] + w[2]; x++) {
+                for (int y = w[1]; y < w[1] + w[3]; y++) {
+                    occupied[x][y] = true;
+                }
+            }
+        }
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                if (occupied[x][y]) {
+                    continue;
+                }
+                GridSizeMigrationTask.DbEntry entry = new GridSizeMigrationTask.DbEntry();
+                entry.id = id++;
+                boolean folder = (x + y) % 3 == 0;
+                entry.itemType = folder ? Favorites.ITEM_TYPE_FOLDER
+                        : Favorites.ITEM_TYPE_APPLICATION;
+                entry.cellX = x;
+                entry.cellY = y;
+                entry.weight = folder ? 2.5f : 0.8f;
+                items.add(entry);
+            }
+        }
+        for (GridSizeMigrationTask.DbEntry entry : items) {
+            entry.container = Favorites.CONTAINER_DESKTOP;
+            entry.screenId = 0;
+        }
+        return items;
+    }
+
+    /**
+     * Migration task reading the items of the screen from memory and dropping the DB updates.
+     */
+    private static class TestMigrationTask extends GridSizeMigrationTask {
+
+        private final ArrayList<DbEntry> mItems;
+
+        TestMigrationTask(Context context, ArrayList<DbEntry> items, Point src, Point trg) {
+            super(context, null, new HashSet<String>(), src, trg);
+            mItems = items;
+        }
+
+        @Override
+        protected ArrayList<DbEntry> loadWorkspaceEntries(long screen) {
+            ArrayList<DbEntry> copy = new ArrayList<>(mItems.size());
+            for (DbEntry entry : mItems) {
+                copy.add(entry.copy());
+            }
+            return copy;
+        }
+
+        @Override
+        protected void update(DbEntry item) { }
+    }
+}
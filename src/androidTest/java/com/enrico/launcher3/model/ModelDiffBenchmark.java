@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.enrico.launcher3.model;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Process;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.enrico.launcher3.LauncherSettings.Favorites;
+import com.enrico.launcher3.ShortcutInfo;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Replays the rebind of a workspace of 500 shortcuts, where the bound items and the loaded items
+ * have equal icons decoded into different bitmaps, as with icons read from the model snapshot
+ * and then from the DB. Results are logged with the tag {@link #TAG}.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class ModelDiffBenchmark {
+
+    private static final String TAG = "ModelDiffBench";
+
+    private static final int ITEM_COUNT = 500;
+    private static final int ITEMS_PER_SCREEN = 25;
+    private static final int ICON_SIZE = 192;
+    private static final int ROUNDS = 10;
+
+    @Test
+    public void testReplayUnchanged() {
+        replay(0);
+    }
+
+    @Test
+    public void testReplayChangedIcons() {
+        replay(ITEM_COUNT / 20);
+    }
+
+    private void replay(int changedIcons) {
+        long totalNanos = 0;
+        ModelDiff diff = null;
+        for (int round = 0; round < ROUNDS; round++) {
+            BgDataModel bound = createModel(0);
+            BgDataModel loaded = createModel(changedIcons);
+            long start = System.nanoTime();
+            diff = ModelDiff.compute(bound, loaded);
+            totalNanos += System.nanoTime() - start;
+        }
+        assertNotNull(diff);
+        assertEquals(0, diff.added.size());
+        assertEquals(0, diff.removed.size());
+        assertEquals(changedIcons, diff.updated.size());
+        Log.d(TAG, "items=" + ITEM_COUNT + " changedIcons=" + changedIcons
+                + " avgComputeUs=" + (totalNanos / ROUNDS / 1000));
+    }
+
+    /**
+     * Creates a workspace where every icon is a new bitmap, the first {@param changedIcons} ones
+     * with different pixels.
+     */
+    private static BgDataModel createModel(int changedIcons) {
+        BgDataModel model = new BgDataModel();
+        for (int screen = 0; screen < ITEM_COUNT / ITEMS_PER_SCREEN; screen++) {
+            model.workspaceScreens.add((long) screen);
+        }
+        for (int i = 0; i < ITEM_COUNT; i++) {
+            ShortcutInfo info = new ShortcutInfo();
+            info.id = i + 1;
+            info.itemType = Favorites.ITEM_TYPE_APPLICATION;
+            info.container = Favorites.CONTAINER_DESKTOP;
+            info.screenId = i / ITEMS_PER_SCREEN;
+            info.cellX = i % 5;
+            info.cellY = (i % ITEMS_PER_SCREEN) / 5;
+            info.user = Process.myUserHandle();
+            info.title = "App " + i;
+            info.contentDescription = info.title;
+            info.intent = new Intent(Intent.ACTION_MAIN)
+                    .addCategory(Intent.CATEGORY_LAUNCHER)
+                    .setComponent(new ComponentName("com.example.app" + i, "Main"));
+
+            Bitmap icon = Bitmap.createBitmap(ICON_SIZE, ICON_SIZE, Bitmap.Config.ARGB_8888);
+            icon.eraseColor(i < changedIcons ? Color.BLACK : Color.rgb(i % 256, 128, 64));
+            info.iconBitmap = icon;
+
+            model.itemsIdMap.put(info.id, info);
+            model.workspaceItems.add(info);
+        }
+        return model;
+    }
+}
@@ -559,7 +559,7 @@ public class BubbleTextView extends TextView implements ItemInfoUpdateReceiver {
                     preloadDrawable = (PreloadIconDrawable) mIcon;
                 } else {
                     preloadDrawable = DrawableFactory.get(getContext())
-                            .newPendingIcon(info.iconBitmap, getContext());
+                            .newPendingIcon(info, getContext());
                     setIcon(preloadDrawable);
                 }
 
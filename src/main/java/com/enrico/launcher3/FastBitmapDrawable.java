@@ -30,12 +30,15 @@ import android.graphics.PixelFormat;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffColorFilter;
 import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
 import android.util.Property;
 import android.util.SparseArray;
 
 import com.enrico.launcher3.graphics.IconPalette;
 import com.enrico.launcher3.icons.IconColorExtractor;
 
+import java.io.PrintWriter;
+
 public class FastBitmapDrawable extends Drawable {
 
     private static final int[] STATE_PRESSED = new int[] {android.R.attr.state_pressed};
@@ -59,6 +62,12 @@ public class FastBitmapDrawable extends Drawable {
     };
     static final int CLICK_FEEDBACK_DURATION = 2000;
 
+    // Number of palettes built from a stored color, and extracted from the bitmap instead, with
+    // the time spent extracting them. Only updated on the main thread.
+    private static int sStoredColorCount;
+    private static int sExtractedColorCount;
+    private static long sExtractionTimeMs;
+
     // Since we don't need 256^2 values for combinations of both the brightness and saturation, we
     // reduce the value space to a smaller value V, which reduces the number of cached
     // ColorMatrixColorFilters that we need to keep to V^2
@@ -78,6 +87,8 @@ public class FastBitmapDrawable extends Drawable {
     private boolean mIsDisabled;
 
     private IconPalette mIconPalette;
+    // The color computed with the icon, or 0 if it needs to be extracted from the bitmap.
+    private int mIconColor;
 
     private static final Property<FastBitmapDrawable, Float> BRIGHTNESS
             = new Property<FastBitmapDrawable, Float>(Float.TYPE, "brightness") {
@@ -126,13 +137,39 @@ public class FastBitmapDrawable extends Drawable {
         canvas.drawBitmap(mBitmap, null, getBounds(), mPaint);
     }
 
+    /**
+     * Sets the color of the icon, so that the palette does not need to be extracted from the
+     * bitmap.
+     */
+    public void setIconColor(int color) {
+        if (mIconColor != color) {
+            mIconColor = color;
+            mIconPalette = null;
+        }
+    }
+
     protected IconPalette getIconPalette() {
         if (mIconPalette == null) {
-            mIconPalette = IconPalette.fromDominantColor(IconColorExtractor.get(mContext, mBitmap), false /* desaturateBackground */);
+            int color = mIconColor;
+            if (color != 0) {
+                sStoredColorCount++;
+            } else {
+                long startTime = SystemClock.uptimeMillis();
+                color = IconColorExtractor.get(mContext, mBitmap);
+                sExtractionTimeMs += SystemClock.uptimeMillis() - startTime;
+                sExtractedColorCount++;
+            }
+            mIconPalette = IconPalette.fromDominantColor(color, false /* desaturateBackground */);
         }
         return mIconPalette;
     }
 
+    public static void dumpStats(String prefix, PrintWriter writer) {
+        writer.println(prefix + "Icon palettes: storedColor=" + sStoredColorCount
+                + " extracted=" + sExtractedColorCount
+                + " extractionTimeMs=" + sExtractionTimeMs);
+    }
+
     @Override
     public void setColorFilter(ColorFilter cf) {
         // No op
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.enrico.launcher3;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.enrico.launcher3.LauncherSettings.Favorites;
+
+import java.util.List;
+
+/**
+ * Direct access to the favorites table of the {@link LauncherProvider} of this process, used by
+ * the model instead of the content resolver. The calls skip the URI parsing of the provider and
+ * the statements of the frequent writes are compiled once.
+ *
+ * Like the writes through the provider, every write notifies the provider listeners. Other apps
+ * keep going through the provider.
+ */
+public class FavoritesDao {
+
+    // The columns written when an item is moved, see ModelWriter.moveItemInDatabase.
+    private static final String[] MOVE_COLUMNS = {
+            Favorites.CONTAINER, Favorites.CELLX, Favorites.CELLY, Favorites.RANK,
+            Favorites.SCREEN};
+
+    private final LauncherProvider mProvider;
+
+    // Compiled statements, for mStatementsDb.
+    private SQLiteDatabase mStatementsDb;
+    private SQLiteStatement mMoveStatement;
+    private SQLiteStatement mDeleteStatement;
+
+    FavoritesDao(LauncherProvider provider) {
+        mProvider = provider;
+    }
+
+    private SQLiteDatabase getDatabase() {
+        mProvider.createDbIfNotExists();
+        return mProvider.mOpenHelper.getWritableDatabase();
+    }
+
+    /**
+     * Returns a new id for an item, like {@link LauncherSettings.Settings#METHOD_NEW_ITEM_ID}.
+     */
+    public long generateNewItemId() {
+        mProvider.createDbIfNotExists();
+        return mProvider.mOpenHelper.generateNewItemId();
+    }
+
+    /**
+     * Returns the given columns of all the favorites.
+     */
+    public Cursor queryFavorites(String[] projection) {
+        return queryFavorites(projection, null, null);
+    }
+
+    /**
+     * Returns the given columns of the favorites matching the selection.
+     */
+    public Cursor queryFavorites(String[] projection, String selection, String[] selectionArgs) {
+        return getDatabase().query(
+                Favorites.TABLE_NAME, projection, selection, selectionArgs, null, null, null);
+    }
+
+    /**
+     * Returns the icon stored for an item, or null.
+     */
+    public byte[] loadIcon(long id) {
+        Cursor c = getDatabase().query(Favorites.TABLE_NAME, new String[] {Favorites.ICON},
+                Favorites._ID + "=" + id, null, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getBlob(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Inserts a new item, {@param values} must contain the id of the item.
+     */
+    public synchronized void insert(ContentValues values) {
+        SQLiteDatabase db = getDatabase();
+        LauncherProvider.addModifiedTime(values);
+        if (LauncherProvider.dbInsertAndCheck(
+                mProvider.mOpenHelper, db, Favorites.TABLE_NAME, null, values) >= 0) {
+            mProvider.notifyListeners();
+        }
+    }
+
+    /**
+     * Updates the items with the given ids in a single transaction.
+     */
+    public synchronized void update(long[] ids, List<ContentValues> values) {
+        SQLiteDatabase db = getDatabase();
+        compileStatements(db);
+        int count = 0;
+        db.beginTransaction();
+        try {
+            long modified = System.currentTimeMillis();
+            for (int i = 0; i < ids.length; i++) {
+                ContentValues itemValues = values.get(i);
+                if (isMove(itemValues)) {
+                    bindMove(itemValues, modified, ids[i]);
+                    count += mMoveStatement.executeUpdateDelete();
+                } else {
+                    itemValues.put(Favorites.MODIFIED, modified);
+                    count += db.update(Favorites.TABLE_NAME, itemValues,
+                            Favorites._ID + "=" + ids[i], null);
+                }
+            }
+            db.setTransactionSuccessful();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            db.endTransaction();
+        }
+        if (count > 0) {
+            mProvider.notifyListeners();
+        }
+    }
+
+    /**
+     * Deletes the items with the given ids in a single transaction.
+     */
+    public synchronized void delete(long[] ids) {
+        SQLiteDatabase db = getDatabase();
+        compileStatements(db);
+        int count = 0;
+        db.beginTransaction();
+        try {
+            for (long id : ids) {
+                mDeleteStatement.bindLong(1, id);
+                count += mDeleteStatement.executeUpdateDelete();
+            }
+            db.setTransactionSuccessful();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            db.endTransaction();
+        }
+        if (count > 0) {
+            mProvider.notifyListeners();
+        }
+    }
+
+    /**
+     * Deletes a folder and all its contents in a single transaction.
+     */
+    public synchronized void deleteFolderAndContents(long folderId) {
+        SQLiteDatabase db = getDatabase();
+        compileStatements(db);
+        int count = 0;
+        db.beginTransaction();
+        try {
+            count += db.delete(Favorites.TABLE_NAME, Favorites.CONTAINER + "=" + folderId, null);
+            mDeleteStatement.bindLong(1, folderId);
+            count += mDeleteStatement.executeUpdateDelete();
+            db.setTransactionSuccessful();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            db.endTransaction();
+        }
+        if (count > 0) {
+            mProvider.notifyListeners();
+        }
+    }
+
+    private void compileStatements(SQLiteDatabase db) {
+        if (mStatementsDb == db) {
+            return;
+        }
+        Utilities.closeSilently(mMoveStatement);
+        Utilities.closeSilently(mDeleteStatement);
+
+        StringBuilder move = new StringBuilder("UPDATE ").append(Favorites.TABLE_NAME)
+                .append(" SET ");
+        for (String column : MOVE_COLUMNS) {
+            move.append(column).append("=?, ");
+        }
+        move.append(Favorites.MODIFIED).append("=? WHERE ").append(Favorites._ID).append("=?");
+        mMoveStatement = db.compileStatement(move.toString());
+        mDeleteStatement = db.compileStatement("DELETE FROM " + Favorites.TABLE_NAME
+                + " WHERE " + Favorites._ID + "=?");
+        mStatementsDb = db;
+    }
+
+    private static boolean isMove(ContentValues values) {
+        if (values.size() != MOVE_COLUMNS.length) {
+            return false;
+        }
+        for (String column : MOVE_COLUMNS) {
+            if (values.getAsLong(column) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void bindMove(ContentValues values, long modified, long id) {
+        int index = 1;
+        for (String column : MOVE_COLUMNS) {
+            mMoveStatement.bindLong(index++, values.getAsLong(column));
+        }
+        mMoveStatement.bindLong(index++, modified);
+        mMoveStatement.bindLong(index, id);
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.enrico.launcher3;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.UserHandle;
+
+import com.enrico.launcher3.compat.UserManagerCompat;
+import com.enrico.launcher3.shortcuts.ShortcutKey;
+import com.enrico.launcher3.util.NoLocaleSqliteContext;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+
+/**
+ * The items waiting to be added to the workspace by {@link InstallShortcutReceiver}, in the
+ * order they were received. Each item is stored with the package and user it belongs to, so that
+ * adding an item and removing the items of a package do not need to read the whole queue.
+ * An item which is already in the queue is not added again.
+ */
+class InstallQueue extends SQLiteOpenHelper {
+
+    private static final int DB_VERSION = 2;
+
+    private static final String TABLE_NAME = "pending_installs";
+    private static final String COLUMN_ID = "_id";
+    private static final String COLUMN_PACKAGE = "packageName";
+    private static final String COLUMN_USER = "profileId";
+    // The id of a deep shortcut, null for other items.
+    private static final String COLUMN_SHORTCUT_ID = "shortcutId";
+    private static final String COLUMN_DATA = "data";
+
+    private final Context mContext;
+
+    // Compiled statements, for mStatementsDb.
+    private SQLiteDatabase mStatementsDb;
+    private SQLiteStatement mInsertStatement;
+    private SQLiteStatement mDeleteStatement;
+
+    InstallQueue(Context context) {
+        super(new NoLocaleSqliteContext(context), LauncherFiles.INSTALL_QUEUE_DB, null,
+                DB_VERSION);
+        mContext = context;
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                COLUMN_PACKAGE + " TEXT, " +
+                COLUMN_USER + " INTEGER NOT NULL, " +
+                COLUMN_SHORTCUT_ID + " TEXT, " +
+                COLUMN_DATA + " TEXT NOT NULL);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_package ON " + TABLE_NAME +
+                " (" + COLUMN_PACKAGE + ", " + COLUMN_USER + ");");
+        createDataIndex(db);
+    }
+
+    private void createDataIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS " + TABLE_NAME + "_data ON " + TABLE_NAME +
+                " (" + COLUMN_DATA + ");");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            // Keep the first of the duplicate items.
+            db.execSQL("DELETE FROM " + TABLE_NAME + " WHERE " + COLUMN_ID + " NOT IN (SELECT MIN("
+                    + COLUMN_ID + ") FROM " + TABLE_NAME + " GROUP BY " + COLUMN_DATA + ");");
+            createDataIndex(db);
+        }
+    }
+
+    /**
+     * Appends an item to the queue, unless the same item is already queued.
+     *
+     * @param encoded the item, as encoded by {@link InstallShortcutReceiver}
+     * @param packageName the package the item is removed with, or null
+     * @param userSerial the serial number of the user of the item
+     * @param shortcutId the id of the deep shortcut, or null if the item is not a deep shortcut
+     */
+    public synchronized void add(String encoded, String packageName, long userSerial,
+            String shortcutId) {
+        try {
+            compileStatements(getWritableDatabase());
+            mInsertStatement.clearBindings();
+            if (packageName != null) {
+                mInsertStatement.bindString(1, packageName);
+            }
+            mInsertStatement.bindLong(2, userSerial);
+            if (shortcutId != null) {
+                mInsertStatement.bindString(3, shortcutId);
+            }
+            mInsertStatement.bindString(4, encoded);
+            mInsertStatement.executeInsert();
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Removes the items of the given packages for a user.
+     */
+    public synchronized void removePackages(Collection<String> packageNames, long userSerial) {
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            compileStatements(db);
+            db.beginTransaction();
+            try {
+                for (String packageName : packageNames) {
+                    mDeleteStatement.bindString(1, packageName);
+                    mDeleteStatement.bindLong(2, userSerial);
+                    mDeleteStatement.executeUpdateDelete();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the encoded items in the order they were added, and empties the queue.
+     */
+    public synchronized ArrayList<String> getAndClear() {
+        ArrayList<String> items = new ArrayList<>();
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                Cursor c = db.query(TABLE_NAME, new String[] {COLUMN_DATA},
+                        null, null, null, null, COLUMN_ID);
+                try {
+                    while (c.moveToNext()) {
+                        items.add(c.getString(0));
+                    }
+                } finally {
+                    c.close();
+                }
+                if (!items.isEmpty()) {
+                    db.delete(TABLE_NAME, null, null);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+            items.clear();
+        }
+        return items;
+    }
+
+    /**
+     * Returns the keys of the deep shortcuts in the queue.
+     */
+    public synchronized HashSet<ShortcutKey> getShortcutKeys() {
+        HashSet<ShortcutKey> result = new HashSet<>();
+        try {
+            Cursor c = getReadableDatabase().query(TABLE_NAME,
+                    new String[] {COLUMN_PACKAGE, COLUMN_USER, COLUMN_SHORTCUT_ID},
+                    COLUMN_SHORTCUT_ID + " IS NOT NULL AND " + COLUMN_PACKAGE + " IS NOT NULL",
+                    null, null, null, null);
+            try {
+                UserManagerCompat userManager = UserManagerCompat.getInstance(mContext);
+                while (c.moveToNext()) {
+                    UserHandle user = userManager.getUserForSerialNumber(c.getLong(1));
+                    if (user != null) {
+                        result.add(new ShortcutKey(c.getString(0), user, c.getString(2)));
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+        }
+        return result;
+    }
+
+    private void compileStatements(SQLiteDatabase db) {
+        if (mStatementsDb == db) {
+            return;
+        }
+        Utilities.closeSilently(mInsertStatement);
+        Utilities.closeSilently(mDeleteStatement);
+
+        mInsertStatement = db.compileStatement("INSERT OR IGNORE INTO " + TABLE_NAME + " (" +
+                COLUMN_PACKAGE + ", " + COLUMN_USER + ", " + COLUMN_SHORTCUT_ID + ", " +
+                COLUMN_DATA + ") VALUES (?, ?, ?, ?)");
+        mDeleteStatement = db.compileStatement("DELETE FROM " + TABLE_NAME + " WHERE " +
+                COLUMN_PACKAGE + "=? AND " + COLUMN_USER + "=?");
+        mStatementsDb = db;
+    }
+}
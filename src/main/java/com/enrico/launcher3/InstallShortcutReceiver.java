@@ -27,6 +27,7 @@ import android.content.pm.LauncherActivityInfo;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.Handler;
 import android.os.Looper;
 import android.os.Parcelable;
 import android.os.Process;
@@ -52,7 +53,6 @@ import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
@@ -72,25 +72,61 @@ public class InstallShortcutReceiver extends BroadcastReceiver {
     private static final String APP_WIDGET_TYPE_KEY = "isAppWidget";
     private static final String USER_HANDLE_KEY = "userHandle";
 
-    // The set of shortcuts that are pending install
+    // The set of shortcuts that were pending install in older versions, see InstallQueue
     private static final String APPS_PENDING_INSTALL = "apps_to_install";
 
     public static final int NEW_SHORTCUT_BOUNCE_DURATION = 450;
     public static final int NEW_SHORTCUT_STAGGER_DELAY = 85;
 
     private static final Object sLock = new Object();
+    // Guarded by sLock.
+    private static InstallQueue sInstallQueue;
+
+    // The queue is only written on the worker thread, so that receiving an item or resuming the
+    // launcher never waits for the DB, and items are added and flushed in order.
+    private static final Handler sWorker = new Handler(LauncherModel.getWorkerLooper());
+
+    private static InstallQueue getInstallQueue(Context context) {
+        synchronized (sLock) {
+            if (sInstallQueue == null) {
+                sInstallQueue = new InstallQueue(context.getApplicationContext());
+                migrateLegacyInstallQueue(context, sInstallQueue);
+            }
+            return sInstallQueue;
+        }
+    }
 
-    private static void addToInstallQueue(
-            SharedPreferences sharedPrefs, PendingInstallShortcutInfo info) {
-        synchronized(sLock) {
-            String encoded = info.encodeToString();
-            if (encoded != null) {
-                Set<String> strings = sharedPrefs.getStringSet(APPS_PENDING_INSTALL, null);
-                strings = (strings != null) ? new HashSet<>(strings) : new HashSet<String>(1);
-                strings.add(encoded);
-                sharedPrefs.edit().putStringSet(APPS_PENDING_INSTALL, strings).apply();
+    /**
+     * Moves the items which were queued in the shared preferences into {@param queue}.
+     */
+    private static void migrateLegacyInstallQueue(Context context, InstallQueue queue) {
+        SharedPreferences sharedPrefs = Utilities.getPrefs(context);
+        Set<String> strings = sharedPrefs.getStringSet(APPS_PENDING_INSTALL, null);
+        if (strings == null) {
+            return;
+        }
+        UserManagerCompat userManager = UserManagerCompat.getInstance(context);
+        for (String encoded : strings) {
+            try {
+                Decoder decoder = new Decoder(encoded, context);
+                String shortcutId = decoder.optBoolean(DEEPSHORTCUT_TYPE_KEY) ? decoder
+                        .launcherIntent.getStringExtra(ShortcutInfoCompat.EXTRA_SHORTCUT_ID) : null;
+                queue.add(encoded, getIntentPackage(decoder.launcherIntent),
+                        userManager.getSerialNumberForUser(decoder.user), shortcutId);
+            } catch (JSONException | URISyntaxException e) {
+                e.printStackTrace();
             }
         }
+        sharedPrefs.edit().remove(APPS_PENDING_INSTALL).apply();
+    }
+
+    @Thunk static void addToInstallQueue(Context context, PendingInstallShortcutInfo info) {
+        String encoded = info.encodeToString();
+        if (encoded != null) {
+            getInstallQueue(context).add(encoded, getIntentPackage(info.launchIntent),
+                    UserManagerCompat.getInstance(context).getSerialNumberForUser(info.user),
+                    info.shortcutInfo != null ? info.shortcutInfo.getId() : null);
+        }
     }
 
     public static void removeFromInstallQueue(Context context, HashSet<String> packageNames,
@@ -98,49 +134,20 @@ public class InstallShortcutReceiver extends BroadcastReceiver {
         if (packageNames.isEmpty()) {
             return;
         }
-        SharedPreferences sp = Utilities.getPrefs(context);
-        synchronized(sLock) {
-            Set<String> strings = sp.getStringSet(APPS_PENDING_INSTALL, null);
-
-            if (Utilities.isEmpty(strings)) {
-                return;
-            }
-            Set<String> newStrings = new HashSet<>(strings);
-            Iterator<String> newStringsIter = newStrings.iterator();
-            while (newStringsIter.hasNext()) {
-                String encoded = newStringsIter.next();
-                try {
-                    Decoder decoder = new Decoder(encoded, context);
-                    if (packageNames.contains(getIntentPackage(decoder.launcherIntent)) &&
-                            user.equals(decoder.user)) {
-                        newStringsIter.remove();
-                    }
-                } catch (JSONException | URISyntaxException e) {
-                    e.printStackTrace();
-                    newStringsIter.remove();
-                }
-            }
-            sp.edit().putStringSet(APPS_PENDING_INSTALL, newStrings).apply();
-        }
+        getInstallQueue(context).removePackages(packageNames,
+                UserManagerCompat.getInstance(context).getSerialNumberForUser(user));
     }
 
-    private static ArrayList<PendingInstallShortcutInfo> getAndClearInstallQueue(Context context) {
-        SharedPreferences sharedPrefs = Utilities.getPrefs(context);
-        synchronized(sLock) {
-            ArrayList<PendingInstallShortcutInfo> infos = new ArrayList<>();
-            Set<String> strings = sharedPrefs.getStringSet(APPS_PENDING_INSTALL, null);
-            if (strings == null) {
-                return infos;
+    @Thunk static ArrayList<PendingInstallShortcutInfo> getAndClearInstallQueue(
+            Context context) {
+        ArrayList<PendingInstallShortcutInfo> infos = new ArrayList<>();
+        for (String encoded : getInstallQueue(context).getAndClear()) {
+            PendingInstallShortcutInfo info = decode(encoded, context);
+            if (info != null) {
+                infos.add(info);
             }
-            for (String encoded : strings) {
-                PendingInstallShortcutInfo info = decode(encoded, context);
-                if (info != null) {
-                    infos.add(info);
-                }
-            }
-            sharedPrefs.edit().putStringSet(APPS_PENDING_INSTALL, new HashSet<String>()).apply();
-            return infos;
         }
+        return infos;
     }
 
     // Determines whether to defer installing shortcuts immediately until
@@ -211,24 +218,7 @@ public class InstallShortcutReceiver extends BroadcastReceiver {
     }
 
     public static HashSet<ShortcutKey> getPendingShortcuts(Context context) {
-        HashSet<ShortcutKey> result = new HashSet<>();
-
-        Set<String> strings = Utilities.getPrefs(context).getStringSet(APPS_PENDING_INSTALL, null);
-        if (Utilities.isEmpty(strings)) {
-            return result;
-        }
-
-        for (String encoded : strings) {
-            try {
-                Decoder decoder = new Decoder(encoded, context);
-                if (decoder.optBoolean(DEEPSHORTCUT_TYPE_KEY)) {
-                    result.add(ShortcutKey.fromIntent(decoder.launcherIntent, decoder.user));
-                }
-            } catch (JSONException | URISyntaxException e) {
-                e.printStackTrace();
-            }
-        }
-        return result;
+        return getInstallQueue(context).getShortcutKeys();
     }
 
     private static void queuePendingShortcutInfo(PendingInstallShortcutInfo info, Context context) {
@@ -236,7 +226,14 @@ public class InstallShortcutReceiver extends BroadcastReceiver {
         LauncherAppState app = LauncherAppState.getInstance(context);
         boolean launcherNotLoaded = app.getModel().getCallback() == null;
 
-        addToInstallQueue(Utilities.getPrefs(context), info);
+        final Context appContext = context.getApplicationContext();
+        final PendingInstallShortcutInfo pendingInfo = info;
+        sWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                addToInstallQueue(appContext, pendingInfo);
+            }
+        });
         if (!mUseInstallQueue && !launcherNotLoaded) {
             flushInstallQueue(context);
         }
@@ -251,11 +248,18 @@ public class InstallShortcutReceiver extends BroadcastReceiver {
     }
 
     static void flushInstallQueue(Context context) {
-        ArrayList<PendingInstallShortcutInfo> items = getAndClearInstallQueue(context);
-        if (!items.isEmpty()) {
-            LauncherAppState.getInstance(context).getModel().addAndBindAddedWorkspaceItems(
-                    new LazyShortcutsProvider(context.getApplicationContext(), items));
-        }
+        final Context appContext = context.getApplicationContext();
+        sWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                ArrayList<PendingInstallShortcutInfo> items = getAndClearInstallQueue(appContext);
+                if (!items.isEmpty()) {
+                    LauncherAppState.getInstance(appContext).getModel()
+                            .addAndBindAddedWorkspaceItems(
+                                    new LazyShortcutsProvider(appContext, items));
+                }
+            }
+        });
     }
 
     /**
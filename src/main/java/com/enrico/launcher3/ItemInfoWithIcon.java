@@ -33,11 +33,18 @@ public abstract class ItemInfoWithIcon extends ItemInfo {
      */
     public boolean usingLowResIcon;
 
+    /**
+     * The color of the badges of the icon, computed with the icon by the IconCache, or 0 if it
+     * is unknown.
+     */
+    public int iconColor;
+
     protected ItemInfoWithIcon() { }
 
     ItemInfoWithIcon(ItemInfoWithIcon info) {
         super(info);
         iconBitmap = info.iconBitmap;
         usingLowResIcon = info.usingLowResIcon;
+        iconColor = info.iconColor;
     }
 }
@@ -1015,6 +1015,9 @@ public class Launcher extends BaseActivity
         }
 
         NotificationListener.removeNotificationsChangedListener();
+
+        // Keep the snapshot used by the next cold start up to date with the user changes.
+        mModel.saveModelSnapshot();
     }
 
     @Override
@@ -1160,6 +1163,7 @@ public class Launcher extends BaseActivity
 
         super.onPause();
         mPaused = true;
+        flushCacheWrites();
         mDragController.cancelDrag();
         mDragController.resetLastGestureUpTime();
 
@@ -3045,6 +3049,7 @@ public class Launcher extends BaseActivity
             // The widget preview db can result in holding onto over
             // 3MB of memory for caching which isn't necessary.
             SQLiteDatabase.releaseMemory();
+            flushCacheWrites();
 
             // This clears all widget bitmaps from the widget tray
             // TODO(hyunyoungs)
@@ -3054,6 +3059,15 @@ public class Launcher extends BaseActivity
         }
     }
 
+    /**
+     * Persists the icons and widget previews which are still waiting to be written.
+     */
+    private void flushCacheWrites() {
+        mIconCache.flushPendingWrites();
+        LauncherAppState.getInstance(this).getWidgetCache().flushPendingWrites();
+        ModelWriter.flushPendingUpdates();
+    }
+
     public boolean showWorkspace(boolean animated) {
         return showWorkspace(animated, null);
     }
@@ -3354,14 +3368,18 @@ public class Launcher extends BaseActivity
     /**
      * Clear any pending bind callbacks. This is called when is loader is planning to
      * perform a full rebind from scratch.
+     *
+     * @return true if some bind callbacks were dropped.
      */
     @Override
-    public void clearPendingBinds() {
+    public boolean clearPendingBinds() {
+        boolean hadPendingBinds = !mBindOnResumeCallbacks.isEmpty() || mPendingExecutor != null;
         mBindOnResumeCallbacks.clear();
         if (mPendingExecutor != null) {
             mPendingExecutor.markCompleted();
             mPendingExecutor = null;
         }
+        return hadPendingBinds;
     }
 
     /**
@@ -3894,6 +3912,26 @@ public class Launcher extends BaseActivity
         mWorkspace.widgetsRestored(widgets);
     }
 
+    /**
+     * Removes the views of items which were removed, moved or replaced by a reload of the
+     * workspace, without changing the model.
+     *
+     * Implementation of the method from LauncherModel.Callbacks.
+     */
+    @Override
+    public void bindItemsRemoved(final ArrayList<ItemInfo> items) {
+        Runnable r = new Runnable() {
+            @Override
+            public void run() {
+                bindItemsRemoved(items);
+            }
+        };
+        if (waitUntilResume(r)) {
+            return;
+        }
+        mWorkspace.removeItemViews(new HashSet<>(items));
+    }
+
     /**
      * Some shortcuts were updated in the background.
      * Implementation of the method from LauncherModel.Callbacks.
@@ -4227,9 +4265,14 @@ public class Launcher extends BaseActivity
         writer.print(prefix + "\tmWorkspaceLoading=" + mWorkspaceLoading);
         writer.print(" mPendingRequestArgs=" + mPendingRequestArgs);
         writer.println(" mPendingActivityResult=" + mPendingActivityResult);
+        FastBitmapDrawable.dumpStats(prefix + "\t", writer);
 
         mModel.dumpState(prefix, fd, writer, args);
 
+        if (mAppsView != null) {
+            mAppsView.dump(prefix, writer);
+        }
+
         if (mLauncherCallbacks != null) {
             mLauncherCallbacks.dump(prefix, fd, writer, args);
         }
@@ -43,6 +43,7 @@ public class LauncherAppState {
     private final IconCache mIconCache;
     private final WidgetPreviewLoader mWidgetCache;
     private final InvariantDeviceProfile mInvariantDeviceProfile;
+    private final FavoritesDao mFavoritesDao;
 
 
     public static LauncherAppState getInstance(final Context context) {
@@ -74,11 +75,13 @@ public class LauncherAppState {
     }
 
     private LauncherAppState(Context context) {
-        if (getLocalProvider(context) == null) {
+        LauncherProvider provider = getLocalProvider(context);
+        if (provider == null) {
             throw new RuntimeException(
                     "Initializing LauncherAppState in the absence of LauncherProvider");
         }
         mContext = context;
+        mFavoritesDao = new FavoritesDao(provider);
 
         mInvariantDeviceProfile = new InvariantDeviceProfile(mContext);
         mIconCache = new IconCache(mContext, mInvariantDeviceProfile);
@@ -140,6 +143,10 @@ public class LauncherAppState {
         return mWidgetCache;
     }
 
+    public FavoritesDao getFavoritesDao() {
+        return mFavoritesDao;
+    }
+
     public InvariantDeviceProfile getInvariantDeviceProfile() {
         return mInvariantDeviceProfile;
     }
@@ -22,6 +22,17 @@ public class LauncherFiles {
 
     public static final String WIDGET_PREVIEWS_DB = "widgetpreviews.db";
     public static final String APP_ICONS_DB = "app_icons.db";
+    public static final String INSTALL_QUEUE_DB = "install_queue.db";
+    // Stored in the cache dir, as it can always be rebuilt from APP_ICONS_DB.
+    public static final String APP_ICONS_ATLAS = "app_icons.atlas";
+    // Stored in the cache dir, as it can always be rebuilt from LAUNCHER_DB.
+    public static final String MODEL_SNAPSHOT = "model_snapshot.bin";
+    // Stored in the cache dir, followed by the icon pack package, as it can always be rebuilt
+    // from the appfilter of the icon pack.
+    public static final String APP_FILTER_INDEX_PREFIX = "appfilter_";
+    // Stored in the cache dir, as the icons can always be loaded again from the icon packs.
+    public static final String THEMED_ICONS_SEGMENT = "themed_icons.seg";
+    public static final String THEMED_ICONS_INDEX = "themed_icons.idx";
 
     public static final List<String> ALL_FILES = Collections.unmodifiableList(Arrays.asList(
             LAUNCHER_DB,
@@ -29,5 +40,6 @@ public class LauncherFiles {
             WIDGET_PREVIEWS_DB,
             MANAGED_USER_PREFERENCES_KEY + XML,
             DEVICE_PREFERENCES_KEY + XML,
-            APP_ICONS_DB));
+            APP_ICONS_DB,
+            INSTALL_QUEUE_DB));
 }
@@ -26,6 +26,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.LauncherActivityInfo;
+import android.database.Cursor;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -58,6 +59,8 @@ import com.enrico.launcher3.model.CacheDataUpdatedTask;
 import com.enrico.launcher3.model.ExtendedModelTask;
 import com.enrico.launcher3.model.GridSizeMigrationTask;
 import com.enrico.launcher3.model.LoaderCursor;
+import com.enrico.launcher3.model.ModelDiff;
+import com.enrico.launcher3.model.ModelSnapshot;
 import com.enrico.launcher3.model.ModelWriter;
 import com.enrico.launcher3.model.PackageInstallStateChangedTask;
 import com.enrico.launcher3.model.PackageItemInfo;
@@ -73,6 +76,7 @@ import com.enrico.launcher3.shortcuts.DeepShortcutManager;
 import com.enrico.launcher3.shortcuts.ShortcutInfoCompat;
 import com.enrico.launcher3.shortcuts.ShortcutKey;
 import com.enrico.launcher3.util.ComponentKey;
+import com.enrico.launcher3.util.LogConfig;
 import com.enrico.launcher3.util.ManagedProfileHeuristic;
 import com.enrico.launcher3.util.MultiHashMap;
 import com.enrico.launcher3.util.PackageManagerHelper;
@@ -90,11 +94,21 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Maintains in-memory state of the Launcher. It is expected that there should be only one
@@ -105,6 +119,10 @@ public class LauncherModel extends BroadcastReceiver
         implements LauncherAppsCompat.OnAppsChangedCallbackCompat {
 
     private static final int ITEMS_CHUNK = 6; // batch size for the workspace icons
+    // Max number of loader stages running in parallel with the workspace loading
+    private static final int LOADER_STAGE_THREADS = 3;
+    // How often a loader waiting for a stage checks if it was stopped
+    private static final long LOADER_STAGE_POLL_MS = 100;
     private static final long INVALID_SCREEN_ID = -1L;
 
     @Thunk final LauncherAppState mApp;
@@ -145,6 +163,20 @@ public class LauncherModel extends BroadcastReceiver
     // Entire list of widgets.
     private final WidgetsModel mBgWidgetsModel;
 
+    // Runs the loader stages which do not depend on the workspace.
+    @Thunk final ThreadPoolExecutor mLoaderStageExecutor;
+    // Wall time of each stage of the last complete load, in ms.
+    @Thunk volatile LinkedHashMap<String, Long> mLastLoaderStageTimes;
+    // Snapshot of the workspace items, used to bind the workspace on the next cold start.
+    @Thunk final ModelSnapshot mModelSnapshot;
+    // How the workspace was bound by the last complete load.
+    @Thunk volatile String mLastSnapshotResult;
+    // Callbacks whose workspace shows all the items of the model, only set on the main thread.
+    @Thunk volatile WeakReference<Callbacks> mWorkspaceBoundCallbacks;
+    // Number of changes bound by the last load which updated the bound workspace, or -1 if
+    // it bound the whole workspace.
+    @Thunk volatile int mLastWorkspaceDiffSize = -1;
+
     private boolean mHasShortcutHostPermission;
     // Runnable to check if the shortcuts permission has changed.
     private final Runnable mShortcutPermissionCheckRunnable = new Runnable() {
@@ -178,7 +210,7 @@ public class LauncherModel extends BroadcastReceiver
     public interface Callbacks {
         boolean setLoadOnResume();
         int getCurrentWorkspaceScreen();
-        void clearPendingBinds();
+        boolean clearPendingBinds();
         void startBinding();
         void bindItems(ArrayList<ItemInfo> shortcuts, int start, int end,
                               boolean forceAnimateIcons);
@@ -195,6 +227,7 @@ public class LauncherModel extends BroadcastReceiver
         void bindShortcutsChanged(ArrayList<ShortcutInfo> updated,
                 ArrayList<ShortcutInfo> removed, UserHandle user);
         void bindWidgetsRestored(ArrayList<LauncherAppWidgetInfo> widgets);
+        void bindItemsRemoved(ArrayList<ItemInfo> items);
         void bindRestoreItemsChange(HashSet<ItemInfo> updates);
         void bindWorkspaceComponentsRemoved(
                 HashSet<String> packageNames, HashSet<ComponentName> components,
@@ -216,6 +249,12 @@ public class LauncherModel extends BroadcastReceiver
 
         mLauncherApps = LauncherAppsCompat.getInstance(mContext);
         mUserManager = UserManagerCompat.getInstance(mContext);
+        mModelSnapshot = new ModelSnapshot(mContext);
+
+        mLoaderStageExecutor = new ThreadPoolExecutor(LOADER_STAGE_THREADS, LOADER_STAGE_THREADS,
+                1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new LoaderStageThreadFactory());
+        mLoaderStageExecutor.allowCoreThreadTimeOut(true);
     }
 
     /** Runs the specified runnable immediately if called from the main thread, otherwise it is
@@ -518,6 +557,58 @@ public class LauncherModel extends BroadcastReceiver
         startLoaderFromBackground();
     }
 
+    /**
+     * Renders the icons of all the apps again after the icon pack or the icon style changed.
+     * The icons are written to the icon DB in batches and the bound items are updated when they
+     * are written, without reloading the workspace. If the launcher dies before all the icons
+     * are written, the next load renders the remaining ones.
+     */
+    public void reapplyIconPack() {
+        runOnWorkerThread(new Runnable() {
+            @Override
+            public void run() {
+                mIconCache.onIconPackApplyStarted();
+                updateIconCache();
+            }
+        });
+    }
+
+    @Thunk void updateIconCache() {
+        // Ignore packages which have a promise icon.
+        HashSet<String> packagesToIgnore = new HashSet<>();
+        synchronized (sBgDataModel) {
+            for (ItemInfo info : sBgDataModel.itemsIdMap) {
+                if (info instanceof ShortcutInfo) {
+                    ShortcutInfo si = (ShortcutInfo) info;
+                    if (si.isPromise() && si.getTargetComponent() != null) {
+                        packagesToIgnore.add(si.getTargetComponent().getPackageName());
+                    }
+                } else if (info instanceof LauncherAppWidgetInfo) {
+                    LauncherAppWidgetInfo lawi = (LauncherAppWidgetInfo) info;
+                    if (lawi.hasRestoreFlag(LauncherAppWidgetInfo.FLAG_PROVIDER_NOT_READY)) {
+                        packagesToIgnore.add(lawi.providerName.getPackageName());
+                    }
+                }
+            }
+        }
+        mIconCache.updateDbIcons(packagesToIgnore);
+    }
+
+    /**
+     * Updates the snapshot of the workspace items if they changed since it was written.
+     */
+    public void saveModelSnapshot() {
+        runOnWorkerThread(new Runnable() {
+            @Override
+            public void run() {
+                if (isModelLoaded()
+                        && !Utilities.isPropertyEnabled(LogConfig.NO_MODEL_SNAPSHOT)) {
+                    mModelSnapshot.write(sBgDataModel);
+                }
+            }
+        });
+    }
+
     /**
      * When the launcher is in the background, it's possible for it to miss paired
      * configuration changes.  So whenever we trigger the loader from the background
@@ -562,7 +653,10 @@ public class LauncherModel extends BroadcastReceiver
                 // Clear any pending bind-runnables from the synchronized load process.
                 runOnMainThread(new Runnable() {
                     public void run() {
-                        oldCallbacks.clearPendingBinds();
+                        if (oldCallbacks.clearPendingBinds()) {
+                            // The bound workspace is missing some changes of the model.
+                            mWorkspaceBoundCallbacks = null;
+                        }
                     }
                 });
 
@@ -617,6 +711,12 @@ public class LauncherModel extends BroadcastReceiver
         private boolean mStopped;
         @Thunk boolean mLoadAndBindStepFinished;
 
+        // Stages started in parallel with the workspace loading, null when loading serially.
+        private HashMap<UserHandle, Future<List<LauncherActivityInfo>>> mPendingActivityLists;
+        private Future<HashMap<UserHandle, List<ShortcutInfoCompat>>> mPendingDeepShortcuts;
+        private Future<ArrayList<WidgetItem>> mPendingWidgets;
+        private final LinkedHashMap<String, Long> mStageTimes = new LinkedHashMap<>();
+
         LoaderTask(Context context, int pageToBindFirst) {
             mContext = context;
             mPageToBindFirst = pageToBindFirst;
@@ -705,29 +805,78 @@ public class LauncherModel extends BroadcastReceiver
             }
 
             try {
+                final long loadStartTime = SystemClock.uptimeMillis();
+                // The loader reads the DB, write the pending item updates first.
+                ModelWriter.flushPendingUpdates();
+                startBackgroundStages();
+
                 // Set to false in bindWorkspace()
                 mIsLoadingAndBindingWorkspace = true;
+                long stageStartTime = SystemClock.uptimeMillis();
+                BgDataModel snapshotModel = loadModelSnapshot();
+                PendingBindCompletion snapshotBind = null;
+                // The items shown by the workspace, if it is already bound.
+                BgDataModel boundModel = null;
+                if (snapshotModel == null && isWorkspaceBound()) {
+                    boundModel = new BgDataModel();
+                    boundModel.copyWorkspaceFrom(sBgDataModel);
+                } else if (snapshotModel != null) {
+                    recordStageTime("loadSnapshot", stageStartTime);
+                    verifyNotStopped();
+
+                    // Bind the snapshot right away, the workspace stays locked until the
+                    // snapshot is verified against the DB below.
+                    stageStartTime = SystemClock.uptimeMillis();
+                    snapshotBind = bindWorkspace(mPageToBindFirst, true /* deferCompletion */);
+                    recordStageTime("bindSnapshot", stageStartTime);
+                    stageStartTime = SystemClock.uptimeMillis();
+                }
                 loadWorkspace();
+                recordStageTime("loadWorkspace", stageStartTime);
 
                 verifyNotStopped();
-                bindWorkspace(mPageToBindFirst);
+                stageStartTime = SystemClock.uptimeMillis();
+                mLastWorkspaceDiffSize = -1;
+                if (snapshotBind != null) {
+                    // Only bind what changed since the snapshot was written.
+                    if (bindWorkspaceChanges(snapshotModel, snapshotBind)) {
+                        mLastSnapshotResult = mLastWorkspaceDiffSize == 0 ? "matched" : "updated";
+                    } else {
+                        snapshotBind.cancel();
+                        mLastSnapshotResult = "rebound";
+                        bindWorkspace(mPageToBindFirst);
+                    }
+                } else {
+                    mLastSnapshotResult = "unused";
+                    if (boundModel == null || !isWorkspaceBound()
+                            || !bindWorkspaceChanges(boundModel, null)) {
+                        bindWorkspace(mPageToBindFirst);
+                    }
+                }
+                recordStageTime("bindWorkspace", stageStartTime);
 
                 // Take a break
                 waitForIdle();
                 verifyNotStopped();
 
                 // second step
+                stageStartTime = SystemClock.uptimeMillis();
                 loadAllApps();
+                recordStageTime("loadAllApps", stageStartTime);
 
                 verifyNotStopped();
+                stageStartTime = SystemClock.uptimeMillis();
                 updateIconCache();
+                recordStageTime("updateIconCache", stageStartTime);
 
                 // Take a break
                 waitForIdle();
                 verifyNotStopped();
 
                 // third step
+                stageStartTime = SystemClock.uptimeMillis();
                 loadDeepShortcuts();
+                recordStageTime("loadDeepShortcuts", stageStartTime);
 
                 verifyNotStopped();
                 bindDeepShortcuts();
@@ -737,8 +886,25 @@ public class LauncherModel extends BroadcastReceiver
                 verifyNotStopped();
 
                 // fourth step
+                stageStartTime = SystemClock.uptimeMillis();
+                ArrayList<WidgetItem> widgets = getStageResult(mPendingWidgets);
+                recordStageTime("waitForWidgets", stageStartTime);
                 refreshAndBindWidgetsAndShortcuts(getCallback(), false /* bindFirst */,
-                        null /* packageUser */);
+                        null /* packageUser */, widgets);
+
+                verifyNotStopped();
+                stageStartTime = SystemClock.uptimeMillis();
+                if (Utilities.isPropertyEnabled(LogConfig.NO_MODEL_SNAPSHOT)) {
+                    mModelSnapshot.delete();
+                } else {
+                    mModelSnapshot.write(sBgDataModel);
+                }
+                recordStageTime("writeSnapshot", stageStartTime);
+
+                recordStageTime("total", loadStartTime);
+                synchronized (mStageTimes) {
+                    mLastLoaderStageTimes = new LinkedHashMap<>(mStageTimes);
+                }
 
                 synchronized (mLock) {
                     // Everything loaded bind the data.
@@ -748,6 +914,9 @@ public class LauncherModel extends BroadcastReceiver
             } catch (CancellationException e) {
               // Loader stopped, ignore
             } finally {
+                synchronized (LoaderTask.this) {
+                    cancelBackgroundStages();
+                }
                 // Clear out this reference, otherwise we end up holding it until all of the
                 // callback runnables are done.
                 mContext = null;
@@ -765,10 +934,140 @@ public class LauncherModel extends BroadcastReceiver
         void stopLocked() {
             synchronized (LoaderTask.this) {
                 mStopped = true;
+                cancelBackgroundStages();
                 this.notify();
             }
         }
 
+        /**
+         * Reads the snapshot written by the previous load into a new model, and makes it the
+         * current model. Only used for the first load, as later loads already have views.
+         * @return the snapshot model, or null if there is no valid snapshot.
+         */
+        private BgDataModel loadModelSnapshot() {
+            synchronized (mLock) {
+                if (mHasLoaderCompletedOnce) {
+                    return null;
+                }
+            }
+            if (Utilities.isPropertyEnabled(LogConfig.NO_MODEL_SNAPSHOT)) {
+                return null;
+            }
+            BgDataModel snapshotModel = new BgDataModel();
+            if (!mModelSnapshot.read(mApp, snapshotModel)) {
+                return null;
+            }
+            sBgDataModel.copyWorkspaceFrom(snapshotModel);
+            return snapshotModel;
+        }
+
+        /**
+         * Starts the stages which do not depend on the workspace: querying the apps of each
+         * profile, the deep shortcuts and the widgets. Their results are consumed by the
+         * corresponding load steps, which still bind in the same order as before.
+         */
+        private void startBackgroundStages() {
+            if (Utilities.isPropertyEnabled(LogConfig.SERIAL_LOADER)) {
+                return;
+            }
+            final Context context = mContext;
+            synchronized (LoaderTask.this) {
+                if (mStopped) {
+                    return;
+                }
+                mPendingActivityLists = new HashMap<>();
+                for (final UserHandle user : mUserManager.getUserProfiles()) {
+                    mPendingActivityLists.put(user, mLoaderStageExecutor.submit(
+                            new Callable<List<LauncherActivityInfo>>() {
+                                @Override
+                                public List<LauncherActivityInfo> call() {
+                                    long start = SystemClock.uptimeMillis();
+                                    List<LauncherActivityInfo> apps = queryActivityList(user);
+                                    recordStageTime("queryApps", start);
+                                    return apps;
+                                }
+                            }));
+                }
+                mPendingDeepShortcuts = mLoaderStageExecutor.submit(
+                        new Callable<HashMap<UserHandle, List<ShortcutInfoCompat>>>() {
+                            @Override
+                            public HashMap<UserHandle, List<ShortcutInfoCompat>> call() {
+                                long start = SystemClock.uptimeMillis();
+                                HashMap<UserHandle, List<ShortcutInfoCompat>> shortcuts =
+                                        new HashMap<>();
+                                DeepShortcutManager shortcutManager =
+                                        DeepShortcutManager.getInstance(context);
+                                if (shortcutManager.hasHostPermission()) {
+                                    for (UserHandle user : mUserManager.getUserProfiles()) {
+                                        if (mUserManager.isUserUnlocked(user)) {
+                                            shortcuts.put(user,
+                                                    shortcutManager.queryForAllShortcuts(user));
+                                        }
+                                    }
+                                }
+                                recordStageTime("queryDeepShortcuts", start);
+                                return shortcuts;
+                            }
+                        });
+                mPendingWidgets = mLoaderStageExecutor.submit(
+                        new Callable<ArrayList<WidgetItem>>() {
+                            @Override
+                            public ArrayList<WidgetItem> call() {
+                                long start = SystemClock.uptimeMillis();
+                                ArrayList<WidgetItem> widgets = new ArrayList<>();
+                                WidgetsModel.queryWidgetsAndShortcuts(context, null, widgets);
+                                recordStageTime("queryWidgets", start);
+                                return widgets;
+                            }
+                        });
+            }
+        }
+
+        private void cancelBackgroundStages() {
+            if (mPendingActivityLists != null) {
+                for (Future<?> future : mPendingActivityLists.values()) {
+                    future.cancel(true);
+                }
+            }
+            if (mPendingDeepShortcuts != null) {
+                mPendingDeepShortcuts.cancel(true);
+            }
+            if (mPendingWidgets != null) {
+                mPendingWidgets.cancel(true);
+            }
+        }
+
+        /**
+         * Waits for the result of a background stage.
+         * @return the result, or null if there is no such stage or if it failed, in which case
+         *         the caller should do the work itself.
+         */
+        private <T> T getStageResult(@Nullable Future<T> future) throws CancellationException {
+            if (future == null) {
+                return null;
+            }
+            while (true) {
+                verifyNotStopped();
+                try {
+                    return future.get(LOADER_STAGE_POLL_MS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException | InterruptedException e) {
+                    // Check again if we were stopped
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                    return null;
+                }
+            }
+        }
+
+        @Thunk void recordStageTime(String stage, long startTime) {
+            long duration = SystemClock.uptimeMillis() - startTime;
+            synchronized (mStageTimes) {
+                Long previous = mStageTimes.get(stage);
+                // Stages running once per profile are added up.
+                mStageTimes.put(stage, previous == null ? duration : previous + duration);
+            }
+        }
+
         /**
          * Gets the callbacks object.  If we've been stopped, or if the launcher object
          * has somehow been garbage collected, return null instead.  Pass in the Callbacks
@@ -839,8 +1138,8 @@ public class LauncherModel extends BroadcastReceiver
                 sBgDataModel.workspaceScreens.addAll(loadWorkspaceScreensDb(mContext));
 
                 Map<ShortcutKey, ShortcutInfoCompat> shortcutKeyToPinnedShortcuts = new HashMap<>();
-                final LoaderCursor c = new LoaderCursor(contentResolver.query(
-                        LauncherSettings.Favorites.CONTENT_URI, null, null, null, null), mApp);
+                final LoaderCursor c = new LoaderCursor(
+                        mApp.getFavoritesDao().queryFavorites(LoaderCursor.PROJECTION), mApp);
 
                 HashMap<ComponentKey, AppWidgetProviderInfo> widgetProvidersMap = null;
 
@@ -887,6 +1186,10 @@ public class LauncherModel extends BroadcastReceiver
                         unlockedUsers.put(serialNo, userUnlocked);
                     }
 
+                    // Load the cached icons of all the app items at once, instead of querying
+                    // the icon DB for every row.
+                    prefetchWorkspaceIcons(allUsers);
+
                     ShortcutInfo info;
                     LauncherAppWidgetInfo appWidgetInfo;
                     Intent intent;
@@ -1243,9 +1546,10 @@ public class LauncherModel extends BroadcastReceiver
                                     LauncherSettings.Settings.METHOD_DELETE_EMPTY_FOLDERS)
                             .getSerializable(LauncherSettings.Settings.EXTRA_VALUE);
                     for (long folderId : deletedFolderIds) {
-                        sBgDataModel.workspaceItems.remove(sBgDataModel.folders.get(folderId));
-                        sBgDataModel.folders.remove(folderId);
-                        sBgDataModel.itemsIdMap.remove(folderId);
+                        FolderInfo folder = sBgDataModel.folders.get(folderId);
+                        if (folder != null) {
+                            sBgDataModel.removeItem(context, folder);
+                        }
                     }
 
                     // Remove any ghost widgets
@@ -1292,12 +1596,10 @@ public class LauncherModel extends BroadcastReceiver
                 }
 
                 // Remove any empty screens
-                ArrayList<Long> unusedScreens = new ArrayList<>(sBgDataModel.workspaceScreens);
-                for (ItemInfo item: sBgDataModel.itemsIdMap) {
-                    long screenId = item.screenId;
-                    if (item.container == LauncherSettings.Favorites.CONTAINER_DESKTOP &&
-                            unusedScreens.contains(screenId)) {
-                        unusedScreens.remove(screenId);
+                ArrayList<Long> unusedScreens = new ArrayList<>();
+                for (Long screenId : sBgDataModel.workspaceScreens) {
+                    if (!sBgDataModel.hasItemsOnScreen(screenId)) {
+                        unusedScreens.add(screenId);
                     }
                 }
 
@@ -1464,6 +1766,17 @@ public class LauncherModel extends BroadcastReceiver
          * Binds all loaded data to actual views on the main thread.
          */
         private void bindWorkspace(int synchronizeBindPage) {
+            bindWorkspace(synchronizeBindPage, false /* deferCompletion */);
+        }
+
+        /**
+         * Binds all loaded data to actual views on the main thread.
+         * @param deferCompletion whether to hold back the end of the bind, which unlocks the
+         *        workspace, until {@link PendingBindCompletion#onVerified} is called.
+         * @return the pending end of the bind if it is deferred, null otherwise.
+         */
+        private PendingBindCompletion bindWorkspace(int synchronizeBindPage,
+                boolean deferCompletion) {
             final long t = SystemClock.uptimeMillis();
             Runnable r;
 
@@ -1472,7 +1785,7 @@ public class LauncherModel extends BroadcastReceiver
             final Callbacks oldCallbacks = mCallbacks.get();
             if (oldCallbacks == null) {
                 // This launcher has exited and nobody bothered to tell us.  Just bail.
-                return;
+                return null;
             }
 
             // Save a copy of all the bg-thread collections
@@ -1518,6 +1831,7 @@ public class LauncherModel extends BroadcastReceiver
                 public void run() {
                     Callbacks callbacks = tryGetCallbacks(oldCallbacks);
                     if (callbacks != null) {
+                        mWorkspaceBoundCallbacks = null;
                         callbacks.clearPendingBinds();
                         callbacks.startBinding();
                     }
@@ -1553,11 +1867,42 @@ public class LauncherModel extends BroadcastReceiver
             bindWorkspaceItems(oldCallbacks, otherWorkspaceItems, otherAppWidgets, deferredExecutor);
 
             // Tell the workspace that we're done binding items
-            r = new Runnable() {
+            r = newFinishBindingRunnable(oldCallbacks);
+            PendingBindCompletion completion = null;
+            if (deferCompletion) {
+                completion = new PendingBindCompletion(r);
+                deferredExecutor.execute(completion);
+            } else {
+                deferredExecutor.execute(r);
+            }
+
+            if (validFirstPage) {
+                r = new Runnable() {
+                    public void run() {
+                        Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                        if (callbacks != null) {
+                            // We are loading synchronously, which means, some of the pages will be
+                            // bound after first draw. Inform the callbacks that page binding is
+                            // not complete, and schedule the remaining pages.
+                            if (currentScreen != PagedView.INVALID_RESTORE_PAGE) {
+                                callbacks.onPageBoundSynchronously(currentScreen);
+                            }
+                            callbacks.executeOnNextDraw((ViewOnDrawExecutor) deferredExecutor);
+                        }
+                    }
+                };
+                runOnMainThread(r);
+            }
+            return completion;
+        }
+
+        private Runnable newFinishBindingRunnable(final Callbacks oldCallbacks) {
+            return new Runnable() {
                 public void run() {
                     Callbacks callbacks = tryGetCallbacks(oldCallbacks);
                     if (callbacks != null) {
                         callbacks.finishBindingItems();
+                        mWorkspaceBoundCallbacks = new WeakReference<>(callbacks);
                     }
 
                     mIsLoadingAndBindingWorkspace = false;
@@ -1573,46 +1918,142 @@ public class LauncherModel extends BroadcastReceiver
                     }
                 }
             };
-            deferredExecutor.execute(r);
+        }
 
-            if (validFirstPage) {
-                r = new Runnable() {
+        /**
+         * Returns true if the workspace of the current callbacks shows all the items of the
+         * model.
+         */
+        private boolean isWorkspaceBound() {
+            WeakReference<Callbacks> boundCallbacks = mWorkspaceBoundCallbacks;
+            Callbacks callbacks = mCallbacks == null ? null : mCallbacks.get();
+            return boundCallbacks != null && callbacks != null
+                    && boundCallbacks.get() == callbacks;
+        }
+
+        /**
+         * Binds the changes from {@param boundModel}, the items shown by the workspace, to the
+         * items which were just loaded, instead of binding the whole workspace again. The
+         * model keeps the bound objects of the items which did not move.
+         *
+         * @param pendingBind the pending end of the bind of {@param boundModel}, if any. The
+         *        changes are bound after all its pages.
+         * @return false if the changes can not be bound incrementally.
+         */
+        private boolean bindWorkspaceChanges(BgDataModel boundModel,
+                @Nullable PendingBindCompletion pendingBind) {
+            final Callbacks oldCallbacks = mCallbacks.get();
+            if (oldCallbacks == null) {
+                return false;
+            }
+            final ModelDiff diff;
+            synchronized (sBgDataModel) {
+                diff = ModelDiff.compute(boundModel, sBgDataModel);
+                if (diff == null) {
+                    return false;
+                }
+                diff.applyTo(sBgDataModel);
+            }
+            mLastWorkspaceDiffSize = diff.size();
+
+            Runnable bindChanges = null;
+            if (!diff.isEmpty()) {
+                bindChanges = new Runnable() {
+                    @Override
                     public void run() {
                         Callbacks callbacks = tryGetCallbacks(oldCallbacks);
-                        if (callbacks != null) {
-                            // We are loading synchronously, which means, some of the pages will be
-                            // bound after first draw. Inform the callbacks that page binding is
-                            // not complete, and schedule the remaining pages.
-                            if (currentScreen != PagedView.INVALID_RESTORE_PAGE) {
-                                callbacks.onPageBoundSynchronously(currentScreen);
-                            }
-                            callbacks.executeOnNextDraw((ViewOnDrawExecutor) deferredExecutor);
+                        if (callbacks == null) {
+                            return;
+                        }
+                        if (!diff.removed.isEmpty()) {
+                            callbacks.bindItemsRemoved(diff.removed);
+                        }
+                        if (!diff.updated.isEmpty()) {
+                            callbacks.bindShortcutsChanged(diff.updated,
+                                    new ArrayList<ShortcutInfo>(), Process.myUserHandle());
+                        }
+                        if (!diff.added.isEmpty()) {
+                            callbacks.bindItems(diff.added, 0, diff.added.size(), false);
+                        }
+                        for (LauncherAppWidgetInfo widget : diff.addedWidgets) {
+                            callbacks.bindAppWidget(widget);
                         }
                     }
                 };
-                runOnMainThread(r);
             }
+
+            if (pendingBind != null) {
+                pendingBind.complete(bindChanges);
+            } else {
+                if (bindChanges != null) {
+                    runOnMainThread(bindChanges);
+                }
+                runOnMainThread(newFinishBindingRunnable(oldCallbacks));
+            }
+            return true;
         }
 
-        private void updateIconCache() {
-            // Ignore packages which have a promise icon.
-            HashSet<String> packagesToIgnore = new HashSet<>();
-            synchronized (sBgDataModel) {
-                for (ItemInfo info : sBgDataModel.itemsIdMap) {
-                    if (info instanceof ShortcutInfo) {
-                        ShortcutInfo si = (ShortcutInfo) info;
-                        if (si.isPromise() && si.getTargetComponent() != null) {
-                            packagesToIgnore.add(si.getTargetComponent().getPackageName());
-                        }
-                    } else if (info instanceof LauncherAppWidgetInfo) {
-                        LauncherAppWidgetInfo lawi = (LauncherAppWidgetInfo) info;
-                        if (lawi.hasRestoreFlag(LauncherAppWidgetInfo.FLAG_PROVIDER_NOT_READY)) {
-                            packagesToIgnore.add(lawi.providerName.getPackageName());
-                        }
+        /**
+         * Runs the end of a workspace bind once all the pages are bound and the bound model is
+         * verified. The state is only accessed on the main thread.
+         */
+        private class PendingBindCompletion implements Runnable {
+            private final Runnable mCompletion;
+            private boolean mPagesBound;
+            private boolean mVerified;
+            private boolean mCancelled;
+            // Changes found by the verification, bound before the completion.
+            private Runnable mBindChanges;
+
+            PendingBindCompletion(Runnable completion) {
+                mCompletion = completion;
+            }
+
+            /**
+             * Called once all the pages are bound.
+             */
+            @Override
+            public void run() {
+                mPagesBound = true;
+                completeIfReady();
+            }
+
+            /**
+             * Called on the worker thread once the bound model was verified.
+             * @param bindChanges binds the changes found by the verification, if any.
+             */
+            void complete(@Nullable final Runnable bindChanges) {
+                runOnMainThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mVerified = true;
+                        mBindChanges = bindChanges;
+                        completeIfReady();
+                    }
+                });
+            }
+
+            /**
+             * Called on the worker thread when the workspace is bound again instead.
+             */
+            void cancel() {
+                runOnMainThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCancelled = true;
                     }
+                });
+            }
+
+            @Thunk void completeIfReady() {
+                if (mPagesBound && mVerified && !mCancelled) {
+                    mCancelled = true;
+                    if (mBindChanges != null) {
+                        mBindChanges.run();
+                    }
+                    mCompletion.run();
                 }
             }
-            mIconCache.updateDbIcons(packagesToIgnore);
         }
 
         private void onlyBindAllApps() {
@@ -1679,6 +2120,72 @@ public class LauncherModel extends BroadcastReceiver
             }
         }
 
+        /**
+         * Loads the icon cache entries for all the app items in the workspace in bulk. Items
+         * which will be displayed with a low-res icon are prefetched separately.
+         */
+        private void prefetchWorkspaceIcons(LongSparseArray<UserHandle> allUsers) {
+            ArrayList<ComponentKey> fullResKeys = new ArrayList<>();
+            ArrayList<ComponentKey> lowResKeys = new ArrayList<>();
+            // Read straight from the DB, like the main pass, instead of through the provider.
+            Cursor c = mApp.getFavoritesDao().queryFavorites(
+                    new String[] {
+                            LauncherSettings.Favorites.INTENT,
+                            LauncherSettings.Favorites.PROFILE_ID,
+                            LauncherSettings.Favorites.CONTAINER,
+                            LauncherSettings.Favorites.RANK },
+                    LauncherSettings.Favorites.ITEM_TYPE + " = ?",
+                    new String[] {
+                            Integer.toString(LauncherSettings.Favorites.ITEM_TYPE_APPLICATION) });
+            try {
+                while (!mStopped && c.moveToNext()) {
+                    UserHandle user = allUsers.get(c.getLong(1));
+                    if (user == null) {
+                        continue;
+                    }
+                    ComponentName cn = getComponentFromIntentUri(c.getString(0));
+                    if (cn == null) {
+                        continue;
+                    }
+                    long container = c.getLong(2);
+                    boolean useLowResIcon =
+                            container != LauncherSettings.Favorites.CONTAINER_DESKTOP
+                            && container != LauncherSettings.Favorites.CONTAINER_HOTSEAT
+                            && c.getInt(3) >= FolderIcon.NUM_ITEMS_IN_PREVIEW;
+                    if (useLowResIcon) {
+                        lowResKeys.add(new ComponentKey(cn, user));
+                    } else {
+                        fullResKeys.add(new ComponentKey(cn, user));
+                    }
+                }
+            } finally {
+                c.close();
+            }
+            mIconCache.prefetch(fullResKeys, false /* lowRes */);
+            mIconCache.prefetch(lowResKeys, true /* lowRes */);
+        }
+
+        /**
+         * Extracts the component of an intent serialized with {@link Intent#toUri(int)}, without
+         * parsing the whole intent. The main pass still parses the intent of every item, an item
+         * whose component is not found here is only not prefetched.
+         */
+        private ComponentName getComponentFromIntentUri(String uri) {
+            if (TextUtils.isEmpty(uri)) {
+                return null;
+            }
+            int start = uri.indexOf(";component=");
+            if (start < 0) {
+                return null;
+            }
+            start += ";component=".length();
+            int end = uri.indexOf(';', start);
+            if (end < 0) {
+                return null;
+            }
+            return ComponentName.unflattenFromString(Uri.decode(uri.substring(start, end)));
+        }
+
         private void loadAllApps() {
             final long loadTime = 0;
 
@@ -1693,9 +2200,12 @@ public class LauncherModel extends BroadcastReceiver
             // Clear the list of apps
             mBgAllAppsList.clear();
             for (UserHandle user : profiles) {
-                // Query for the set of apps
-                final long qiaTime = 0;
-                final List<LauncherActivityInfo> apps = mLauncherApps.getActivityList(null, user);
+                // Query for the set of apps, unless it was already done in the background
+                List<LauncherActivityInfo> apps = getStageResult(mPendingActivityLists == null
+                        ? null : mPendingActivityLists.get(user));
+                if (apps == null) {
+                    apps = queryActivityList(user);
+                }
 
                 // Fail if we don't have any apps
                 // TODO: Fix this. Only fail for the current user.
@@ -1703,6 +2213,7 @@ public class LauncherModel extends BroadcastReceiver
                     return;
                 }
                 boolean quietMode = mUserManager.isQuietModeEnabled(user);
+
                 // Create the ApplicationInfos
                 for (int i = 0; i < apps.size(); i++) {
                     LauncherActivityInfo app = apps.get(i);
@@ -1734,15 +2245,35 @@ public class LauncherModel extends BroadcastReceiver
             ManagedProfileHeuristic.processAllUsers(profiles, mContext);
         }
 
+        /**
+         * Queries the apps of a profile and prefetches their icons.
+         */
+        @Thunk List<LauncherActivityInfo> queryActivityList(UserHandle user) {
+            List<LauncherActivityInfo> apps = mLauncherApps.getActivityList(null, user);
+            if (apps != null && !apps.isEmpty()) {
+                ArrayList<ComponentKey> keys = new ArrayList<>(apps.size());
+                for (int i = 0; i < apps.size(); i++) {
+                    keys.add(new ComponentKey(apps.get(i).getComponentName(), user));
+                }
+                mIconCache.prefetch(keys, true /* lowRes */);
+            }
+            return apps;
+        }
+
         private void loadDeepShortcuts() {
             sBgDataModel.deepShortcutMap.clear();
             DeepShortcutManager shortcutManager = DeepShortcutManager.getInstance(mContext);
             mHasShortcutHostPermission = shortcutManager.hasHostPermission();
             if (mHasShortcutHostPermission) {
+                HashMap<UserHandle, List<ShortcutInfoCompat>> queried =
+                        getStageResult(mPendingDeepShortcuts);
                 for (UserHandle user : mUserManager.getUserProfiles()) {
                     if (mUserManager.isUserUnlocked(user)) {
                         List<ShortcutInfoCompat> shortcuts =
-                                shortcutManager.queryForAllShortcuts(user);
+                                queried == null ? null : queried.get(user);
+                        if (shortcuts == null) {
+                            shortcuts = shortcutManager.queryForAllShortcuts(user);
+                        }
                         sBgDataModel.updateDeepShortcutMap(null, user, shortcuts);
                     }
                 }
@@ -1860,6 +2391,7 @@ public class LauncherModel extends BroadcastReceiver
             public ShortcutInfo get() {
                 si.updateFromDeepShortcutInfo(info, mApp.getContext());
                 si.iconBitmap = LauncherIcons.createShortcutIcon(info, mApp.getContext());
+                si.iconColor = 0;
                 return si;
             }
         });
@@ -1896,6 +2428,15 @@ public class LauncherModel extends BroadcastReceiver
 
     public void refreshAndBindWidgetsAndShortcuts(final Callbacks callbacks,
             final boolean bindFirst, @Nullable final PackageUserKey packageUser) {
+        refreshAndBindWidgetsAndShortcuts(callbacks, bindFirst, packageUser, null);
+    }
+
+    /**
+     * @param queried the widgets and shortcuts if they were already queried, or null.
+     */
+    @Thunk void refreshAndBindWidgetsAndShortcuts(final Callbacks callbacks,
+            final boolean bindFirst, @Nullable final PackageUserKey packageUser,
+            @Nullable final ArrayList<WidgetItem> queried) {
         runOnWorkerThread(new Runnable() {
             @Override
             public void run() {
@@ -1903,7 +2444,7 @@ public class LauncherModel extends BroadcastReceiver
                     bindWidgetsModel(callbacks);
                 }
                 ArrayList<WidgetItem> widgets = mBgWidgetsModel.update(
-                        mApp.getContext(), packageUser);
+                        mApp.getContext(), packageUser, queried);
                 bindWidgetsModel(callbacks);
 
                 // update the Widget entries inside DB on the worker thread.
@@ -1926,6 +2467,19 @@ public class LauncherModel extends BroadcastReceiver
             }
         }
         sBgDataModel.dump(prefix, fd, writer, args);
+        LinkedHashMap<String, Long> stageTimes = mLastLoaderStageTimes;
+        if (stageTimes != null) {
+            writer.println(prefix + "Loader stage times (ms): " + stageTimes);
+        }
+        if (mLastSnapshotResult != null) {
+            writer.println(prefix + "Model snapshot: " + mLastSnapshotResult);
+        }
+        if (mLastWorkspaceDiffSize >= 0) {
+            writer.println(prefix + "Workspace changes bound: " + mLastWorkspaceDiffSize);
+        }
+        ModelWriter.dumpStats(prefix, writer);
+        mIconCache.dump(prefix, writer);
+        mApp.getWidgetCache().dump(prefix, writer);
     }
 
     public Callbacks getCallback() {
@@ -1955,4 +2509,20 @@ public class LauncherModel extends BroadcastReceiver
     public static Looper getWorkerLooper() {
         return sWorkerThread.getLooper();
     }
+
+    private static class LoaderStageThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NonNull final Runnable r) {
+            return new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "launcher-loader-stage-" + mCount.incrementAndGet());
+        }
+    }
 }
@@ -54,6 +54,7 @@ public class PendingAppWidgetHostView extends LauncherAppWidgetHostView
     private Launcher mLauncher;
 
     private Bitmap mIcon;
+    private int mIconColor;
 
     private Drawable mCenterDrawable;
     private Drawable mSettingIconDrawable;
@@ -129,6 +130,7 @@ public class PendingAppWidgetHostView extends LauncherAppWidgetHostView
             return;
         }
         mIcon = icon;
+        mIconColor = info.iconColor;
         if (mCenterDrawable != null) {
             mCenterDrawable.setCallback(null);
             mCenterDrawable = null;
@@ -151,7 +153,7 @@ public class PendingAppWidgetHostView extends LauncherAppWidgetHostView
                 updateSettingColor();
             } else {
                 mCenterDrawable = DrawableFactory.get(getContext())
-                        .newPendingIcon(mIcon, getContext());
+                        .newPendingIcon(info, getContext());
                 mCenterDrawable.setCallback(this);
                 mSettingIconDrawable = null;
                 applyState();
@@ -162,7 +164,7 @@ public class PendingAppWidgetHostView extends LauncherAppWidgetHostView
     }
 
     private void updateSettingColor() {
-        int color = IconColorExtractor.get(getContext(), mIcon);
+        int color = mIconColor != 0 ? mIconColor : IconColorExtractor.get(getContext(), mIcon);
         // Make the dominant color bright.
         float[] hsv = new float[3];
         Color.colorToHSV(color, hsv);
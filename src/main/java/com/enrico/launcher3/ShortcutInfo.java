@@ -216,6 +216,24 @@ public class ShortcutInfo extends ItemInfoWithIcon {
         disabledMessage = shortcutInfo.getDisabledMessage();
     }
 
+    /**
+     * Updates the title, icon and state of this item from {@param info}, which was loaded for
+     * the same item.
+     */
+    public void updatePresentationFrom(ShortcutInfo info) {
+        title = info.title;
+        contentDescription = info.contentDescription;
+        intent = info.intent;
+        iconResource = info.iconResource;
+        iconBitmap = info.iconBitmap;
+        usingLowResIcon = info.usingLowResIcon;
+        iconColor = info.iconColor;
+        isDisabled = info.isDisabled;
+        disabledMessage = info.disabledMessage;
+        status = info.status;
+        mInstallProgress = info.mInstallProgress;
+    }
+
     /** Returns the ShortcutInfo id associated with the deep shortcut. */
     public String getDeepShortcutId() {
         return itemType == Favorites.ITEM_TYPE_DEEP_SHORTCUT ?
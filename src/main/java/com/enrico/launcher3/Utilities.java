@@ -436,7 +436,7 @@ public final class Utilities {
         return true;
     }
 
-    static void closeSilently(Closeable c) {
+    public static void closeSilently(Closeable c) {
         if (c != null) {
             try {
                 c.close();
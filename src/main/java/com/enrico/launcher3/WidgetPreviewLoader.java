@@ -43,6 +43,7 @@ import com.enrico.launcher3.util.SQLiteCacheHelper;
 import com.enrico.launcher3.util.Thunk;
 import com.enrico.launcher3.widget.WidgetCell;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -150,6 +151,17 @@ public class WidgetPreviewLoader {
         mDb.insertOrReplace(values);
     }
 
+    /**
+     * Writes the previews waiting to be persisted to the DB, on the worker thread.
+     */
+    public void flushPendingWrites() {
+        mDb.flushAsync();
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        mDb.dump(prefix, writer);
+    }
+
     public void removePackage(String packageName, UserHandle user) {
         removePackage(packageName, user, mUserManager.getSerialNumberForUser(user));
     }
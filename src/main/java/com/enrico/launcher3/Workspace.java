@@ -3799,6 +3799,29 @@ public class Workspace extends PagedView
         stripEmptyScreens();
     }
 
+    /**
+     * Removes the views of {@param items}, which are on the workspace or hotseat. The screens
+     * are kept, even if they become empty.
+     */
+    void removeItemViews(final HashSet<ItemInfo> items) {
+        final ArrayList<View> views = new ArrayList<>();
+        mapOverItems(MAP_NO_RECURSE, new ItemOperator() {
+            @Override
+            public boolean evaluate(ItemInfo info, View v) {
+                if (items.contains(info)) {
+                    views.add(v);
+                }
+                return false;
+            }
+        });
+        for (View v : views) {
+            if (v instanceof FolderIcon) {
+                ((FolderIcon) v).removeListeners();
+            }
+            removeWorkspaceItem(v);
+        }
+    }
+
     public interface ItemOperator {
         /**
          * Process the next itemInfo, possibly with side-effect on the next item.
@@ -54,6 +54,7 @@ import com.enrico.launcher3.keyboard.FocusedItemDecorator;
 import com.enrico.launcher3.util.ComponentKey;
 import com.enrico.launcher3.util.PackageUserKey;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
@@ -161,6 +162,12 @@ public class AllAppsContainerView extends BaseContainerView implements DragSourc
         mAdapter.setSearchController(mSearchBarController);
     }
 
+    public void dump(String prefix, PrintWriter writer) {
+        if (mSearchBarController != null) {
+            mSearchBarController.dump(prefix, writer);
+        }
+    }
+
     /**
      * Scrolls this list view to the top.
      */
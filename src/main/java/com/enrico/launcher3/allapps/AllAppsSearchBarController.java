@@ -34,6 +34,7 @@ import com.enrico.launcher3.Launcher;
 import com.enrico.launcher3.Utilities;
 import com.enrico.launcher3.util.ComponentKey;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 
 /**
@@ -181,6 +182,12 @@ public abstract class AllAppsSearchBarController
         return mInput.isFocused();
     }
 
+    public void dump(String prefix, PrintWriter writer) {
+        if (mSearchAlgorithm != null) {
+            mSearchAlgorithm.dump(prefix, writer);
+        }
+    }
+
     /**
      * Creates a new market search intent.
      */
@@ -126,6 +126,8 @@ class AlphabeticalAppsList {
     // The set of apps from the system
     private final List<AppInfo> mApps = new ArrayList<>();
     private final HashMap<ComponentKey, AppInfo> mComponentToAppMap = new HashMap<>();
+    // The search index of mApps
+    private final AppSearchIndex mSearchIndex = new AppSearchIndex();
 
     // The set of filtered apps with the current filter
     private final List<AppInfo> mFilteredApps = new ArrayList<>();
@@ -172,6 +174,13 @@ class AlphabeticalAppsList {
         return mApps;
     }
 
+    /**
+     * Returns the search index of all the apps.
+     */
+    AppSearchIndex getSearchIndex() {
+        return mSearchIndex;
+    }
+
     /**
      * Returns fast scroller sections of all the current filtered applications.
      */
@@ -219,7 +228,7 @@ class AlphabeticalAppsList {
     }
 
     /**
-     * Sets the sorted list of filtered components.
+     * Sets the sorted list of filtered components. The apps are shown in the order of the list.
      */
     boolean setOrderedFilter(ArrayList<ComponentKey> f) {
         if (mSearchResults != f) {
@@ -236,7 +245,12 @@ class AlphabeticalAppsList {
      */
     public void setApps(List<AppInfo> apps) {
         mComponentToAppMap.clear();
-        addApps(apps);
+        for (AppInfo app : apps) {
+            mComponentToAppMap.put(app.toComponentKey(), app);
+        }
+        sortApps();
+        mSearchIndex.setApps(apps, mApps);
+        updateAdapterItems();
     }
 
     /**
@@ -253,7 +267,9 @@ class AlphabeticalAppsList {
         for (AppInfo app : apps) {
             mComponentToAppMap.put(app.toComponentKey(), app);
         }
-        onAppsUpdated();
+        sortApps();
+        mSearchIndex.addOrUpdateApps(apps, mApps);
+        updateAdapterItems();
     }
 
     /**
@@ -263,13 +279,16 @@ class AlphabeticalAppsList {
         for (AppInfo app : apps) {
             mComponentToAppMap.remove(app.toComponentKey());
         }
-        onAppsUpdated();
+        sortApps();
+        mSearchIndex.removeApps(apps, mApps);
+        updateAdapterItems();
     }
 
     /**
-     * Updates internals when the set of apps are updated.
+     * Sorts mApps when the set of apps are updated. The search index and the adapter items are
+     * updated from the sorted apps by the caller.
      */
-    private void onAppsUpdated() {
+    private void sortApps() {
         // Sort the list of apps
         mApps.clear();
         mApps.addAll(mComponentToAppMap.values());
@@ -308,9 +327,6 @@ class AlphabeticalAppsList {
                 getAndUpdateCachedSectionName(info.title);
             }
         }
-
-        // Recompose the set of adapter items from the current set of apps
-        updateAdapterItems();
     }
 
     /**
@@ -441,8 +457,6 @@ class AlphabeticalAppsList {
                 result.add(match);
             }
         }
-        Collections.sort(result, mAppNameComparator);
-
         return result;
     }
 
@@ -0,0 +1,549 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enrico.launcher3.allapps;
+
+import android.text.TextUtils;
+
+import com.enrico.launcher3.AppInfo;
+import com.enrico.launcher3.util.ComponentKey;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Prefix index of the app titles, used by {@link DefaultAppSearchAlgorithm}.
+ *
+ * Every word boundary of a title (see {@link #isBreak(int, int, int)}) starts a token, which is
+ * the case folded suffix of the title from that point. The tokens of all the apps are kept in a
+ * single sorted array, so the apps matching a query are a contiguous range of that array. The
+ * range is narrowed one character at a time and kept for every prefix of the last query, so that
+ * typing or deleting a character only searches within the range of the previous query.
+ *
+ * In scored mode, the matches are ranked by how well they match (see {@link #SCORE_PREFIX} and
+ * below), and close matches are included too: words at one edit of the query, and words whose
+ * initials match the query.
+ *
+ * The titles are tokenized once, when the apps are added or updated. The index is updated on the
+ * UI thread and searched on the search thread, so all accesses are synchronized. Each update
+ * changes the tokens and the order of the results in a single call, so that a search never sees
+ * the tokens of an update with the order of the previous one.
+ */
+class AppSearchIndex {
+
+    // The title starts with the query.
+    private static final int SCORE_PREFIX = 4;
+    // A word of the title starts with the query.
+    private static final int SCORE_WORD = 3;
+    // The initials of consecutive words of the title match the query, eg. "gm" for
+    // "Google Maps".
+    private static final int SCORE_INITIALS = 2;
+    // A word of the title starts with the query, with one typo.
+    private static final int SCORE_FUZZY = 1;
+    private static final int MAX_SCORE = SCORE_PREFIX;
+
+    private static final int MIN_INITIALS_QUERY_LENGTH = 2;
+    private static final int MIN_FUZZY_QUERY_LENGTH = 3;
+
+    /**
+     * An indexed app.
+     */
+    private static class Entry {
+        final ComponentKey key;
+        final CharSequence title;
+        // The case folded title
+        final char[] chars;
+        // The start of each word in the title
+        final int[] starts;
+        // The first character of each word in the title
+        final char[] initials;
+        // Position of the entry in the sorted list of apps, or -1 if it is not in the list
+        int rank = -1;
+        // The id of the last search which matched this entry, and its score
+        int matchedSearch;
+        int score;
+        boolean removed;
+
+        Entry(ComponentKey key, CharSequence title) {
+            this.key = key;
+            this.title = title;
+            String str = title == null ? "" : title.toString();
+            chars = new char[str.length()];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = fold(str.charAt(i));
+            }
+
+            int length = str.length();
+            int[] breaks = new int[length];
+            int count = 0;
+            int lastType;
+            int thisType = Character.UNASSIGNED;
+            int nextType = length > 0 ? Character.getType(str.codePointAt(0))
+                    : Character.UNASSIGNED;
+            for (int i = 0; i < length; i++) {
+                lastType = thisType;
+                thisType = nextType;
+                nextType = i < (length - 1) ?
+                        Character.getType(str.codePointAt(i + 1)) : Character.UNASSIGNED;
+                if (isBreak(thisType, lastType, nextType)) {
+                    breaks[count++] = i;
+                }
+            }
+            starts = Arrays.copyOf(breaks, count);
+            initials = new char[count];
+            for (int i = 0; i < count; i++) {
+                initials[i] = chars[starts[i]];
+            }
+        }
+    }
+
+    private final HashMap<ComponentKey, Entry> mEntries = new HashMap<>();
+
+    // The sorted tokens, stored as the entry and the start of the token in its title.
+    private Entry[] mTokenEntries = new Entry[0];
+    private int[] mTokenStarts = new int[0];
+    private int mTokenCount;
+
+    private Entry[] mRankedEntries = new Entry[0];
+    private Entry[] mMatchedEntries = new Entry[0];
+    private int[] mMatchedRanks = new int[0];
+    private int mSearchId;
+
+    // The last query, and the range of tokens matching each of its prefixes: the tokens matching
+    // the first i characters of the query are [mRangeStarts[i], mRangeEnds[i]).
+    private char[] mLastQuery = new char[16];
+    private int[] mRangeStarts = new int[17];
+    private int[] mRangeEnds = new int[17];
+    private int mLastQueryLength;
+
+    /**
+     * Replaces the indexed apps. Apps whose title did not change are not tokenized again.
+     * @param sortedApps all the apps, in the order the search results are returned.
+     */
+    synchronized void setApps(List<AppInfo> apps, List<AppInfo> sortedApps) {
+        HashSet<ComponentKey> keys = new HashSet<>();
+        for (AppInfo app : apps) {
+            keys.add(app.toComponentKey());
+        }
+        boolean changed = false;
+        for (Entry entry : mEntries.values()) {
+            if (!keys.contains(entry.key)) {
+                entry.removed = true;
+                changed = true;
+            }
+        }
+        if (changed) {
+            mEntries.keySet().retainAll(keys);
+        }
+        addOrUpdateApps(apps, changed);
+        setOrder(sortedApps);
+    }
+
+    /**
+     * Adds new apps to the index, or updates the title of existing ones.
+     * @param sortedApps all the apps, in the order the search results are returned.
+     */
+    synchronized void addOrUpdateApps(List<AppInfo> apps, List<AppInfo> sortedApps) {
+        addOrUpdateApps(apps, false);
+        setOrder(sortedApps);
+    }
+
+    private void addOrUpdateApps(List<AppInfo> apps, boolean changed) {
+        ArrayList<Entry> added = new ArrayList<>();
+        for (AppInfo app : apps) {
+            ComponentKey key = app.toComponentKey();
+            Entry existing = mEntries.get(key);
+            if (existing != null) {
+                if (TextUtils.equals(existing.title, app.title)) {
+                    continue;
+                }
+                existing.removed = true;
+            }
+            Entry entry = new Entry(key, app.title);
+            mEntries.put(key, entry);
+            added.add(entry);
+        }
+        if (changed || !added.isEmpty()) {
+            mergeTokens(added);
+        }
+    }
+
+    /**
+     * Removes some apps from the index.
+     * @param sortedApps all the remaining apps, in the order the search results are returned.
+     */
+    synchronized void removeApps(List<AppInfo> apps, List<AppInfo> sortedApps) {
+        boolean changed = false;
+        for (AppInfo app : apps) {
+            Entry entry = mEntries.remove(app.toComponentKey());
+            if (entry != null) {
+                entry.removed = true;
+                changed = true;
+            }
+        }
+        if (changed) {
+            mergeTokens(Collections.<Entry>emptyList());
+        }
+        setOrder(sortedApps);
+    }
+
+    /**
+     * Sets the order in which the search results are returned.
+     */
+    private void setOrder(List<AppInfo> sortedApps) {
+        int count = sortedApps.size();
+        if (mRankedEntries.length != count) {
+            mRankedEntries = new Entry[count];
+        }
+        // Every indexed app can match once.
+        int matchCapacity = Math.max(count, mEntries.size());
+        if (mMatchedEntries.length != matchCapacity) {
+            mMatchedEntries = new Entry[matchCapacity];
+            mMatchedRanks = new int[matchCapacity];
+        }
+        for (Entry entry : mEntries.values()) {
+            entry.rank = -1;
+        }
+        for (int i = 0; i < count; i++) {
+            Entry entry = mEntries.get(sortedApps.get(i).toComponentKey());
+            if (entry != null) {
+                entry.rank = i;
+            }
+            mRankedEntries[i] = entry;
+        }
+    }
+
+    /**
+     * Returns the apps having a word starting with {@param query}. If {@param scored} is true,
+     * close matches are included and the apps are ordered by score, otherwise the apps are in
+     * the order of the sorted apps of the last update.
+     */
+    synchronized ArrayList<ComponentKey> search(String query, boolean scored) {
+        int length = query.length();
+        if (length == 0 || mTokenCount == 0) {
+            mLastQueryLength = 0;
+            return new ArrayList<>();
+        }
+        ensureQueryCapacity(length);
+        findRange(query);
+
+        // An app can match at several words, only count it once.
+        int searchId = ++mSearchId;
+        int matchCount = 0;
+        for (int i = mRangeStarts[length], end = mRangeEnds[length]; i < end; i++) {
+            Entry entry = mTokenEntries[i];
+            if (entry.rank < 0) {
+                continue;
+            }
+            int score = mTokenStarts[i] == 0 ? SCORE_PREFIX : SCORE_WORD;
+            if (entry.matchedSearch != searchId) {
+                entry.matchedSearch = searchId;
+                entry.score = score;
+                mMatchedEntries[matchCount++] = entry;
+            } else if (score > entry.score) {
+                entry.score = score;
+            }
+        }
+        if (scored && length >= MIN_INITIALS_QUERY_LENGTH) {
+            for (Entry entry : mRankedEntries) {
+                if (entry == null || entry.matchedSearch == searchId) {
+                    continue;
+                }
+                int score = matchesInitials(entry, length) ? SCORE_INITIALS
+                        : (length >= MIN_FUZZY_QUERY_LENGTH && matchesWithOneEdit(entry, length))
+                        ? SCORE_FUZZY : 0;
+                if (score > 0) {
+                    entry.matchedSearch = searchId;
+                    entry.score = score;
+                    mMatchedEntries[matchCount++] = entry;
+                }
+            }
+        }
+
+        // Sort by score first if needed, then by rank.
+        int rankCount = mRankedEntries.length;
+        for (int i = 0; i < matchCount; i++) {
+            Entry entry = mMatchedEntries[i];
+            mMatchedRanks[i] = scored
+                    ? (MAX_SCORE - entry.score) * rankCount + entry.rank : entry.rank;
+        }
+        Arrays.sort(mMatchedRanks, 0, matchCount);
+
+        ArrayList<ComponentKey> result = new ArrayList<>(matchCount);
+        for (int i = 0; i < matchCount; i++) {
+            result.add(mRankedEntries[mMatchedRanks[i] % rankCount].key);
+        }
+        return result;
+    }
+
+    /**
+     * Updates the token ranges for {@param query}, starting from the prefix it shares with the
+     * last query.
+     */
+    private void findRange(String query) {
+        int length = query.length();
+
+        // Reuse the ranges of the prefix shared with the last query.
+        int common = 0;
+        int limit = Math.min(length, mLastQueryLength);
+        while (common < limit && mLastQuery[common] == fold(query.charAt(common))) {
+            common++;
+        }
+        for (int i = common; i < length; i++) {
+            char c = fold(query.charAt(i));
+            mLastQuery[i] = c;
+            int start = mRangeStarts[i];
+            int end = mRangeEnds[i];
+            mRangeStarts[i + 1] = findFirst(start, end, i, c);
+            mRangeEnds[i + 1] = findFirst(start, end, i, c + 1);
+        }
+        mLastQueryLength = length;
+    }
+
+    /**
+     * Returns true if the initials of consecutive words of the entry match the first
+     * {@param length} characters of the last query.
+     */
+    private boolean matchesInitials(Entry entry, int length) {
+        char[] initials = entry.initials;
+        for (int start = 0, end = initials.length - length; start <= end; start++) {
+            int i = 0;
+            while (i < length && initials[start + i] == mLastQuery[i]) {
+                i++;
+            }
+            if (i == length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if a word of the entry starts with the first {@param length} characters of
+     * the last query, allowing one substitution, insertion, deletion or transposition.
+     */
+    private boolean matchesWithOneEdit(Entry entry, int length) {
+        char[] chars = entry.chars;
+        for (int start : entry.starts) {
+            int available = chars.length - start;
+            // The word prefix can be one character longer or shorter than the query.
+            for (int wordLength = length - 1; wordLength <= length + 1; wordLength++) {
+                if (wordLength <= available
+                        && isOneEdit(chars, start, wordLength, mLastQuery, length)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isOneEdit(char[] a, int aStart, int aLength, char[] b, int bLength) {
+        int i = 0;
+        int j = 0;
+        int edits = 0;
+        while (i < aLength && j < bLength) {
+            char ac = a[aStart + i];
+            char bc = b[j];
+            if (ac == bc) {
+                i++;
+                j++;
+                continue;
+            }
+            if (++edits > 1) {
+                return false;
+            }
+            if (aLength == bLength) {
+                if (i + 1 < aLength && a[aStart + i + 1] == bc && b[j + 1] == ac) {
+                    // Transposition
+                    i += 2;
+                    j += 2;
+                } else {
+                    i++;
+                    j++;
+                }
+            } else if (aLength > bLength) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        edits += (aLength - i) + (bLength - j);
+        return edits <= 1;
+    }
+
+    /**
+     * Returns the first token in [start, end) whose character at {@param offset} is not less
+     * than {@param c}. All the tokens in the range must share the first {@param offset}
+     * characters, and tokens which end before {@param offset} sort first.
+     */
+    private int findFirst(int start, int end, int offset, int c) {
+        while (start < end) {
+            int mid = (start + end) >>> 1;
+            if (charAt(mid, offset) < c) {
+                start = mid + 1;
+            } else {
+                end = mid;
+            }
+        }
+        return start;
+    }
+
+    private int charAt(int token, int offset) {
+        char[] chars = mTokenEntries[token].chars;
+        int index = mTokenStarts[token] + offset;
+        return index < chars.length ? chars[index] : -1;
+    }
+
+    private void ensureQueryCapacity(int length) {
+        if (mLastQuery.length < length) {
+            int capacity = Math.max(length, mLastQuery.length * 2);
+            mLastQuery = Arrays.copyOf(mLastQuery, capacity);
+            mRangeStarts = Arrays.copyOf(mRangeStarts, capacity + 1);
+            mRangeEnds = Arrays.copyOf(mRangeEnds, capacity + 1);
+        }
+    }
+
+    /**
+     * Drops the tokens of the removed entries and merges the tokens of {@param added}.
+     */
+    private void mergeTokens(List<Entry> added) {
+        // Tokenize and sort the new entries.
+        final ArrayList<Entry> newEntries = new ArrayList<>();
+        final ArrayList<Integer> newStarts = new ArrayList<>();
+        for (Entry entry : added) {
+            if (entry.removed) {
+                // Replaced by a later app in the same update
+                continue;
+            }
+            for (int start : entry.starts) {
+                newEntries.add(entry);
+                newStarts.add(start);
+            }
+        }
+        Integer[] order = new Integer[newEntries.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return compareTokens(newEntries.get(lhs), newStarts.get(lhs),
+                        newEntries.get(rhs), newStarts.get(rhs));
+            }
+        });
+
+        // Merge them with the existing tokens which are still valid.
+        int capacity = mTokenCount + order.length;
+        Entry[] entries = new Entry[capacity];
+        int[] starts = new int[capacity];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < mTokenCount || j < order.length) {
+            if (i < mTokenCount && mTokenEntries[i].removed) {
+                i++;
+                continue;
+            }
+            boolean takeExisting = j == order.length || (i < mTokenCount
+                    && compareTokens(mTokenEntries[i], mTokenStarts[i],
+                            newEntries.get(order[j]), newStarts.get(order[j])) <= 0);
+            if (takeExisting) {
+                entries[count] = mTokenEntries[i];
+                starts[count] = mTokenStarts[i];
+                i++;
+            } else {
+                entries[count] = newEntries.get(order[j]);
+                starts[count] = newStarts.get(order[j]);
+                j++;
+            }
+            count++;
+        }
+        mTokenEntries = entries;
+        mTokenStarts = starts;
+        mTokenCount = count;
+
+        // The ranges of the last query are no longer valid.
+        mLastQueryLength = 0;
+        mRangeStarts[0] = 0;
+        mRangeEnds[0] = mTokenCount;
+    }
+
+    private static int compareTokens(Entry lhs, int lhsStart, Entry rhs, int rhsStart) {
+        char[] l = lhs.chars;
+        char[] r = rhs.chars;
+        int lhsLength = l.length - lhsStart;
+        int rhsLength = r.length - rhsStart;
+        int length = Math.min(lhsLength, rhsLength);
+        for (int k = 0; k < length; k++) {
+            char lc = l[lhsStart + k];
+            char rc = r[rhsStart + k];
+            if (lc != rc) {
+                return lc - rc;
+            }
+        }
+        return lhsLength - rhsLength;
+    }
+
+    /**
+     * Folds the case of a character the same way as {@link String#equalsIgnoreCase(String)}.
+     */
+    private static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    /**
+     * Returns true if the current point should be a break point. Following cases
+     * are considered as break points:
+     *      1) Any non space character after a space character
+     *      2) Any digit after a non-digit character
+     *      3) Any capital character after a digit or small character
+     *      4) Any capital character before a small character
+     */
+    private static boolean isBreak(int thisType, int prevType, int nextType) {
+        switch (thisType) {
+            case Character.UPPERCASE_LETTER:
+                if (nextType == Character.UPPERCASE_LETTER) {
+                    return true;
+                }
+                // Follow through
+            case Character.TITLECASE_LETTER:
+                // Break point if previous was not a upper case
+                return prevType != Character.UPPERCASE_LETTER;
+            case Character.LOWERCASE_LETTER:
+                // Break point if previous was not a letter.
+                return prevType > Character.OTHER_LETTER || prevType <= Character.UNASSIGNED;
+            case Character.DECIMAL_DIGIT_NUMBER:
+            case Character.LETTER_NUMBER:
+            case Character.OTHER_NUMBER:
+                // Break point if previous was not a number
+                return !(prevType == Character.DECIMAL_DIGIT_NUMBER
+                        || prevType == Character.LETTER_NUMBER
+                        || prevType == Character.OTHER_NUMBER);
+            case Character.MATH_SYMBOL:
+            case Character.CURRENCY_SYMBOL:
+            case Character.OTHER_PUNCTUATION:
+            case Character.DASH_PUNCTUATION:
+                // Always a break point for a symbol
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -15,122 +15,110 @@
  */
 package com.enrico.launcher3.allapps;
 
+import android.content.Context;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
 
-import com.enrico.launcher3.AppInfo;
+import com.enrico.launcher3.settings.PreferencesState;
 import com.enrico.launcher3.util.ComponentKey;
+import com.enrico.launcher3.util.Thunk;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.List;
 
 /**
- * The default search implementation.
+ * The default search implementation. The search runs on a dedicated thread, and only the results
+ * of the latest query are delivered: a query which is replaced before it starts is dropped, and
+ * the results of a query which is replaced while it runs are ignored.
+ *
+ * When the smart search preference is enabled, the results are ordered by relevance and include
+ * close matches, see {@link AppSearchIndex}.
  */
 class DefaultAppSearchAlgorithm {
 
-    private final List<AppInfo> mApps;
-    private final Handler mResultHandler;
+    private static final HandlerThread sSearchThread =
+            new HandlerThread("launcher-search", Process.THREAD_PRIORITY_FOREGROUND);
+    static {
+        sSearchThread.start();
+    }
 
-    DefaultAppSearchAlgorithm(List<AppInfo> apps) {
-        mApps = apps;
+    private final Context mContext;
+    @Thunk final AppSearchIndex mSearchIndex;
+    @Thunk final SearchLatencyHistogram mLatencyHistogram = new SearchLatencyHistogram();
+    private final Handler mSearchHandler;
+    @Thunk final Handler mResultHandler;
+
+    // Incremented for every query and cancellation, only the results of the current generation
+    // are delivered.
+    @Thunk volatile int mGeneration;
+    // Whether the results of the current generation are still pending.
+    @Thunk boolean mSearchPending;
+
+    DefaultAppSearchAlgorithm(Context context, AppSearchIndex searchIndex) {
+        mContext = context;
+        mSearchIndex = searchIndex;
+        mSearchHandler = new Handler(sSearchThread.getLooper());
         mResultHandler = new Handler();
     }
 
     public void cancel(boolean interruptActiveRequests) {
+        // Queries which have not started yet will be replaced anyway.
+        mSearchHandler.removeCallbacksAndMessages(null);
         if (interruptActiveRequests) {
+            invalidatePendingSearch();
             mResultHandler.removeCallbacksAndMessages(null);
         }
     }
 
     void doSearch(final String query,
             final AllAppsSearchBarController.Callbacks callback) {
-        final ArrayList<ComponentKey> result = getTitleMatchResult(query);
-        mResultHandler.post(new Runnable() {
+        invalidatePendingSearch();
+        final int generation = mGeneration;
+        final long startTime = SystemClock.uptimeMillis();
+        final boolean scored = PreferencesState.isScoredSearchPrefEnabled(mContext);
+        mSearchPending = true;
+        mSearchHandler.removeCallbacksAndMessages(null);
+        mSearchHandler.post(new Runnable() {
 
             @Override
             public void run() {
-                callback.onSearchResult(query, result);
+                if (generation != mGeneration) {
+                    return;
+                }
+                // The index narrows down from the results of the previous query, when the new
+                // query extends it.
+                final ArrayList<ComponentKey> result = mSearchIndex.search(query, scored);
+                if (generation != mGeneration) {
+                    return;
+                }
+                mResultHandler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        mSearchPending = false;
+                        mLatencyHistogram.record(query.length(),
+                                SystemClock.uptimeMillis() - startTime);
+                        callback.onSearchResult(query, result);
+                    }
+                });
             }
         });
     }
 
-    private ArrayList<ComponentKey> getTitleMatchResult(String query) {
-        // Do an intersection of the words in the query and each title, and filter out all the
-        // apps that don't match all of the words in the query.
-        final String queryTextLower = query.toLowerCase();
-        final ArrayList<ComponentKey> result = new ArrayList<>();
-        for (AppInfo info : mApps) {
-            if (matches(info, queryTextLower)) {
-                result.add(info.toComponentKey());
-            }
-        }
-        return result;
-    }
-
-    private boolean matches(AppInfo info, String query) {
-        int queryLength = query.length();
-
-        String title = info.title.toString();
-        int titleLength = title.length();
-
-        if (titleLength < queryLength || queryLength <= 0) {
-            return false;
-        }
-
-        int lastType;
-        int thisType = Character.UNASSIGNED;
-        int nextType = Character.getType(title.codePointAt(0));
-
-        int end = titleLength - queryLength;
-        for (int i = 0; i <= end; i++) {
-            lastType = thisType;
-            thisType = nextType;
-            nextType = i < (titleLength - 1) ?
-                    Character.getType(title.codePointAt(i + 1)) : Character.UNASSIGNED;
-            if (isBreak(thisType, lastType, nextType) &&
-                    title.substring(i, i + queryLength).equalsIgnoreCase(query)) {
-                return true;
-            }
+    private void invalidatePendingSearch() {
+        if (mSearchPending) {
+            mSearchPending = false;
+            mLatencyHistogram.recordCancelled();
         }
-        return false;
+        mGeneration++;
     }
 
-    /**
-     * Returns true if the current point should be a break point. Following cases
-     * are considered as break points:
-     *      1) Any non space character after a space character
-     *      2) Any digit after a non-digit character
-     *      3) Any capital character after a digit or small character
-     *      4) Any capital character before a small character
-     */
-    private boolean isBreak(int thisType, int prevType, int nextType) {
-        switch (thisType) {
-            case Character.UPPERCASE_LETTER:
-                if (nextType == Character.UPPERCASE_LETTER) {
-                    return true;
-                }
-                // Follow through
-            case Character.TITLECASE_LETTER:
-                // Break point if previous was not a upper case
-                return prevType != Character.UPPERCASE_LETTER;
-            case Character.LOWERCASE_LETTER:
-                // Break point if previous was not a letter.
-                return prevType > Character.OTHER_LETTER || prevType <= Character.UNASSIGNED;
-            case Character.DECIMAL_DIGIT_NUMBER:
-            case Character.LETTER_NUMBER:
-            case Character.OTHER_NUMBER:
-                // Break point if previous was not a number
-                return !(prevType == Character.DECIMAL_DIGIT_NUMBER
-                        || prevType == Character.LETTER_NUMBER
-                        || prevType == Character.OTHER_NUMBER);
-            case Character.MATH_SYMBOL:
-            case Character.CURRENCY_SYMBOL:
-            case Character.OTHER_PUNCTUATION:
-            case Character.DASH_PUNCTUATION:
-                // Always a break point for a symbol
-                return true;
-            default:
-                return false;
-        }
+    public void dump(String prefix, PrintWriter writer) {
+        mLatencyHistogram.dump(prefix, writer);
     }
 }
@@ -21,6 +21,6 @@ package com.enrico.launcher3.allapps;
 public class DefaultAppSearchController extends AllAppsSearchBarController {
 
     public DefaultAppSearchAlgorithm onInitializeSearch() {
-        return new DefaultAppSearchAlgorithm(mApps.getApps());
+        return new DefaultAppSearchAlgorithm(mLauncher, mApps.getSearchIndex());
     }
 }
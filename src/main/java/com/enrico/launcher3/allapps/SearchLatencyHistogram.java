@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enrico.launcher3.allapps;
+
+import java.io.PrintWriter;
+
+/**
+ * Histogram of the search latencies, from the query change to the delivery of the results,
+ * grouped by query length.
+ */
+class SearchLatencyHistogram {
+
+    // Queries longer than this are counted with this length.
+    private static final int MAX_QUERY_LENGTH = 8;
+
+    // Upper bounds (exclusive) of the latency buckets, the last bucket is unbounded.
+    private static final long[] BUCKET_BOUNDS_MS = {1, 2, 4, 8, 16, 32, 64, 128};
+
+    private final int[][] mCounts = new int[MAX_QUERY_LENGTH][BUCKET_BOUNDS_MS.length + 1];
+    private final long[] mTotalMs = new long[MAX_QUERY_LENGTH];
+    private final long[] mMaxMs = new long[MAX_QUERY_LENGTH];
+    private int mCancelledCount;
+
+    public synchronized void record(int queryLength, long latencyMs) {
+        if (queryLength <= 0) {
+            return;
+        }
+        int row = Math.min(queryLength, MAX_QUERY_LENGTH) - 1;
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_MS.length && latencyMs >= BUCKET_BOUNDS_MS[bucket]) {
+            bucket++;
+        }
+        mCounts[row][bucket]++;
+        mTotalMs[row] += latencyMs;
+        mMaxMs[row] = Math.max(mMaxMs[row], latencyMs);
+    }
+
+    /**
+     * Records a query which was replaced or cancelled before its results were delivered.
+     */
+    public synchronized void recordCancelled() {
+        mCancelledCount++;
+    }
+
+    public synchronized void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "Search latency (ms): cancelled=" + mCancelledCount);
+        StringBuilder header = new StringBuilder(prefix).append("\tlength");
+        for (long bound : BUCKET_BOUNDS_MS) {
+            header.append(" <").append(bound);
+        }
+        header.append(" >=").append(BUCKET_BOUNDS_MS[BUCKET_BOUNDS_MS.length - 1]);
+        writer.println(header);
+
+        for (int row = 0; row < MAX_QUERY_LENGTH; row++) {
+            int count = 0;
+            StringBuilder line = new StringBuilder(prefix).append('\t').append(row + 1);
+            if (row == MAX_QUERY_LENGTH - 1) {
+                line.append('+');
+            }
+            for (int value : mCounts[row]) {
+                line.append(' ').append(value);
+                count += value;
+            }
+            if (count > 0) {
+                line.append(" avg=").append(mTotalMs[row] / count)
+                        .append(" max=").append(mMaxMs[row]);
+            }
+            writer.println(line);
+        }
+    }
+}
@@ -18,6 +18,7 @@ import android.widget.TextView;
 import com.enrico.launcher3.R;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
 /**
@@ -30,6 +31,9 @@ class CustomAppRecyclerViewAdapter extends RecyclerView.Adapter<CustomAppRecycle
     private PackageManager mPackageManager;
     private Activity mActivity;
 
+    // The round icons by package, since creating one extracts the palette of the icon.
+    private final HashMap<String, Bitmap> mRoundIcons = new HashMap<>();
+
     //simple recycler view adapter with activity and array list contact as arguments
     CustomAppRecyclerViewAdapter(Activity activity, List<String> apps) {
 
@@ -54,15 +58,20 @@ class CustomAppRecyclerViewAdapter extends RecyclerView.Adapter<CustomAppRecycle
         ApplicationInfo applicationInfo;
 
         try {
-            applicationInfo = mPackageManager.getApplicationInfo(mApps.get(holder.getAdapterPosition()), 0);
+            String packageName = mApps.get(holder.getAdapterPosition());
+            applicationInfo = mPackageManager.getApplicationInfo(packageName, 0);
 
             holder.name.setText(mPackageManager.getApplicationLabel(applicationInfo));
 
-            Drawable d = mPackageManager.getApplicationIcon(applicationInfo);
+            Bitmap roundPackageIcon = mRoundIcons.get(packageName);
+            if (roundPackageIcon == null) {
+                Drawable d = mPackageManager.getApplicationIcon(applicationInfo);
 
-            Bitmap bitmap = ((BitmapDrawable) d).getBitmap();
+                Bitmap bitmap = ((BitmapDrawable) d).getBitmap();
 
-            Bitmap roundPackageIcon = BoardUtils.createRoundIcon(mActivity, bitmap);
+                roundPackageIcon = BoardUtils.createRoundIcon(mActivity, bitmap);
+                mRoundIcons.put(packageName, roundPackageIcon);
+            }
 
             holder.thumbnail.setImageBitmap(roundPackageIcon);
 
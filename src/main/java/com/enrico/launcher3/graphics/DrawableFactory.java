@@ -32,6 +32,7 @@ import android.support.annotation.UiThread;
 import com.enrico.launcher3.AndroidVersion;
 import com.enrico.launcher3.FastBitmapDrawable;
 import com.enrico.launcher3.ItemInfo;
+import com.enrico.launcher3.ItemInfoWithIcon;
 import com.enrico.launcher3.R;
 import com.enrico.launcher3.Utilities;
 import com.enrico.launcher3.allapps.AllAppsBackgroundDrawable;
@@ -65,17 +66,24 @@ public class DrawableFactory {
      * Returns a FastBitmapDrawable with the icon.
      */
     public FastBitmapDrawable newIcon(Context context, Bitmap icon, ItemInfo info) {
-        return new FastBitmapDrawable(context,icon);
+        FastBitmapDrawable drawable = new FastBitmapDrawable(context,icon);
+        if (info instanceof ItemInfoWithIcon && ((ItemInfoWithIcon) info).iconBitmap == icon) {
+            drawable.setIconColor(((ItemInfoWithIcon) info).iconColor);
+        }
+        return drawable;
     }
 
     /**
      * Returns a FastBitmapDrawable with the icon.
      */
-    public PreloadIconDrawable newPendingIcon(Bitmap icon, Context context) {
+    public PreloadIconDrawable newPendingIcon(ItemInfoWithIcon info, Context context) {
         if (mPreloadProgressPath == null) {
             mPreloadProgressPath = getPreloadProgressPath(context);
         }
-        return new PreloadIconDrawable(icon, mPreloadProgressPath, context);
+        PreloadIconDrawable drawable =
+                new PreloadIconDrawable(info.iconBitmap, mPreloadProgressPath, context);
+        drawable.setIconColor(info.iconColor);
+        return drawable;
     }
 
 
@@ -51,13 +51,16 @@ import com.enrico.launcher3.shortcuts.ShortcutInfoCompat;
  */
 public class LauncherIcons {
 
-    private static final Rect sOldBounds = new Rect();
-    private static final Canvas sCanvas = new Canvas();
-
-    static {
-        sCanvas.setDrawFilter(new PaintFlagsDrawFilter(Paint.DITHER_FLAG,
-                Paint.FILTER_BITMAP_FLAG));
-    }
+    // Each thread gets its own canvas, so that icons can be rendered in parallel.
+    private static final ThreadLocal<Canvas> sCanvas = new ThreadLocal<Canvas>() {
+        @Override
+        protected Canvas initialValue() {
+            Canvas canvas = new Canvas();
+            canvas.setDrawFilter(new PaintFlagsDrawFilter(Paint.DITHER_FLAG,
+                    Paint.FILTER_BITMAP_FLAG));
+            return canvas;
+        }
+    };
 
     /**
      * Returns a bitmap suitable for the all apps view. If the package or the resource do not
@@ -182,14 +185,13 @@ public class LauncherIcons {
      */
     private static Bitmap badgeWithBitmap(Bitmap srcTgt, Bitmap badge, Context context) {
         int badgeSize = context.getResources().getDimensionPixelSize(R.dimen.profile_badge_size);
-        synchronized (sCanvas) {
-            sCanvas.setBitmap(srcTgt);
-            sCanvas.drawBitmap(badge, new Rect(0, 0, badge.getWidth(), badge.getHeight()),
-                    new Rect(srcTgt.getWidth() - badgeSize,
-                            srcTgt.getHeight() - badgeSize, srcTgt.getWidth(), srcTgt.getHeight()),
-                    new Paint(Paint.FILTER_BITMAP_FLAG));
-            sCanvas.setBitmap(null);
-        }
+        final Canvas canvas = sCanvas.get();
+        canvas.setBitmap(srcTgt);
+        canvas.drawBitmap(badge, new Rect(0, 0, badge.getWidth(), badge.getHeight()),
+                new Rect(srcTgt.getWidth() - badgeSize,
+                        srcTgt.getHeight() - badgeSize, srcTgt.getWidth(), srcTgt.getHeight()),
+                new Paint(Paint.FILTER_BITMAP_FLAG));
+        canvas.setBitmap(null);
         return srcTgt;
     }
 
@@ -214,7 +216,8 @@ public class LauncherIcons {
      * @param scale the scale to apply before drawing {@param icon} on the canvas
      */
     private static Bitmap createIconBitmap(Drawable icon, Context context, float scale) {
-        synchronized (sCanvas) {
+        // The same drawable can be shared between threads, lock it while changing its bounds.
+        synchronized (icon) {
             final int iconBitmapSize = LauncherAppState.getIDP(context).iconBitmapSize;
             int width = iconBitmapSize;
             int height = iconBitmapSize;
@@ -249,13 +252,13 @@ public class LauncherIcons {
 
             Bitmap bitmap = Bitmap.createBitmap(textureWidth, textureHeight,
                     Bitmap.Config.ARGB_8888);
-            final Canvas canvas = sCanvas;
+            final Canvas canvas = sCanvas.get();
             canvas.setBitmap(bitmap);
 
             final int left = (textureWidth-width) / 2;
             final int top = (textureHeight-height) / 2;
 
-            sOldBounds.set(icon.getBounds());
+            final Rect oldBounds = new Rect(icon.getBounds());
             if (AndroidVersion.isAtLeastOreo() && icon instanceof AdaptiveIconDrawable) {
                 int offset = Math.max((int)(ShadowGenerator.BLUR_FACTOR * iconBitmapSize),
                         Math.min(left, top));
@@ -268,7 +271,7 @@ public class LauncherIcons {
             canvas.scale(scale, scale, textureWidth / 2, textureHeight / 2);
             icon.draw(canvas);
             canvas.restore();
-            icon.setBounds(sOldBounds);
+            icon.setBounds(oldBounds);
             canvas.setBitmap(null);
 
             return bitmap;
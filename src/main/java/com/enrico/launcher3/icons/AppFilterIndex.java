@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.enrico.launcher3.icons;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.content.res.XmlResourceParser;
+import android.support.annotation.VisibleForTesting;
+
+import com.enrico.launcher3.LauncherFiles;
+
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The parsed appfilter of an icon pack: the drawable of each component, the back, mask and
+ * front images and the scale factor, with every drawable resolved to its resource id.
+ *
+ * The appfilter is only parsed once per version of the icon pack. The result is compiled into a
+ * file in the cache dir, which is memory-mapped and read back on the following loads.
+ *
+ * The file is laid out as:
+ *   header | back image ids | drawable names (name, id) | components (component, name index)
+ */
+class AppFilterIndex {
+
+    private static final int MAGIC = 0x41504649;
+    private static final int VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final HashMap<String, Integer> mComponentDrawables;
+    private final ArrayList<String> mDrawableNames;
+    private final int[] mDrawableIds;
+    private final int[] mBackImageIds;
+    private final int mMaskId;
+    private final int mFrontId;
+    private final float mScaleFactor;
+
+    private AppFilterIndex(HashMap<String, Integer> componentDrawables,
+            ArrayList<String> drawableNames, int[] drawableIds, int[] backImageIds, int maskId,
+            int frontId, float scaleFactor) {
+        mComponentDrawables = componentDrawables;
+        mDrawableNames = drawableNames;
+        mDrawableIds = drawableIds;
+        mBackImageIds = backImageIds;
+        mMaskId = maskId;
+        mFrontId = frontId;
+        mScaleFactor = scaleFactor;
+    }
+
+    /**
+     * Returns the resource id of the drawable of a component, or 0.
+     */
+    public int getDrawableId(String component) {
+        Integer index = mComponentDrawables.get(component);
+        return index == null ? 0 : mDrawableIds[index];
+    }
+
+    /**
+     * Returns the names of the drawables of the appfilter which exist in the icon pack, without
+     * duplicates, in the order of the appfilter.
+     */
+    public List<String> getDrawableNames() {
+        return Collections.unmodifiableList(mDrawableNames);
+    }
+
+    public int[] getBackImageIds() {
+        return mBackImageIds;
+    }
+
+    /** The resource id of the mask image, or 0. */
+    public int getMaskId() {
+        return mMaskId;
+    }
+
+    /** The resource id of the front image, or 0. */
+    public int getFrontId() {
+        return mFrontId;
+    }
+
+    public float getScaleFactor() {
+        return mScaleFactor;
+    }
+
+    /**
+     * Returns the index of the icon pack {@param packageName}, compiling it if the icon pack was
+     * updated since it was last compiled.
+     *
+     * @param res the resources of the icon pack
+     * @return null if the icon pack has no appfilter or it could not be parsed. A failed parse is
+     * not written, so it is tried again on the next load.
+     */
+    public static AppFilterIndex load(Context context, String packageName, Resources res)
+            throws PackageManager.NameNotFoundException {
+        PackageInfo info = context.getPackageManager().getPackageInfo(packageName, 0);
+        File file = new File(context.getCacheDir(),
+                LauncherFiles.APP_FILTER_INDEX_PREFIX + packageName);
+
+        AppFilterIndex index = read(file, info);
+        if (index == null) {
+            index = compile(res, packageName);
+            if (index != null) {
+                write(file, info, index);
+            }
+        }
+        return index;
+    }
+
+    private static AppFilterIndex compile(Resources res, String packageName) {
+        int appFilterId = res.getIdentifier("appfilter", "xml", packageName);
+        if (appFilterId <= 0) {
+            return null;
+        }
+        XmlResourceParser xpp = null;
+        try {
+            xpp = res.getXml(appFilterId);
+            return compile(xpp, res, packageName);
+        } catch (Resources.NotFoundException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (xpp != null) {
+                xpp.close();
+            }
+        }
+    }
+
+    /**
+     * Parses an appfilter, resolving its drawables in the resources of the icon pack.
+     * @return null if the appfilter could not be fully parsed.
+     */
+    @VisibleForTesting
+    static AppFilterIndex compile(XmlPullParser xpp, Resources res, String packageName) {
+        HashMap<String, Integer> componentDrawables = new HashMap<>();
+        ArrayList<String> drawableNames = new ArrayList<>();
+        ArrayList<Integer> drawableIds = new ArrayList<>();
+        // The index of each drawable name in drawableNames, or -1 if it does not exist.
+        HashMap<String, Integer> drawableIndexes = new HashMap<>();
+        ArrayList<Integer> backImageIds = new ArrayList<>();
+        int maskId = 0;
+        int frontId = 0;
+        float scaleFactor = 1.0f;
+
+        try {
+            int eventType = xpp.getEventType();
+            while (eventType != XmlPullParser.END_DOCUMENT) {
+                if (eventType == XmlPullParser.START_TAG) {
+                    String tag = xpp.getName();
+                    if (tag.equals("iconback")) {
+                        for (int i = 0; i < xpp.getAttributeCount(); i++) {
+                            if (xpp.getAttributeName(i).startsWith("img")) {
+                                int id = getDrawableId(res, packageName, xpp.getAttributeValue(i));
+                                if (id > 0) {
+                                    backImageIds.add(id);
+                                }
+                            }
+                        }
+                    } else if (tag.equals("iconmask")) {
+                        if (xpp.getAttributeCount() > 0 && xpp.getAttributeName(0).equals("img1")) {
+                            maskId = getDrawableId(res, packageName, xpp.getAttributeValue(0));
+                        }
+                    } else if (tag.equals("iconupon")) {
+                        if (xpp.getAttributeCount() > 0 && xpp.getAttributeName(0).equals("img1")) {
+                            frontId = getDrawableId(res, packageName, xpp.getAttributeValue(0));
+                        }
+                    } else if (tag.equals("scale")) {
+                        if (xpp.getAttributeCount() > 0
+                                && xpp.getAttributeName(0).equals("factor")) {
+                            scaleFactor = parseScaleFactor(xpp.getAttributeValue(0));
+                        }
+                    } else if (tag.equals("item")) {
+                        String componentName = null;
+                        String drawableName = null;
+                        for (int i = 0; i < xpp.getAttributeCount(); i++) {
+                            if (xpp.getAttributeName(i).equals("component")) {
+                                componentName = xpp.getAttributeValue(i);
+                            } else if (xpp.getAttributeName(i).equals("drawable")) {
+                                drawableName = xpp.getAttributeValue(i);
+                            }
+                        }
+                        Integer index = drawableName == null
+                                ? null : drawableIndexes.get(drawableName);
+                        if (drawableName != null && index == null) {
+                            int id = getDrawableId(res, packageName, drawableName);
+                            if (id > 0) {
+                                index = drawableNames.size();
+                                drawableNames.add(drawableName);
+                                drawableIds.add(id);
+                            } else {
+                                index = -1;
+                            }
+                            drawableIndexes.put(drawableName, index);
+                        }
+                        if (componentName != null && index != null && index >= 0
+                                && !componentDrawables.containsKey(componentName)) {
+                            componentDrawables.put(componentName, index);
+                        }
+                    }
+                }
+                eventType = xpp.next();
+            }
+        } catch (Exception e) {
+            // A partial index would be written and used until the icon pack is updated.
+            e.printStackTrace();
+            return null;
+        }
+
+        return new AppFilterIndex(componentDrawables, drawableNames, toArray(drawableIds),
+                toArray(backImageIds), maskId, frontId, scaleFactor);
+    }
+
+    private static float parseScaleFactor(String value) {
+        try {
+            return Float.parseFloat(value);
+        } catch (NumberFormatException e) {
+            return 1.0f;
+        }
+    }
+
+    private static int getDrawableId(Resources res, String packageName, String drawableName) {
+        return drawableName == null ? 0 : res.getIdentifier(drawableName, "drawable", packageName);
+    }
+
+    private static int[] toArray(ArrayList<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * Reads the index compiled for the given version of the icon pack.
+     * @return null if there is no valid index for this version.
+     */
+    @VisibleForTesting
+    static AppFilterIndex read(File file, PackageInfo info) {
+        if (!file.isFile()) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            // The mapping stays valid after the file is closed.
+            ByteBuffer buffer =
+                    raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                    || buffer.getInt() != info.versionCode
+                    || buffer.getLong() != info.lastUpdateTime) {
+                return null;
+            }
+            float scaleFactor = buffer.getFloat();
+            int maskId = buffer.getInt();
+            int frontId = buffer.getInt();
+            int[] backImageIds = new int[buffer.getInt()];
+            for (int i = 0; i < backImageIds.length; i++) {
+                backImageIds[i] = buffer.getInt();
+            }
+
+            int drawableCount = buffer.getInt();
+            ArrayList<String> drawableNames = new ArrayList<>(drawableCount);
+            int[] drawableIds = new int[drawableCount];
+            for (int i = 0; i < drawableCount; i++) {
+                drawableNames.add(readString(buffer));
+                drawableIds[i] = buffer.getInt();
+            }
+
+            int componentCount = buffer.getInt();
+            HashMap<String, Integer> componentDrawables = new HashMap<>(componentCount * 4 / 3 + 1);
+            for (int i = 0; i < componentCount; i++) {
+                String component = readString(buffer);
+                int index = buffer.getInt();
+                if (index < 0 || index >= drawableCount) {
+                    return null;
+                }
+                componentDrawables.put(component, index);
+            }
+            return new AppFilterIndex(componentDrawables, drawableNames, drawableIds,
+                    backImageIds, maskId, frontId, scaleFactor);
+        } catch (IOException | BufferUnderflowException | NegativeArraySizeException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    @VisibleForTesting
+    static void write(File file, PackageInfo info, AppFilterIndex index) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(info.versionCode);
+            out.writeLong(info.lastUpdateTime);
+            out.writeFloat(index.mScaleFactor);
+            out.writeInt(index.mMaskId);
+            out.writeInt(index.mFrontId);
+            out.writeInt(index.mBackImageIds.length);
+            for (int id : index.mBackImageIds) {
+                out.writeInt(id);
+            }
+            out.writeInt(index.mDrawableNames.size());
+            for (int i = 0; i < index.mDrawableIds.length; i++) {
+                writeString(out, index.mDrawableNames.get(i));
+                out.writeInt(index.mDrawableIds[i]);
+            }
+            out.writeInt(index.mComponentDrawables.size());
+            for (HashMap.Entry<String, Integer> entry : index.mComponentDrawables.entrySet()) {
+                writeString(out, entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        // Write to a temporary file first, so that a partial index is never read.
+        File tmpFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(tmpFile);
+            bytes.writeTo(fos);
+            fos.getFD().sync();
+            fos.close();
+            fos = null;
+            if (!tmpFile.renameTo(file)) {
+                tmpFile.delete();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmpFile.delete();
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
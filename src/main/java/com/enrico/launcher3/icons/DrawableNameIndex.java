@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.enrico.launcher3.icons;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Index of the drawable names of an icon pack, to find the drawables matching an app label.
+ *
+ * Names are compared by their normalized key, which only keeps their letters in lower case. A
+ * drawable matches a label when its key has more than {@link #MIN_KEY_LENGTH} - 1 letters and
+ * either key contains the other. The keys are indexed as a whole, to find the keys contained in
+ * the label, and by trigram, to find the keys which contain the label.
+ */
+class DrawableNameIndex {
+
+    private static final int MIN_KEY_LENGTH = 3;
+    private static final int GRAM_LENGTH = 3;
+
+    private final List<String> mDrawables;
+    private final String[] mKeys;
+    // Drawables by key, only for keys of at least MIN_KEY_LENGTH letters.
+    private final HashMap<String, IntList> mByKey = new HashMap<>();
+    // Drawables by each trigram of their key.
+    private final HashMap<String, IntList> mByGram = new HashMap<>();
+
+    DrawableNameIndex(List<String> drawables) {
+        mDrawables = new ArrayList<>(drawables);
+        mKeys = new String[mDrawables.size()];
+        for (int i = 0; i < mKeys.length; i++) {
+            String drawable = mDrawables.get(i);
+            String key = drawable == null ? "" : normalize(drawable);
+            mKeys[i] = key;
+            if (key.length() < MIN_KEY_LENGTH) {
+                continue;
+            }
+            add(mByKey, key, i);
+            for (int j = 0; j + GRAM_LENGTH <= key.length(); j++) {
+                IntList grams = add(mByGram, key.substring(j, j + GRAM_LENGTH), i);
+                // A gram which appears more than once in a key is only added once.
+                if (grams.size > 1 && grams.values[grams.size - 2] == i) {
+                    grams.size--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the drawables matching {@param label}, the closest matches first.
+     */
+    public List<String> getMatches(String label) {
+        final String key = normalize(label);
+        BitSet matched = new BitSet(mKeys.length);
+
+        // Drawables whose key is contained in the label.
+        for (int start = 0; start + MIN_KEY_LENGTH <= key.length(); start++) {
+            for (int end = start + MIN_KEY_LENGTH; end <= key.length(); end++) {
+                IntList drawables = mByKey.get(key.substring(start, end));
+                if (drawables != null) {
+                    for (int i = 0; i < drawables.size; i++) {
+                        matched.set(drawables.values[i]);
+                    }
+                }
+            }
+        }
+
+        // Drawables whose key contains the label.
+        if (key.length() >= GRAM_LENGTH) {
+            // Only the drawables with the least common trigram of the label can match.
+            IntList candidates = null;
+            for (int j = 0; j + GRAM_LENGTH <= key.length(); j++) {
+                IntList drawables = mByGram.get(key.substring(j, j + GRAM_LENGTH));
+                if (drawables == null) {
+                    candidates = null;
+                    break;
+                }
+                if (candidates == null || drawables.size < candidates.size) {
+                    candidates = drawables;
+                }
+            }
+            if (candidates != null) {
+                for (int i = 0; i < candidates.size; i++) {
+                    int index = candidates.values[i];
+                    if (!matched.get(index) && mKeys[index].contains(key)) {
+                        matched.set(index);
+                    }
+                }
+            }
+        } else {
+            for (int i = 0; i < mKeys.length; i++) {
+                if (mKeys[i].length() >= MIN_KEY_LENGTH && mKeys[i].contains(key)) {
+                    matched.set(i);
+                }
+            }
+        }
+
+        Integer[] matches = new Integer[matched.cardinality()];
+        int count = 0;
+        for (int i = matched.nextSetBit(0); i >= 0; i = matched.nextSetBit(i + 1)) {
+            matches[count++] = i;
+        }
+        // The closer the lengths of the keys, the closer the match. Arrays.sort is stable, so
+        // equal matches keep the order of the drawables.
+        final int labelLength = key.length();
+        Arrays.sort(matches, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Float.compare(getSimilarity(mKeys[b].length(), labelLength),
+                        getSimilarity(mKeys[a].length(), labelLength));
+            }
+        });
+
+        if (matches.length == 0) {
+            return Collections.emptyList();
+        }
+        ArrayList<String> result = new ArrayList<>(matches.length);
+        for (Integer index : matches) {
+            result.add(mDrawables.get(index));
+        }
+        return result;
+    }
+
+    private static float getSimilarity(int keyLength, int labelLength) {
+        return (float) Math.min(keyLength, labelLength) / Math.max(keyLength, labelLength);
+    }
+
+    /**
+     * Returns the letters of {@param name}, in lower case.
+     */
+    static String normalize(String name) {
+        StringBuilder key = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= 'a' && c <= 'z') {
+                key.append(c);
+            } else if (c >= 'A' && c <= 'Z') {
+                key.append((char) (c + ('a' - 'A')));
+            }
+        }
+        return key.toString();
+    }
+
+    private static IntList add(HashMap<String, IntList> map, String key, int value) {
+        IntList list = map.get(key);
+        if (list == null) {
+            list = new IntList();
+            map.put(key, list);
+        }
+        list.add(value);
+        return list;
+    }
+
+    /**
+     * A growable list of ints, in increasing order since drawables are added in order.
+     */
+    private static class IntList {
+        int[] values = new int[2];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+}
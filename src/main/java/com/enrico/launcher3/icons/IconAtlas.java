@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.enrico.launcher3.icons;
+
+import android.graphics.Bitmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Persistent atlas of the low-res icons, stored in a single memory-mapped file. Each slot holds
+ * the key, label and icon color of an entry in the index region and the raw RGB_565 pixels of
+ * its icon in the tile region, so that reading an icon is a copy from the mapped file, without
+ * any SQL query or bitmap decoding.
+ *
+ * The file is laid out as:
+ *   header | index records (capacity x INDEX_RECORD_SIZE) | tiles (capacity x tile bytes)
+ *
+ * The atlas is only a cache of the icon DB, any error resets it. The header holds a stamp of the
+ * icon DB version and icon system state the icons were rendered for, the atlas is cleared when
+ * it changes.
+ */
+class IconAtlas {
+
+    private static final int MAGIC = 0x4c414954;
+    private static final int VERSION = 3;
+
+    // magic, version, tile width, tile height, capacity, stamp
+    private static final int HEADER_SIZE = 6 * 4;
+    private static final int STAMP_OFFSET = 20;
+    // key length (short), key, label length (short), label, icon color (int)
+    private static final int INDEX_RECORD_SIZE = 512;
+    private static final int MAX_STRING_BYTES = (INDEX_RECORD_SIZE - 8) / 2;
+    private static final int BYTES_PER_PIXEL = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mFile;
+    private final int mTileWidth;
+    private final int mTileHeight;
+    private final int mTileBytes;
+    private final int mCapacity;
+    private int mStamp;
+
+    // Lazily opened on first use, since it does disk I/O.
+    private MappedByteBuffer mBuffer;
+    private boolean mOpenFailed;
+    private final HashMap<String, Integer> mSlots = new HashMap<>();
+    // Slots which were used before and are now empty.
+    private final ArrayList<Integer> mFreeSlots = new ArrayList<>();
+    private int mNextFreeSlot;
+
+    IconAtlas(File file, int tileWidth, int tileHeight, int capacity, int stamp) {
+        mFile = file;
+        mTileWidth = tileWidth;
+        mTileHeight = tileHeight;
+        mTileBytes = tileWidth * tileHeight * BYTES_PER_PIXEL;
+        mCapacity = capacity;
+        mStamp = stamp;
+    }
+
+    /**
+     * Sets the stamp of the state the icons are rendered for, clearing the atlas if it changed.
+     */
+    public synchronized void setStamp(int stamp) {
+        if (mStamp == stamp) {
+            return;
+        }
+        mStamp = stamp;
+        if (mBuffer != null) {
+            // Clear the records before writing the new stamp, so that they are never read back
+            // with it after a crash.
+            clearRecords();
+            mBuffer.putInt(STAMP_OFFSET, stamp);
+        }
+    }
+
+    /**
+     * Fills {@param entry} with the low-res icon and label stored for {@param key}.
+     * @return true if the entry was found.
+     */
+    public synchronized boolean read(String key, IconCache.CacheEntry entry) {
+        Integer slot = ensureOpen() ? mSlots.get(key) : null;
+        if (slot == null) {
+            return false;
+        }
+        Bitmap icon = Bitmap.createBitmap(mTileWidth, mTileHeight, Bitmap.Config.RGB_565);
+        if (icon.getByteCount() != mTileBytes) {
+            return false;
+        }
+        icon.copyPixelsFromBuffer(tileBuffer(slot));
+
+        ByteBuffer record = recordBuffer(slot);
+        record.position(record.position() + 2 + record.getShort(record.position()));
+        String label = readString(record);
+
+        entry.icon = icon;
+        entry.title = label == null ? "" : label;
+        entry.isLowResIcon = true;
+        entry.iconColor = record.getInt();
+        return true;
+    }
+
+    /**
+     * Stores the low-res icon of an entry, replacing any previous value for {@param key}. Icons
+     * which do not match the tile format are ignored.
+     */
+    public synchronized void write(String key, CharSequence label, Bitmap lowResIcon,
+            int iconColor) {
+        if (lowResIcon == null || lowResIcon.getConfig() != Bitmap.Config.RGB_565
+                || lowResIcon.getWidth() != mTileWidth || lowResIcon.getHeight() != mTileHeight
+                || lowResIcon.getByteCount() != mTileBytes || !ensureOpen()) {
+            return;
+        }
+        byte[] keyBytes = key.getBytes(UTF_8);
+        byte[] labelBytes = label == null ? new byte[0] : label.toString().getBytes(UTF_8);
+        if (keyBytes.length > MAX_STRING_BYTES || labelBytes.length > MAX_STRING_BYTES) {
+            return;
+        }
+
+        Integer slot = mSlots.get(key);
+        if (slot == null) {
+            if (!mFreeSlots.isEmpty()) {
+                slot = mFreeSlots.remove(mFreeSlots.size() - 1);
+            } else if (mNextFreeSlot < mCapacity) {
+                slot = mNextFreeSlot++;
+            } else {
+                return;
+            }
+        }
+
+        // Clear the key length first and set it last, so that a partially written slot is
+        // never read back after a crash.
+        ByteBuffer record = recordBuffer(slot);
+        int start = record.position();
+        record.putShort(start, (short) 0);
+        lowResIcon.copyPixelsToBuffer(tileBuffer(slot));
+        record.position(start + 2);
+        record.put(keyBytes).putShort((short) labelBytes.length).put(labelBytes)
+                .putInt(iconColor);
+        record.putShort(start, (short) keyBytes.length);
+        mSlots.put(key, slot);
+    }
+
+    public synchronized void remove(String key) {
+        // The index must be loaded, or the record would stay in the file.
+        if (!ensureOpen()) {
+            mFile.delete();
+            return;
+        }
+        Integer slot = mSlots.remove(key);
+        if (slot != null) {
+            ByteBuffer record = recordBuffer(slot);
+            record.putShort(record.position(), (short) 0);
+            mFreeSlots.add(slot);
+        }
+    }
+
+    /**
+     * Removes all the entries whose key starts with {@param prefix} and ends with
+     * {@param suffix}.
+     */
+    public synchronized void removeMatching(String prefix, String suffix) {
+        if (!ensureOpen()) {
+            return;
+        }
+        for (String key : mSlots.keySet().toArray(new String[mSlots.size()])) {
+            if (key.startsWith(prefix) && key.endsWith(suffix)) {
+                remove(key);
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        if (!ensureOpen()) {
+            mFile.delete();
+            return;
+        }
+        clearRecords();
+    }
+
+    private void clearRecords() {
+        mSlots.clear();
+        mFreeSlots.clear();
+        mNextFreeSlot = 0;
+        for (int i = 0; i < mCapacity; i++) {
+            ByteBuffer record = recordBuffer(i);
+            record.putShort(record.position(), (short) 0);
+        }
+    }
+
+    private boolean ensureOpen() {
+        if (mBuffer != null) {
+            return true;
+        }
+        if (mOpenFailed) {
+            return false;
+        }
+        long size = HEADER_SIZE + (long) mCapacity * (INDEX_RECORD_SIZE + mTileBytes);
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "rw");
+            boolean valid = file.length() == size;
+            file.setLength(size);
+            // The mapping stays valid after the channel is closed.
+            mBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (valid) {
+                valid = mBuffer.getInt(0) == MAGIC && mBuffer.getInt(4) == VERSION
+                        && mBuffer.getInt(8) == mTileWidth && mBuffer.getInt(12) == mTileHeight
+                        && mBuffer.getInt(16) == mCapacity
+                        && mBuffer.getInt(STAMP_OFFSET) == mStamp;
+            }
+            if (valid) {
+                loadIndex();
+            } else {
+                clearRecords();
+                mBuffer.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, mTileWidth)
+                        .putInt(12, mTileHeight).putInt(16, mCapacity)
+                        .putInt(STAMP_OFFSET, mStamp);
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            mBuffer = null;
+            mOpenFailed = true;
+            return false;
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private void loadIndex() {
+        mSlots.clear();
+        mFreeSlots.clear();
+        mNextFreeSlot = 0;
+        for (int i = 0; i < mCapacity; i++) {
+            ByteBuffer record = recordBuffer(i);
+            String key = readString(record);
+            if (key == null) {
+                continue;
+            }
+            mSlots.put(key, i);
+            for (int j = mNextFreeSlot; j < i; j++) {
+                mFreeSlots.add(j);
+            }
+            mNextFreeSlot = i + 1;
+        }
+    }
+
+    private ByteBuffer recordBuffer(int slot) {
+        ByteBuffer record = mBuffer.duplicate();
+        record.position(HEADER_SIZE + slot * INDEX_RECORD_SIZE);
+        return record;
+    }
+
+    private ByteBuffer tileBuffer(int slot) {
+        ByteBuffer tile = mBuffer.duplicate();
+        int start = HEADER_SIZE + mCapacity * INDEX_RECORD_SIZE + slot * mTileBytes;
+        tile.position(start);
+        tile.limit(start + mTileBytes);
+        return tile;
+    }
+
+    /**
+     * Reads a length prefixed string at the current position.
+     * @return the string or null if it is empty or invalid.
+     */
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getShort();
+        if (length <= 0 || length > MAX_STRING_BYTES) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
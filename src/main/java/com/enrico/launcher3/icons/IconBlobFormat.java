@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.enrico.launcher3.icons;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+
+import com.enrico.launcher3.Utilities;
+import com.enrico.launcher3.util.Thunk;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Serialization format of the icon blobs stored in the icon DB. The id of the format is part of
+ * the DB version, so changing the format resets the DB.
+ *
+ * Each format keeps the size of the blobs it wrote and the time spent decoding, so that the
+ * size/speed trade-off of the formats can be compared from the dump.
+ */
+abstract class IconBlobFormat {
+
+    /**
+     * Compressed PNG, small on disk but expensive to decode.
+     */
+    static final IconBlobFormat PNG = new IconBlobFormat(0, "png") {
+
+        @Override
+        byte[] onEncode(Bitmap bitmap) {
+            return Utilities.flattenBitmap(bitmap);
+        }
+
+        @Override
+        Bitmap onDecode(byte[] data, BitmapFactory.Options options) {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+    };
+
+    /**
+     * Raw premultiplied pixels in the config of the bitmap, with a fast deflate pass. Decoding
+     * inflates the pixels into a per-thread buffer, which is then copied into the bitmap.
+     */
+    static final IconBlobFormat RAW_DEFLATE = new IconBlobFormat(1, "raw_deflate") {
+
+        private final ThreadLocal<byte[]> mPixels = new ThreadLocal<>();
+
+        @Override
+        byte[] onEncode(Bitmap bitmap) {
+            bitmap = toSupportedConfig(bitmap);
+            ByteBuffer pixels = ByteBuffer.allocate(bitmap.getByteCount());
+            bitmap.copyPixelsToBuffer(pixels);
+
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(pixels.array(), 0, pixels.position());
+                deflater.finish();
+                byte[] out = new byte[RAW_HEADER_SIZE + pixels.position() + 64];
+                writeRawHeader(ByteBuffer.wrap(out), bitmap);
+                int length = RAW_HEADER_SIZE;
+                while (!deflater.finished()) {
+                    if (length == out.length) {
+                        // Incompressible data, should not happen with the slack above.
+                        byte[] larger = new byte[out.length * 2];
+                        System.arraycopy(out, 0, larger, 0, length);
+                        out = larger;
+                    }
+                    length += deflater.deflate(out, length, out.length - length);
+                }
+                byte[] result = new byte[length];
+                System.arraycopy(out, 0, result, 0, length);
+                return result;
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        Bitmap onDecode(byte[] data, BitmapFactory.Options options) {
+            Bitmap bitmap = createRawBitmap(ByteBuffer.wrap(data));
+            int byteCount = bitmap.getByteCount();
+            byte[] pixels = mPixels.get();
+            if (pixels == null || pixels.length < byteCount) {
+                pixels = new byte[byteCount];
+                mPixels.set(pixels);
+            }
+
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(data, RAW_HEADER_SIZE, data.length - RAW_HEADER_SIZE);
+                int length = 0;
+                while (length < byteCount && !inflater.finished()) {
+                    int read = inflater.inflate(pixels, length, byteCount - length);
+                    if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        return null;
+                    }
+                    length += read;
+                }
+            } catch (DataFormatException e) {
+                return null;
+            } finally {
+                inflater.end();
+            }
+            bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels, 0, byteCount));
+            return bitmap;
+        }
+    };
+
+    /**
+     * Raw premultiplied pixels in the config of the bitmap. The largest format, but decoding is
+     * a single copy from the blob straight into the bitmap buffer.
+     */
+    static final IconBlobFormat RAW = new IconBlobFormat(2, "raw") {
+
+        @Override
+        byte[] onEncode(Bitmap bitmap) {
+            bitmap = toSupportedConfig(bitmap);
+            ByteBuffer out = ByteBuffer.allocate(RAW_HEADER_SIZE + bitmap.getByteCount());
+            writeRawHeader(out, bitmap);
+            bitmap.copyPixelsToBuffer(out);
+            return out.array();
+        }
+
+        @Override
+        Bitmap onDecode(byte[] data, BitmapFactory.Options options) {
+            ByteBuffer blob = ByteBuffer.wrap(data);
+            Bitmap bitmap = createRawBitmap(blob);
+            if (blob.remaining() != bitmap.getByteCount()) {
+                return null;
+            }
+            bitmap.copyPixelsFromBuffer(blob);
+            return bitmap;
+        }
+    };
+
+    // width (int), height (int), config (byte)
+    private static final int RAW_HEADER_SIZE = 9;
+
+    private static final byte CONFIG_ARGB_8888 = 0;
+    private static final byte CONFIG_RGB_565 = 1;
+
+    final int id;
+    private final String mName;
+
+    private final AtomicLong mEncodeCount = new AtomicLong();
+    private final AtomicLong mEncodedBytes = new AtomicLong();
+    private final AtomicLong mPixelBytes = new AtomicLong();
+    private final AtomicLong mDecodeCount = new AtomicLong();
+    private final AtomicLong mDecodeTimeNanos = new AtomicLong();
+
+    IconBlobFormat(int id, String name) {
+        this.id = id;
+        mName = name;
+    }
+
+    final byte[] encode(Bitmap bitmap) {
+        byte[] data = onEncode(bitmap);
+        if (data != null) {
+            mEncodeCount.incrementAndGet();
+            mEncodedBytes.addAndGet(data.length);
+            mPixelBytes.addAndGet(bitmap.getByteCount());
+        }
+        return data;
+    }
+
+    /**
+     * @return the decoded bitmap or null if the data is invalid.
+     */
+    final Bitmap decode(byte[] data, BitmapFactory.Options options) {
+        long startTime = SystemClock.elapsedRealtimeNanos();
+        Bitmap bitmap = onDecode(data, options);
+        mDecodeTimeNanos.addAndGet(SystemClock.elapsedRealtimeNanos() - startTime);
+        mDecodeCount.incrementAndGet();
+        return bitmap;
+    }
+
+    abstract byte[] onEncode(Bitmap bitmap);
+
+    abstract Bitmap onDecode(byte[] data, BitmapFactory.Options options);
+
+    void dump(String prefix, PrintWriter writer) {
+        long encodeCount = mEncodeCount.get();
+        long decodeCount = mDecodeCount.get();
+        writer.println(prefix + "Icon blob format: " + mName
+                + " encoded=" + encodeCount
+                + " avgBlobBytes=" + (encodeCount == 0 ? 0 : mEncodedBytes.get() / encodeCount)
+                + " avgPixelBytes=" + (encodeCount == 0 ? 0 : mPixelBytes.get() / encodeCount)
+                + " decoded=" + decodeCount
+                + " avgDecodeUs=" + (decodeCount == 0 ? 0
+                        : mDecodeTimeNanos.get() / decodeCount / 1000));
+    }
+
+    @Thunk static Bitmap toSupportedConfig(Bitmap bitmap) {
+        if (bitmap.getConfig() != Bitmap.Config.ARGB_8888
+                && bitmap.getConfig() != Bitmap.Config.RGB_565) {
+            return bitmap.copy(Bitmap.Config.ARGB_8888, false);
+        }
+        return bitmap;
+    }
+
+    @Thunk static void writeRawHeader(ByteBuffer out, Bitmap bitmap) {
+        out.putInt(bitmap.getWidth());
+        out.putInt(bitmap.getHeight());
+        out.put(bitmap.getConfig() == Bitmap.Config.RGB_565 ? CONFIG_RGB_565 : CONFIG_ARGB_8888);
+    }
+
+    /**
+     * Reads the header of a raw blob and creates the bitmap it describes. {@param blob} is left
+     * positioned on the pixels.
+     */
+    @Thunk static Bitmap createRawBitmap(ByteBuffer blob) {
+        int width = blob.getInt();
+        int height = blob.getInt();
+        Bitmap.Config config = blob.get() == CONFIG_RGB_565
+                ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        return Bitmap.createBitmap(width, height, config);
+    }
+}
@@ -39,6 +39,7 @@ import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Process;
 import android.os.SystemClock;
 import android.os.UserHandle;
@@ -62,16 +63,32 @@ import com.enrico.launcher3.graphics.LauncherIcons;
 import com.enrico.launcher3.model.PackageItemInfo;
 import com.enrico.launcher3.theme.ThemeUtils;
 import com.enrico.launcher3.util.ComponentKey;
+import com.enrico.launcher3.util.LogConfig;
 import com.enrico.launcher3.util.Provider;
 import com.enrico.launcher3.util.SQLiteCacheHelper;
 import com.enrico.launcher3.util.Thunk;
 
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Cache of application icons.  Icons can be made from any thread.
@@ -85,6 +102,37 @@ public class IconCache {
 
     private static final int LOW_RES_SCALE_FACTOR = 5;
 
+    // Number of workspace sized pages worth of full-res icons kept in memory.
+    private static final int FULL_RES_ICON_PAGES = 4;
+    // Upper bound of the memory tier, as a fraction of the max heap size.
+    private static final int MAX_HEAP_FRACTION = 8;
+
+    // Max number of components per prefetch query, below the SQLite limit of bound arguments.
+    private static final int PREFETCH_CHUNK_SIZE = 500;
+
+    // Number of load lock stripes, must be a power of two.
+    private static final int LOAD_LOCK_STRIPES = 16;
+
+    // Max number of threads rendering icons missing from the icon DB.
+    private static final int MAX_RENDER_THREADS = 4;
+    // Max number of rendered icons written to the icon DB in a single transaction.
+    private static final int WRITE_BATCH_SIZE = 20;
+    // Number of icons of which the icon pack icons are read ahead together while rendering.
+    private static final int RENDER_PREFETCH_SIZE = 16;
+    // Delay before checking again for rendered icons, when none is ready to be written.
+    private static final int WRITE_POLL_DELAY_MS = 16;
+
+    private static final boolean SERIAL_ICON_UPDATES =
+            Utilities.isPropertyEnabled(LogConfig.SERIAL_ICON_UPDATES);
+
+    // Max number of low-res icons stored in the icon atlas.
+    private static final int ICON_ATLAS_CAPACITY = 1024;
+
+    private static final IconBlobFormat ICON_FORMAT =
+            Utilities.isPropertyEnabled(LogConfig.PNG_ICON_CACHE) ? IconBlobFormat.PNG
+                    : Utilities.isPropertyEnabled(LogConfig.RAW_ICON_CACHE)
+                            ? IconBlobFormat.RAW : IconBlobFormat.RAW_DEFLATE;
+
     @Thunk private static final Object ICON_UPDATE_TOKEN = new Object();
 
     public static class CacheEntry {
@@ -92,25 +140,57 @@ public class IconCache {
         public CharSequence title = "";
         CharSequence contentDescription = "";
         boolean isLowResIcon;
+        // The color of the badges, computed from the full-res icon, or 0 if it is unknown. It may
+        // be set on the worker thread after the entry is published.
+        volatile int iconColor;
+
+        // Bytes accounted for this entry by the memory tier.
+        int accountedBytes;
+        // Value of the clock of the memory tier when the entry was last put or read.
+        volatile long accessStamp;
     }
 
-    private final HashMap<UserHandle, Bitmap> mDefaultIcons = new HashMap<>();
+    private final ConcurrentHashMap<UserHandle, Bitmap> mDefaultIcons =
+            new ConcurrentHashMap<>();
     @Thunk private final MainThreadExecutor mMainThreadExecutor = new MainThreadExecutor();
 
     private final Context mContext;
     private final PackageManager mPackageManager;
 
-    private IconThemer mIconProvider;
+    @Thunk IconThemer mIconProvider;
 
     @Thunk private final UserManagerCompat mUserManager;
     private final LauncherAppsCompat mLauncherApps;
-    private final HashMap<ComponentKey, CacheEntry> mCache =
-            new HashMap<ComponentKey, CacheEntry>(INITIAL_ICON_CACHE_CAPACITY);
+    private final IconMemoryCache mCache;
+    // Locks serializing the loading of cache misses, striped by the hash of the ComponentKey.
+    private final Object[] mComponentLoadLocks = newLoadLocks();
+    private final Object[] mPackageLoadLocks = newLoadLocks();
     private final int mIconDpi;
     @Thunk private final IconDB mIconDb;
+    private final int mIconDbVersion;
+    // Null when the atlas is disabled.
+    private final IconAtlas mIconAtlas;
 
     @Thunk private final Handler mWorkerHandler;
 
+    // Renders the icons missing from the DB, see ParallelIconUpdateTask.
+    @Thunk final ExecutorService mRenderExecutor;
+    // Tasks updating the DB. Only accessed on the worker thread.
+    private final ArrayList<ParallelIconUpdateTask> mIconUpdateTasks = new ArrayList<>();
+    // Stats of the last icon DB update, for dumpState.
+    @Thunk int mLastIconUpdateCount;
+    @Thunk long mLastIconUpdateDuration;
+    // Progress of the running icon DB update, summed over all the users.
+    private int mIconUpdateTotal;
+    private int mIconUpdateWritten;
+    // Start of the icon pack being applied, or 0. Only accessed on the worker thread.
+    private long mIconPackApplyStartTime;
+    private int mLastIconPackApplyCount;
+    private long mLastIconPackApplyDuration;
+
+    // Only accessed on the main thread.
+    private final ArrayList<IconUpdateListener> mIconUpdateListeners = new ArrayList<>();
+
     // The background color used for activity icons. Since these icons are displayed in all-apps
     // and folders, this would be same as the light quantum panel background. This color
     // is used to convert icons to RGB_565.
@@ -120,8 +200,8 @@ public class IconCache {
     private final int mPackageBgColor;
     private final BitmapFactory.Options mLowResOptions;
 
-    private Canvas mLowResCanvas;
-    private Paint mLowResPaint;
+    private final Canvas mLowResCanvas;
+    private final Paint mLowResPaint;
 
     private static IconsManager sIconsManager;
 
@@ -131,14 +211,28 @@ public class IconCache {
         mUserManager = UserManagerCompat.getInstance(mContext);
         mLauncherApps = LauncherAppsCompat.getInstance(mContext);
         mIconDpi = inv.fillResIconDpi;
-        mIconDb = new IconDB(context, inv.iconBitmapSize);
+        mIconDbVersion = IconDB.getVersion(inv.iconBitmapSize, ICON_FORMAT);
+        mIconDb = new IconDB(context, mIconDbVersion);
         mLowResCanvas = new Canvas();
         mLowResPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.ANTI_ALIAS_FLAG);
 
         mIconProvider = IconThemer.loadByName(context.getString(R.string.icon_provider_class), context);
 
+        int lowResSize = inv.iconBitmapSize / LOW_RES_SCALE_FACTOR;
+        mIconAtlas = Utilities.isPropertyEnabled(LogConfig.NO_ICON_ATLAS) ? null
+                : new IconAtlas(new File(context.getCacheDir(), LauncherFiles.APP_ICONS_ATLAS),
+                        lowResSize, lowResSize, ICON_ATLAS_CAPACITY, getAtlasStamp());
+
         mWorkerHandler = new Handler(LauncherModel.getWorkerLooper());
 
+        int renderThreads = Math.max(1,
+                Math.min(MAX_RENDER_THREADS, Runtime.getRuntime().availableProcessors()));
+        ThreadPoolExecutor renderExecutor = new ThreadPoolExecutor(renderThreads, renderThreads,
+                1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new RenderThreadFactory());
+        renderExecutor.allowCoreThreadTimeOut(true);
+        mRenderExecutor = renderExecutor;
+
         mActivityBgColor = ThemeUtils.getColorPrimary(context, R.style.BaseLauncherTheme);
         mPackageBgColor = ThemeUtils.getColorPrimary(context, R.style.WidgetContainerTheme);
 
@@ -146,6 +240,56 @@ public class IconCache {
         // Always prefer RGB_565 config for low res. If the bitmap has transparency, it will
         // automatically be loaded as ALPHA_8888.
         mLowResOptions.inPreferredConfig = Bitmap.Config.RGB_565;
+
+        mCache = new IconMemoryCache(getMemoryBudget(inv), INITIAL_ICON_CACHE_CAPACITY,
+                new IconMemoryCache.Demoter() {
+
+                    @Override
+                    public CacheEntry demote(ComponentKey key, CacheEntry entry) {
+                        return createLowResEntry(key, entry);
+                    }
+                });
+    }
+
+    /**
+     * Returns the number of bytes the full-res icons can use in memory, enough to hold a few
+     * pages worth of icons for the current grid.
+     */
+    private static long getMemoryBudget(InvariantDeviceProfile inv) {
+        long iconBytes = (long) inv.iconBitmapSize * inv.iconBitmapSize * 4;
+        int iconCount = inv.numRows * inv.numColumns * FULL_RES_ICON_PAGES + inv.numHotseatIcons;
+        return Math.min(iconBytes * iconCount, Runtime.getRuntime().maxMemory() / MAX_HEAP_FRACTION);
+    }
+
+    private static Object[] newLoadLocks() {
+        Object[] locks = new Object[LOAD_LOCK_STRIPES];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        return locks;
+    }
+
+    private static Object getLoadLock(Object[] locks, ComponentKey key) {
+        int hash = key.hashCode();
+        return locks[(hash ^ (hash >>> 16)) & (locks.length - 1)];
+    }
+
+    /**
+     * Creates the low-res form of {@param entry}, used when it is evicted from the memory tier.
+     */
+    @Thunk CacheEntry createLowResEntry(ComponentKey key, CacheEntry entry) {
+        if (entry.icon == null || isDefaultIcon(entry.icon, key.user)) {
+            return null;
+        }
+        boolean isPackageEntry = key.componentName.getClassName().endsWith(EMPTY_CLASS_NAME);
+        CacheEntry lowResEntry = new CacheEntry();
+        lowResEntry.icon = generateLowResIcon(entry.icon,
+                isPackageEntry ? mPackageBgColor : mActivityBgColor);
+        lowResEntry.title = entry.title;
+        lowResEntry.contentDescription = entry.contentDescription;
+        lowResEntry.isLowResIcon = true;
+        lowResEntry.iconColor = entry.iconColor;
+        return lowResEntry;
     }
 
     private Drawable getFullResDefaultActivityIcon() {
@@ -213,30 +357,25 @@ public class IconCache {
     /**
      * Remove any records for the supplied ComponentName.
      */
-    public synchronized void remove(ComponentName componentName, UserHandle user) {
-        mCache.remove(new ComponentKey(componentName, user));
+    public void remove(ComponentName componentName, UserHandle user) {
+        ComponentKey key = new ComponentKey(componentName, user);
+        mCache.remove(key);
+        if (mIconAtlas != null) {
+            mIconAtlas.remove(getAtlasKey(key));
+        }
     }
 
     /**
      * Remove any records for the supplied package name from memory.
      */
     private void removeFromMemCacheLocked(String packageName, UserHandle user) {
-        HashSet<ComponentKey> forDeletion = new HashSet<ComponentKey>();
-        for (ComponentKey key: mCache.keySet()) {
-            if (key.componentName.getPackageName().equals(packageName)
-                    && key.user.equals(user)) {
-                forDeletion.add(key);
-            }
-        }
-        for (ComponentKey condemned: forDeletion) {
-            mCache.remove(condemned);
-        }
+        mCache.removePackage(packageName, user);
     }
 
     /**
      * Updates the entries related to the given package in memory and persistent DB.
      */
-    public synchronized void updateIconsForPkg(String packageName, UserHandle user) {
+    public void updateIconsForPkg(String packageName, UserHandle user) {
         removeIconsForPkg(packageName, user);
         try {
             int uninstalled = android.os.Build.VERSION.SDK_INT >= 24 ? PackageManager.MATCH_UNINSTALLED_PACKAGES : PackageManager.GET_UNINSTALLED_PACKAGES;
@@ -268,7 +407,6 @@ public class IconCache {
     public void addCustomInfoToDataBase(Drawable icon, ItemInfo info, CharSequence title) {
         LauncherActivityInfo app = mLauncherApps.resolveActivity(info.getIntent(), info.user);
         final ComponentKey key = new ComponentKey(app.getComponentName(), app.getUser());
-        CacheEntry entry = mCache.get(key);
         PackageInfo packageInfo = null;
         try {
             packageInfo = mPackageManager.getPackageInfo(
@@ -276,11 +414,9 @@ public class IconCache {
         } catch (NameNotFoundException e) {
             e.printStackTrace();
         }
-        // We can't reuse the entry if the high-res icon is not present.
-        if (entry == null || entry.isLowResIcon || entry.icon == null) {
-            entry = new CacheEntry();
-        }
+        CacheEntry entry = new CacheEntry();
         entry.icon = LauncherIcons.createIconBitmap(icon, mContext);
+        entry.iconColor = getIconColor(entry.icon);
 
         entry.title = title != null ? title : app.getLabel();
 
@@ -288,8 +424,9 @@ public class IconCache {
         mCache.put(key, entry);
 
         Bitmap lowResIcon = generateLowResIcon(entry.icon, mActivityBgColor);
-        ContentValues values = newContentValues(entry.icon, lowResIcon, entry.title.toString(),
-                app.getApplicationInfo().packageName);
+        writeToAtlas(key, entry.title, lowResIcon, entry.iconColor);
+        ContentValues values = newContentValues(entry.icon, lowResIcon, entry.iconColor,
+                entry.title.toString(), app.getApplicationInfo().packageName);
         if (packageInfo != null) {
             addIconToDB(values, app.getComponentName(), packageInfo,
                     mUserManager.getSerialNumberForUser(app.getUser()));
@@ -299,19 +436,31 @@ public class IconCache {
     /**
      * Removes the entries related to the given package in memory and persistent DB.
      */
-    public synchronized void removeIconsForPkg(String packageName, UserHandle user) {
+    public void removeIconsForPkg(String packageName, UserHandle user) {
         removeFromMemCacheLocked(packageName, user);
         long userSerial = mUserManager.getSerialNumberForUser(user);
         mIconDb.delete(
                 IconDB.COLUMN_COMPONENT + " LIKE ? AND " + IconDB.COLUMN_USER + " = ?",
                 new String[]{packageName + "/%", Long.toString(userSerial)});
+        if (mIconAtlas != null) {
+            mIconAtlas.removeMatching(packageName + "/", "#" + userSerial);
+        }
     }
 
     public void updateDbIcons(Set<String> ignorePackagesForMainUser) {
         // Remove all active icon update tasks.
         mWorkerHandler.removeCallbacksAndMessages(ICON_UPDATE_TOKEN);
+        for (ParallelIconUpdateTask task : mIconUpdateTasks) {
+            task.cancel();
+        }
+        mIconUpdateTasks.clear();
+        mIconUpdateTotal = 0;
+        mIconUpdateWritten = 0;
 
         mIconProvider.updateSystemStateString();
+        if (mIconAtlas != null) {
+            mIconAtlas.setStamp(getAtlasStamp());
+        }
         for (UserHandle user : mUserManager.getUserProfiles()) {
             // Query for the set of apps
             final List<LauncherActivityInfo> apps = mLauncherApps.getActivityList(null, user);
@@ -326,6 +475,47 @@ public class IconCache {
             updateDBIcons(user, apps, Process.myUserHandle().equals(user)
                     ? ignorePackagesForMainUser : Collections.<String>emptySet());
         }
+        // Report the progress, if only to tell that there is nothing to update.
+        onIconsWritten(0);
+    }
+
+    /**
+     * Marks the start of applying an icon pack, which ends when the following icon DB update
+     * is written. Must be called on the worker thread.
+     */
+    public void onIconPackApplyStarted() {
+        mIconPackApplyStartTime = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Adds {@param count} icons to the progress of the icon DB update and notifies the listeners.
+     * Called on the worker thread.
+     */
+    @Thunk void onIconsWritten(int count) {
+        mIconUpdateWritten += count;
+        final int written = mIconUpdateWritten;
+        final int total = mIconUpdateTotal;
+        if (written >= total && mIconPackApplyStartTime != 0) {
+            mLastIconPackApplyCount = total;
+            mLastIconPackApplyDuration = SystemClock.uptimeMillis() - mIconPackApplyStartTime;
+            mIconPackApplyStartTime = 0;
+        }
+        mMainThreadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = mIconUpdateListeners.size() - 1; i >= 0; i--) {
+                    mIconUpdateListeners.get(i).onIconUpdateProgress(written, total);
+                }
+            }
+        });
+    }
+
+    public void addIconUpdateListener(IconUpdateListener listener) {
+        mIconUpdateListeners.add(listener);
+    }
+
+    public void removeIconUpdateListener(IconUpdateListener listener) {
+        mIconUpdateListeners.remove(listener);
     }
 
     /**
@@ -415,8 +605,16 @@ public class IconCache {
         if (!componentMap.isEmpty() || !appsToUpdate.isEmpty()) {
             Stack<LauncherActivityInfo> appsToAdd = new Stack<>();
             appsToAdd.addAll(componentMap.values());
-            new SerializedIconUpdateTask(userSerial, pkgInfoMap,
-                    appsToAdd, appsToUpdate).scheduleNext();
+            if (SERIAL_ICON_UPDATES) {
+                new SerializedIconUpdateTask(userSerial, pkgInfoMap,
+                        appsToAdd, appsToUpdate).scheduleNext();
+            } else {
+                ParallelIconUpdateTask task = new ParallelIconUpdateTask(userSerial, pkgInfoMap,
+                        appsToAdd, appsToUpdate);
+                mIconUpdateTasks.add(task);
+                mIconUpdateTotal += task.getCount();
+                task.scheduleNext(false);
+            }
         }
     }
 
@@ -426,43 +624,64 @@ public class IconCache {
      *                        the memory. This is useful then the previous bitmap was created using
      *                        old data.
      */
-    @Thunk private synchronized void addIconToDBAndMemCache(LauncherActivityInfo app,
+    @Thunk void addIconToDBAndMemCache(LauncherActivityInfo app,
+            PackageInfo info, long userSerial, boolean replaceExisting) {
+        mIconDb.insertOrReplace(renderIcon(app, info, userSerial, replaceExisting));
+    }
+
+    /**
+     * Adds an entry into the in-memory cache and returns the corresponding DB row. This can be
+     * called from any thread.
+     * @see #addIconToDBAndMemCache(LauncherActivityInfo, PackageInfo, long, boolean)
+     */
+    @Thunk ContentValues renderIcon(LauncherActivityInfo app,
             PackageInfo info, long userSerial, boolean replaceExisting) {
         final ComponentKey key = new ComponentKey(app.getComponentName(), app.getUser());
-        CacheEntry entry = null;
-        if (!replaceExisting) {
-            entry = mCache.get(key);
-            // We can't reuse the entry if the high-res icon is not present.
-            if (entry == null || entry.isLowResIcon || entry.icon == null) {
-                entry = null;
+        // The cached entry is shared with other threads, so a new entry is always published.
+        CacheEntry entry = new CacheEntry();
+        synchronized (getLoadLock(mComponentLoadLocks, key)) {
+            CacheEntry existing = replaceExisting ? null : mCache.get(key);
+            // We can't reuse the icon if the high-res icon is not present.
+            if (existing != null && !existing.isLowResIcon && existing.icon != null) {
+                entry.icon = existing.icon;
+                entry.iconColor = existing.iconColor;
+            } else {
+                entry.icon = LauncherIcons.createBadgedIconBitmap(getFullResIcon(app),
+                        app.getUser(), mContext,  app.getApplicationInfo().targetSdkVersion);
             }
+            if (entry.iconColor == 0) {
+                entry.iconColor = getIconColor(entry.icon);
+            }
+            entry.title = app.getLabel();
+            entry.contentDescription =
+                    mUserManager.getBadgedLabelForUser(entry.title, app.getUser());
+            mCache.put(key, entry);
         }
-        if (entry == null) {
-            entry = new CacheEntry();
-            entry.icon = LauncherIcons.createBadgedIconBitmap(getFullResIcon(app), app.getUser(),
-                    mContext,  app.getApplicationInfo().targetSdkVersion);
-        }
-        entry.title = app.getLabel();
-        entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, app.getUser());
-        mCache.put(key, entry);
 
         Bitmap lowResIcon = generateLowResIcon(entry.icon, mActivityBgColor);
-        ContentValues values = newContentValues(entry.icon, lowResIcon, entry.title.toString(),
-                app.getApplicationInfo().packageName);
-        addIconToDB(values, app.getComponentName(), info, userSerial);
+        writeToAtlas(key, entry.title, lowResIcon, entry.iconColor);
+        ContentValues values = newContentValues(entry.icon, lowResIcon, entry.iconColor,
+                entry.title.toString(), app.getApplicationInfo().packageName);
+        putVersionInfo(values, app.getComponentName(), info, userSerial);
+        return values;
     }
 
     /**
      * Updates {@param values} to contain versioning information and adds it to the DB.
      * @param values {@link ContentValues} containing icon & title
      */
-    private void addIconToDB(ContentValues values, ComponentName key,
+    @Thunk void addIconToDB(ContentValues values, ComponentName key,
+            PackageInfo info, long userSerial) {
+        putVersionInfo(values, key, info, userSerial);
+        mIconDb.insertOrReplace(values);
+    }
+
+    private static void putVersionInfo(ContentValues values, ComponentName key,
             PackageInfo info, long userSerial) {
         values.put(IconDB.COLUMN_COMPONENT, key.flattenToString());
         values.put(IconDB.COLUMN_USER, userSerial);
         values.put(IconDB.COLUMN_LAST_UPDATED, info.lastUpdateTime);
         values.put(IconDB.COLUMN_VERSION, info.versionCode);
-        mIconDb.insertOrReplace(values);
     }
 
     /**
@@ -496,7 +715,7 @@ public class IconCache {
     /**
      * Updates {@param application} only if a valid entry is found.
      */
-    public synchronized void updateTitleAndIcon(AppInfo application) {
+    public void updateTitleAndIcon(AppInfo application) {
         CacheEntry entry = cacheLocked(application.componentName,
                 Provider.<LauncherActivityInfo>of(null),
                 application.user, false, application.usingLowResIcon);
@@ -508,7 +727,7 @@ public class IconCache {
     /**
      * Fill in {@param info} with the icon and label for {@param activityInfo}
      */
-    public synchronized void getTitleAndIcon(ItemInfoWithIcon info,
+    public void getTitleAndIcon(ItemInfoWithIcon info,
             LauncherActivityInfo activityInfo, boolean useLowResIcon) {
 
         // If we already have activity info, no need to use package icon
@@ -519,11 +738,12 @@ public class IconCache {
      * Fill in {@param info} with the icon and label. If the
      * corresponding activity is not found, it reverts to the package icon.
      */
-    public synchronized void getTitleAndIcon(ItemInfoWithIcon info, boolean useLowResIcon) {
+    public void getTitleAndIcon(ItemInfoWithIcon info, boolean useLowResIcon) {
         // null info means not installed, but if we have a component from the intent then
         // we should still look in the cache for restored app icons.
         if (info.getTargetComponent() == null) {
             info.iconBitmap = getDefaultIcon(info.user);
+            info.iconColor = 0;
             info.title = "";
             info.contentDescription = "";
             info.usingLowResIcon = false;
@@ -536,7 +756,7 @@ public class IconCache {
     /**
      * Fill in {@param shortcutInfo} with the icon and label for {@param info}
      */
-    private synchronized void getTitleAndIcon(
+    private void getTitleAndIcon(
             @NonNull ItemInfoWithIcon infoInOut,
             @NonNull Provider<LauncherActivityInfo> activityInfoProvider,
             boolean usePkgIcon, boolean useLowResIcon) {
@@ -548,7 +768,7 @@ public class IconCache {
     /**
      * Fill in {@param infoInOut} with the corresponding icon and label.
      */
-    public synchronized void getTitleAndIconForApp(
+    public void getTitleAndIconForApp(
             PackageItemInfo infoInOut, boolean useLowResIcon) {
         CacheEntry entry = getEntryForPackageLocked(
                 infoInOut.packageName, infoInOut.user, useLowResIcon);
@@ -559,14 +779,22 @@ public class IconCache {
         info.title = Utilities.trim(entry.title);
         info.contentDescription = entry.contentDescription;
         info.iconBitmap = entry.icon == null ? getDefaultIcon(info.user) : entry.icon;
+        info.iconColor = entry.icon == null ? 0 : entry.iconColor;
         info.usingLowResIcon = entry.isLowResIcon;
     }
 
-    public synchronized Bitmap getDefaultIcon(UserHandle user) {
-        if (!mDefaultIcons.containsKey(user)) {
-            mDefaultIcons.put(user, makeDefaultIcon(user));
+    public Bitmap getDefaultIcon(UserHandle user) {
+        Bitmap icon = mDefaultIcons.get(user);
+        if (icon == null) {
+            synchronized (mDefaultIcons) {
+                icon = mDefaultIcons.get(user);
+                if (icon == null) {
+                    icon = makeDefaultIcon(user);
+                    mDefaultIcons.put(user, icon);
+                }
+            }
         }
-        return mDefaultIcons.get(user);
+        return icon;
     }
 
     public boolean isDefaultIcon(Bitmap icon, UserHandle user) {
@@ -575,7 +803,7 @@ public class IconCache {
 
     /**
      * Retrieves the entry from the cache. If the entry is not present, it creates a new entry.
-     * This method is not thread safe, it must be called from a synchronized method.
+     * Cache hits do not take any lock, misses only contend with other loads of the same stripe.
      */
     private CacheEntry cacheLocked(
             @NonNull ComponentName componentName,
@@ -584,78 +812,91 @@ public class IconCache {
 
         ComponentKey cacheKey = new ComponentKey(componentName, user);
         CacheEntry entry = mCache.get(cacheKey);
-        if (entry == null || (entry.isLowResIcon && !useLowResIcon)) {
-            entry = new CacheEntry();
-            mCache.put(cacheKey, entry);
+        if (entry != null && (!entry.isLowResIcon || useLowResIcon)) {
+            return entry;
+        }
+        synchronized (getLoadLock(mComponentLoadLocks, cacheKey)) {
+            // The entry might have been loaded while waiting for the lock.
+            entry = mCache.get(cacheKey);
+            if (entry == null || (entry.isLowResIcon && !useLowResIcon)) {
+                entry = new CacheEntry();
 
-            // Check the DB first.
-            LauncherActivityInfo info = null;
-            boolean providerFetchedOnce = false;
+                // Check the DB first.
+                LauncherActivityInfo info = null;
+                boolean providerFetchedOnce = false;
 
-            if (!getEntryFromDB(cacheKey, entry, useLowResIcon)) {
-                info = infoProvider.get();
-                providerFetchedOnce = true;
+                if (!getEntryFromAtlasOrDB(cacheKey, entry, useLowResIcon)) {
+                    info = infoProvider.get();
+                    providerFetchedOnce = true;
 
-                if (info != null) {
-                    entry.icon = LauncherIcons.createBadgedIconBitmap(
-                            getFullResIcon(info), info.getUser(), mContext,
-                            infoProvider.get().getApplicationInfo().targetSdkVersion);
-                } else {
-                    if (usePackageIcon) {
-                        CacheEntry packageEntry = getEntryForPackageLocked(
-                                componentName.getPackageName(), user, false);
-                        if (packageEntry != null) {
-                            entry.icon = packageEntry.icon;
-                            entry.title = packageEntry.title;
-                            entry.contentDescription = packageEntry.contentDescription;
+                    if (info != null) {
+                        entry.icon = LauncherIcons.createBadgedIconBitmap(
+                                getFullResIcon(info), info.getUser(), mContext,
+                                infoProvider.get().getApplicationInfo().targetSdkVersion);
+                        setIconColor(entry, entry.icon, null);
+                    } else {
+                        if (usePackageIcon) {
+                            CacheEntry packageEntry = getEntryForPackageLocked(
+                                    componentName.getPackageName(), user, false);
+                            if (packageEntry != null) {
+                                entry.icon = packageEntry.icon;
+                                entry.iconColor = packageEntry.iconColor;
+                                entry.title = packageEntry.title;
+                                entry.contentDescription = packageEntry.contentDescription;
+                            }
+                        }
+                        if (entry.icon == null) {
+                            entry.icon = getDefaultIcon(user);
                         }
-                    }
-                    if (entry.icon == null) {
-                        entry.icon = getDefaultIcon(user);
                     }
                 }
-            }
 
-            if (TextUtils.isEmpty(entry.title)) {
-                if (info == null && !providerFetchedOnce) {
-                    info = infoProvider.get();
-                    providerFetchedOnce = true;
-                }
-                if (info != null) {
-                    entry.title = info.getLabel();
-                    entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
+                if (TextUtils.isEmpty(entry.title)) {
+                    if (info == null && !providerFetchedOnce) {
+                        info = infoProvider.get();
+                        providerFetchedOnce = true;
+                    }
+                    if (info != null) {
+                        entry.title = info.getLabel();
+                        entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
+                    }
                 }
+                // Only add the entry once it is filled, so that its size is accounted correctly.
+                mCache.put(cacheKey, entry);
             }
+            return entry;
         }
-        return entry;
     }
 
-    public synchronized void clear() {
+    public void clear() {
         mIconDb.clear();
+        if (mIconAtlas != null) {
+            mIconAtlas.clear();
+        }
     }
 
     /**
      * Adds a default package entry in the cache. This entry is not persisted and will be removed
      * when the cache is flushed.
      */
-    public synchronized void cachePackageInstallInfo(String packageName, UserHandle user,
+    public void cachePackageInstallInfo(String packageName, UserHandle user,
             Bitmap icon, CharSequence title) {
         removeFromMemCacheLocked(packageName, user);
 
         ComponentKey cacheKey = getPackageKey(packageName, user);
-        CacheEntry entry = mCache.get(cacheKey);
-
-        // For icon caching, do not go through DB. Just update the in-memory entry.
-        if (entry == null) {
-            entry = new CacheEntry();
+        synchronized (getLoadLock(mPackageLoadLocks, cacheKey)) {
+            // For icon caching, do not go through DB. Just publish a new in-memory entry, the
+            // previous one was removed with the package.
+            CacheEntry entry = new CacheEntry();
+            if (!TextUtils.isEmpty(title)) {
+                entry.title = title;
+            }
+            if (icon != null) {
+                entry.icon = LauncherIcons.createIconBitmap(icon, mContext);
+                setIconColor(entry, entry.icon, null);
+            }
             mCache.put(cacheKey, entry);
         }
-        if (!TextUtils.isEmpty(title)) {
-            entry.title = title;
-        }
-        if (icon != null) {
-            entry.icon = LauncherIcons.createIconBitmap(icon, mContext);
-        }
     }
 
     private static ComponentKey getPackageKey(String packageName, UserHandle user) {
@@ -665,57 +906,72 @@ public class IconCache {
 
     /**
      * Gets an entry for the package, which can be used as a fallback entry for various components.
-     * This method is not thread safe, it must be called from a synchronized method.
+     * Package entries use their own load locks, so that this can be called while holding the load
+     * lock of a component.
      */
     private CacheEntry getEntryForPackageLocked(String packageName, UserHandle user,
             boolean useLowResIcon) {
         ComponentKey cacheKey = getPackageKey(packageName, user);
         CacheEntry entry = mCache.get(cacheKey);
+        if (entry != null && (!entry.isLowResIcon || useLowResIcon)) {
+            return entry;
+        }
+        synchronized (getLoadLock(mPackageLoadLocks, cacheKey)) {
+            entry = mCache.get(cacheKey);
+            if (entry == null || (entry.isLowResIcon && !useLowResIcon)) {
+                entry = new CacheEntry();
+                boolean entryUpdated = true;
+
+                // Check the DB first.
+                if (!getEntryFromDB(cacheKey, entry, useLowResIcon)) {
+                    try {
+                        int uninstalled = android.os.Build.VERSION.SDK_INT >= 24 ? PackageManager.MATCH_UNINSTALLED_PACKAGES : PackageManager.GET_UNINSTALLED_PACKAGES;
+                        int flags = Process.myUserHandle().equals(user) ? 0 : uninstalled;
+                        PackageInfo info = mPackageManager.getPackageInfo(packageName, flags);
+                        ApplicationInfo appInfo = info.applicationInfo;
+                        if (appInfo == null) {
+                            throw new NameNotFoundException("ApplicationInfo is null");
+                        }
 
-        if (entry == null || (entry.isLowResIcon && !useLowResIcon)) {
-            entry = new CacheEntry();
-            boolean entryUpdated = true;
-
-            // Check the DB first.
-            if (!getEntryFromDB(cacheKey, entry, useLowResIcon)) {
-                try {
-                    int uninstalled = android.os.Build.VERSION.SDK_INT >= 24 ? PackageManager.MATCH_UNINSTALLED_PACKAGES : PackageManager.GET_UNINSTALLED_PACKAGES;
-                    int flags = Process.myUserHandle().equals(user) ? 0 : uninstalled;
-                    PackageInfo info = mPackageManager.getPackageInfo(packageName, flags);
-                    ApplicationInfo appInfo = info.applicationInfo;
-                    if (appInfo == null) {
-                        throw new NameNotFoundException("ApplicationInfo is null");
+                        // Load the full res icon for the application, but if useLowResIcon is set, then
+                        // only keep the low resolution icon instead of the larger full-sized icon
+                        Bitmap icon = LauncherIcons.createBadgedIconBitmap(
+                                appInfo.loadIcon(mPackageManager), user, mContext, appInfo.targetSdkVersion);
+                        Bitmap lowResIcon =  generateLowResIcon(icon, mPackageBgColor);
+                        entry.title = appInfo.loadLabel(mPackageManager);
+                        entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
+                        entry.icon = useLowResIcon ? lowResIcon : icon;
+                        entry.isLowResIcon = useLowResIcon;
+
+                        // Add the icon in the DB here, since these do not get written during
+                        // package updates. The color is only known once it is extracted.
+                        final CacheEntry colorEntry = entry;
+                        final ContentValues values = newContentValues(icon, lowResIcon, 0,
+                                entry.title.toString(), packageName);
+                        final ComponentName component = cacheKey.componentName;
+                        final PackageInfo packageInfo = info;
+                        final long userSerial = mUserManager.getSerialNumberForUser(user);
+                        setIconColor(entry, icon, new Runnable() {
+                            @Override
+                            public void run() {
+                                values.put(IconDB.COLUMN_ICON_COLOR, colorEntry.iconColor);
+                                addIconToDB(values, component, packageInfo, userSerial);
+                            }
+                        });
+
+                    } catch (NameNotFoundException e) {
+                        e.printStackTrace();
+                        entryUpdated = false;
                     }
-
-                    // Load the full res icon for the application, but if useLowResIcon is set, then
-                    // only keep the low resolution icon instead of the larger full-sized icon
-                    Bitmap icon = LauncherIcons.createBadgedIconBitmap(
-                            appInfo.loadIcon(mPackageManager), user, mContext, appInfo.targetSdkVersion);
-                    Bitmap lowResIcon =  generateLowResIcon(icon, mPackageBgColor);
-                    entry.title = appInfo.loadLabel(mPackageManager);
-                    entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
-                    entry.icon = useLowResIcon ? lowResIcon : icon;
-                    entry.isLowResIcon = useLowResIcon;
-
-                    // Add the icon in the DB here, since these do not get written during
-                    // package updates.
-                    ContentValues values =
-                            newContentValues(icon, lowResIcon, entry.title.toString(), packageName);
-                    addIconToDB(values, cacheKey.componentName, info,
-                            mUserManager.getSerialNumberForUser(user));
-
-                } catch (NameNotFoundException e) {
-                    e.printStackTrace();
-                    entryUpdated = false;
                 }
-            }
 
-            // Only add a filled-out entry to the cache
-            if (entryUpdated) {
-                mCache.put(cacheKey, entry);
+                // Only add a filled-out entry to the cache
+                if (entryUpdated) {
+                    mCache.put(cacheKey, entry);
+                }
             }
+            return entry;
         }
-        return entry;
     }
 
     private boolean getEntryFromDB(ComponentKey cacheKey, CacheEntry entry, boolean lowRes) {
@@ -723,21 +979,12 @@ public class IconCache {
         try {
             c = mIconDb.query(
                 new String[]{lowRes ? IconDB.COLUMN_ICON_LOW_RES : IconDB.COLUMN_ICON,
-                        IconDB.COLUMN_LABEL},
+                        IconDB.COLUMN_LABEL, IconDB.COLUMN_ICON_COLOR},
                 IconDB.COLUMN_COMPONENT + " = ? AND " + IconDB.COLUMN_USER + " = ?",
                 new String[]{cacheKey.componentName.flattenToString(),
                         Long.toString(mUserManager.getSerialNumberForUser(cacheKey.user))});
             if (c.moveToNext()) {
-                entry.icon = loadIconNoResize(c, 0, lowRes ? mLowResOptions : null);
-                entry.isLowResIcon = lowRes;
-                entry.title = c.getString(1);
-                if (entry.title == null) {
-                    entry.title = "";
-                    entry.contentDescription = "";
-                } else {
-                    entry.contentDescription = mUserManager.getBadgedLabelForUser(
-                            entry.title, cacheKey.user);
-                }
+                readEntry(c, cacheKey.user, entry, lowRes);
                 return true;
             }
         } catch (SQLiteException e) {
@@ -750,14 +997,222 @@ public class IconCache {
         return false;
     }
 
+    /**
+     * Fills {@param entry} from the current row of {@param c}, which must have the icon at
+     * index 0, the label at index 1 and the icon color at index 2.
+     */
+    private void readEntry(Cursor c, UserHandle user, CacheEntry entry, boolean lowRes) {
+        entry.icon = loadIconNoResize(c, 0, lowRes ? mLowResOptions : null);
+        entry.isLowResIcon = lowRes;
+        entry.iconColor = c.getInt(2);
+        entry.title = c.getString(1);
+        if (entry.title == null) {
+            entry.title = "";
+            entry.contentDescription = "";
+        } else {
+            entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
+        }
+    }
+
+    /**
+     * Loads the DB entries of all the provided components into the memory cache, using a single
+     * query per user and chunk of {@link #PREFETCH_CHUNK_SIZE} components. Components which are
+     * already in memory or not present in the DB are skipped, and will be loaded individually
+     * when requested.
+     */
+    public void prefetch(Collection<ComponentKey> keys, boolean lowRes) {
+        HashMap<UserHandle, ArrayList<String>> componentsByUser = new HashMap<>();
+        for (ComponentKey key : keys) {
+            CacheEntry entry = mCache.get(key);
+            if (entry != null && (!entry.isLowResIcon || lowRes)) {
+                continue;
+            }
+            if (lowRes && prefetchFromAtlas(key)) {
+                continue;
+            }
+            ArrayList<String> components = componentsByUser.get(key.user);
+            if (components == null) {
+                components = new ArrayList<>();
+                componentsByUser.put(key.user, components);
+            }
+            components.add(key.componentName.flattenToString());
+        }
+
+        for (Map.Entry<UserHandle, ArrayList<String>> e : componentsByUser.entrySet()) {
+            UserHandle user = e.getKey();
+            ArrayList<String> components = e.getValue();
+            String userSerial = Long.toString(mUserManager.getSerialNumberForUser(user));
+            for (int start = 0; start < components.size(); start += PREFETCH_CHUNK_SIZE) {
+                int end = Math.min(start + PREFETCH_CHUNK_SIZE, components.size());
+                prefetchChunk(components.subList(start, end), user, userSerial, lowRes);
+            }
+        }
+    }
+
+    private void prefetchChunk(List<String> components, UserHandle user, String userSerial,
+            boolean lowRes) {
+        StringBuilder selection = new StringBuilder(IconDB.COLUMN_COMPONENT).append(" IN (");
+        String[] selectionArgs = new String[components.size() + 1];
+        for (int i = 0; i < components.size(); i++) {
+            selection.append(i == 0 ? "?" : ", ?");
+            selectionArgs[i] = components.get(i);
+        }
+        selection.append(") AND ").append(IconDB.COLUMN_USER).append(" = ?");
+        selectionArgs[components.size()] = userSerial;
+
+        Cursor c = null;
+        try {
+            c = mIconDb.query(
+                    new String[]{lowRes ? IconDB.COLUMN_ICON_LOW_RES : IconDB.COLUMN_ICON,
+                            IconDB.COLUMN_LABEL, IconDB.COLUMN_ICON_COLOR,
+                            IconDB.COLUMN_COMPONENT},
+                    selection.toString(), selectionArgs);
+            while (c.moveToNext()) {
+                ComponentName cn = ComponentName.unflattenFromString(c.getString(3));
+                if (cn == null) {
+                    continue;
+                }
+                ComponentKey cacheKey = new ComponentKey(cn, user);
+                CacheEntry entry = new CacheEntry();
+                readEntry(c, user, entry, lowRes);
+                if (entry.icon == null) {
+                    continue;
+                }
+                if (lowRes) {
+                    writeToAtlas(cacheKey, entry.title, entry.icon, entry.iconColor);
+                }
+                synchronized (getLoadLock(mComponentLoadLocks, cacheKey)) {
+                    CacheEntry existing = mCache.get(cacheKey);
+                    if (existing == null || (existing.isLowResIcon && !lowRes)) {
+                        mCache.put(cacheKey, entry);
+                    }
+                }
+            }
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    private boolean prefetchFromAtlas(ComponentKey cacheKey) {
+        if (mIconAtlas == null) {
+            return false;
+        }
+        CacheEntry entry = new CacheEntry();
+        if (!mIconAtlas.read(getAtlasKey(cacheKey), entry)) {
+            return false;
+        }
+        entry.contentDescription =
+                mUserManager.getBadgedLabelForUser(entry.title, cacheKey.user);
+        synchronized (getLoadLock(mComponentLoadLocks, cacheKey)) {
+            if (mCache.get(cacheKey) == null) {
+                mCache.put(cacheKey, entry);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Same as {@link #getEntryFromDB(ComponentKey, CacheEntry, boolean)}, but low-res icons are
+     * read from the icon atlas when present.
+     */
+    private boolean getEntryFromAtlasOrDB(ComponentKey cacheKey, CacheEntry entry,
+            boolean lowRes) {
+        if (lowRes && mIconAtlas != null) {
+            if (mIconAtlas.read(getAtlasKey(cacheKey), entry)) {
+                entry.contentDescription =
+                        mUserManager.getBadgedLabelForUser(entry.title, cacheKey.user);
+                return true;
+            }
+            if (getEntryFromDB(cacheKey, entry, true)) {
+                writeToAtlas(cacheKey, entry.title, entry.icon, entry.iconColor);
+                return true;
+            }
+            return false;
+        }
+        return getEntryFromDB(cacheKey, entry, lowRes);
+    }
+
+    private void writeToAtlas(ComponentKey cacheKey, CharSequence title, Bitmap lowResIcon,
+            int iconColor) {
+        if (mIconAtlas != null) {
+            mIconAtlas.write(getAtlasKey(cacheKey), title, lowResIcon, iconColor);
+        }
+    }
+
+    /**
+     * Returns the color of the badges of {@param icon}. Extracting the palette is expensive, so
+     * this is only done when the icon is created, and the color is stored with the icon.
+     */
+    @Thunk int getIconColor(Bitmap icon) {
+        return icon == null ? 0 : IconColorExtractor.get(mContext, icon);
+    }
+
+    /**
+     * Sets the badge color of {@param entry} from {@param icon}, then runs {@param onColorSet}
+     * if not null. On the main thread the color is extracted on the worker thread instead, and
+     * the badges of the items bound before fall back to extracting it themselves.
+     */
+    private void setIconColor(final CacheEntry entry, final Bitmap icon,
+            final Runnable onColorSet) {
+        Runnable extract = new Runnable() {
+            @Override
+            public void run() {
+                entry.iconColor = getIconColor(icon);
+                if (onColorSet != null) {
+                    onColorSet.run();
+                }
+            }
+        };
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            mWorkerHandler.post(extract);
+        } else {
+            extract.run();
+        }
+    }
+
+    /**
+     * Returns the stamp of the icon DB version and icon system state of the atlas, so that
+     * icons rendered for another state are never read from it.
+     */
+    private int getAtlasStamp() {
+        return 31 * mIconDbVersion + mIconProvider.getSystemState().hashCode();
+    }
+
+    private String getAtlasKey(ComponentKey cacheKey) {
+        return cacheKey.componentName.flattenToString() + "#"
+                + mUserManager.getSerialNumberForUser(cacheKey.user);
+    }
+
     void clearIconDataBase() {
-        mIconDb.clearDB(mIconDb.getDatabase());
+        mIconDb.clear();
+        if (mIconAtlas != null) {
+            mIconAtlas.clear();
+        }
+    }
+
+    /**
+     * Writes the icons waiting to be persisted to the DB, on the worker thread.
+     */
+    public void flushPendingWrites() {
+        mIconDb.flushAsync();
     }
 
     void flush() {
-        synchronized (mCache) {
-            mCache.clear();
-        }
+        mCache.clear();
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        mCache.dump(prefix, writer);
+        writer.println(prefix + "Last icon DB update: icons=" + mLastIconUpdateCount
+                + " time=" + mLastIconUpdateDuration + "ms");
+        writer.println(prefix + "Last icon pack apply: icons=" + mLastIconPackApplyCount
+                + " time=" + mLastIconPackApplyDuration + "ms");
+        mIconDb.dump(prefix, writer);
+        ICON_FORMAT.dump(prefix, writer);
     }
 
     public static class IconLoadRequest {
@@ -832,8 +1287,151 @@ public class IconCache {
         }
     }
 
+    /**
+     * Updates invalid icons and adds missing icons in the DB for the provided
+     * LauncherActivityInfo list. Icons are rendered in parallel on {@link #mRenderExecutor},
+     * while this runnable writes them on the worker thread in batches, in the order they were
+     * submitted. It only writes the icons which are already rendered, so that the worker thread
+     * doesn't get blocked.
+     */
+    @Thunk class ParallelIconUpdateTask implements Runnable {
+        private final long mUserSerial;
+        private final ArrayList<Future<ContentValues>> mRenderedIcons = new ArrayList<>();
+        private final HashSet<String> mUpdatedPackages = new HashSet<String>();
+        private final int mUpdateCount;
+        private final long mStartTime = SystemClock.uptimeMillis();
+
+        private int mWrittenCount;
+
+        @Thunk ParallelIconUpdateTask(long userSerial, HashMap<String, PackageInfo> pkgInfoMap,
+                Stack<LauncherActivityInfo> appsToAdd,
+                Stack<LauncherActivityInfo> appsToUpdate) {
+            mUserSerial = userSerial;
+            ArrayList<LauncherActivityInfo> apps = new ArrayList<>();
+            ArrayList<PackageInfo> infos = new ArrayList<>();
+            for (LauncherActivityInfo app : appsToUpdate) {
+                String pkg = app.getComponentName().getPackageName();
+                apps.add(app);
+                infos.add(pkgInfoMap.get(pkg));
+                mUpdatedPackages.add(pkg);
+            }
+            mUpdateCount = apps.size();
+            for (LauncherActivityInfo app : appsToAdd) {
+                PackageInfo info = pkgInfoMap.get(app.getComponentName().getPackageName());
+                // We do not check the pkgInfoMap when generating the appsToAdd. Although every
+                // app should have package info, this is not guaranteed by the api
+                if (info != null) {
+                    apps.add(app);
+                    infos.add(info);
+                }
+            }
+
+            for (int i = 0; i < apps.size(); i++) {
+                // The first icon of each chunk reads ahead the icon pack icons of the chunk.
+                ArrayList<ComponentName> prefetch = null;
+                if (i % RENDER_PREFETCH_SIZE == 0) {
+                    prefetch = new ArrayList<>(RENDER_PREFETCH_SIZE);
+                    for (int j = i; j < Math.min(i + RENDER_PREFETCH_SIZE, apps.size()); j++) {
+                        prefetch.add(apps.get(j).getComponentName());
+                    }
+                }
+                submit(apps.get(i), infos.get(i), i < mUpdateCount /*replace existing*/,
+                        prefetch);
+            }
+        }
+
+        private void submit(final LauncherActivityInfo app, final PackageInfo info,
+                final boolean replaceExisting, final ArrayList<ComponentName> prefetch) {
+            mRenderedIcons.add(mRenderExecutor.submit(new Callable<ContentValues>() {
+
+                @Override
+                public ContentValues call() {
+                    if (prefetch != null) {
+                        mIconProvider.prefetchIcons(prefetch);
+                    }
+                    return renderIcon(app, info, mUserSerial, replaceExisting);
+                }
+            }));
+        }
+
+        @Override
+        public void run() {
+            ArrayList<ContentValues> batch = new ArrayList<>(WRITE_BATCH_SIZE);
+            int total = mRenderedIcons.size();
+            int start = mWrittenCount;
+            while (mWrittenCount < total && batch.size() < WRITE_BATCH_SIZE) {
+                Future<ContentValues> future = mRenderedIcons.get(mWrittenCount);
+                if (!future.isDone()) {
+                    break;
+                }
+                mRenderedIcons.set(mWrittenCount, null);
+                mWrittenCount++;
+                try {
+                    batch.add(future.get());
+                } catch (InterruptedException | ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+            mIconDb.insertOrReplace(batch);
+            if (mWrittenCount > start) {
+                onIconsWritten(mWrittenCount - start);
+            }
+
+            if (start < mUpdateCount && mWrittenCount >= mUpdateCount) {
+                // No more app to update. Notify model.
+                LauncherAppState.getInstance(mContext).getModel().onPackageIconsUpdated(
+                        mUpdatedPackages, mUserManager.getUserForSerialNumber(mUserSerial));
+            }
+
+            if (mWrittenCount < total) {
+                // Run again right away if the batch was full, otherwise wait for the renderers.
+                scheduleNext(batch.isEmpty());
+            } else {
+                mIconUpdateTasks.remove(this);
+                mLastIconUpdateCount = total;
+                mLastIconUpdateDuration = SystemClock.uptimeMillis() - mStartTime;
+            }
+        }
+
+        int getCount() {
+            return mRenderedIcons.size();
+        }
+
+        void scheduleNext(boolean waitForRenderers) {
+            mWorkerHandler.postAtTime(this, ICON_UPDATE_TOKEN, SystemClock.uptimeMillis()
+                    + (waitForRenderers ? WRITE_POLL_DELAY_MS : 1));
+        }
+
+        void cancel() {
+            for (Future<ContentValues> future : mRenderedIcons) {
+                if (future != null) {
+                    future.cancel(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the background threads used to render icons.
+     */
+    private static class RenderThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NonNull final Runnable r) {
+            return new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "icon-render-" + mCount.incrementAndGet());
+        }
+    }
+
     private static final class IconDB extends SQLiteCacheHelper {
-        private final static int DB_VERSION = 13;
+        private final static int DB_VERSION = 15;
 
         private final static int RELEASE_VERSION = DB_VERSION + 1;
 
@@ -847,11 +1445,21 @@ public class IconCache {
         private final static String COLUMN_ICON_LOW_RES = "icon_low_res";
         private final static String COLUMN_LABEL = "label";
         private final static String COLUMN_SYSTEM_STATE = "system_state";
+        private final static String COLUMN_ICON_COLOR = "icon_color";
+
+        IconDB(Context context, int version) {
+            super(context, LauncherFiles.APP_ICONS_DB, version, TABLE_NAME);
+        }
 
-        IconDB(Context context, int iconPixelSize) {
-            super(context, LauncherFiles.APP_ICONS_DB,
-                    (RELEASE_VERSION << 16) + iconPixelSize,
-                    TABLE_NAME);
+        // The blob format is part of the version, in 4 bits, and the icon size in 12 bits.
+        static int getVersion(int iconPixelSize, IconBlobFormat format) {
+            if (iconPixelSize <= 0 || iconPixelSize >= 1 << 12) {
+                throw new IllegalArgumentException("Icon size out of range: " + iconPixelSize);
+            }
+            if (format.id < 0 || format.id >= 1 << 4) {
+                throw new IllegalArgumentException("Icon format out of range: " + format.id);
+            }
+            return (RELEASE_VERSION << 16) + (format.id << 12) + iconPixelSize;
         }
 
         @Override
@@ -865,21 +1473,18 @@ public class IconCache {
                     COLUMN_ICON_LOW_RES + " BLOB, " +
                     COLUMN_LABEL + " TEXT, " +
                     COLUMN_SYSTEM_STATE + " TEXT, " +
+                    COLUMN_ICON_COLOR + " INTEGER NOT NULL DEFAULT 0, " +
                     "PRIMARY KEY (" + COLUMN_COMPONENT + ", " + COLUMN_USER + ") " +
                     ");");
         }
-
-        private void clearDB(SQLiteDatabase sqLiteDatabase) {
-            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
-            onCreateTable(sqLiteDatabase);
-        }
     }
 
-    private ContentValues newContentValues(Bitmap icon, Bitmap lowResIcon, String label,
-            String packageName) {
+    private ContentValues newContentValues(Bitmap icon, Bitmap lowResIcon, int iconColor,
+            String label, String packageName) {
         ContentValues values = new ContentValues();
-        values.put(IconDB.COLUMN_ICON, Utilities.flattenBitmap(icon));
-        values.put(IconDB.COLUMN_ICON_LOW_RES, Utilities.flattenBitmap(lowResIcon));
+        values.put(IconDB.COLUMN_ICON, ICON_FORMAT.encode(icon));
+        values.put(IconDB.COLUMN_ICON_LOW_RES, ICON_FORMAT.encode(lowResIcon));
+        values.put(IconDB.COLUMN_ICON_COLOR, iconColor);
 
         values.put(IconDB.COLUMN_LABEL, label);
         values.put(IconDB.COLUMN_SYSTEM_STATE, mIconProvider.getIconSystemState(packageName));
@@ -898,7 +1503,7 @@ public class IconCache {
         } else {
             Bitmap lowResIcon = Bitmap.createBitmap(icon.getWidth() / LOW_RES_SCALE_FACTOR,
                     icon.getHeight() / LOW_RES_SCALE_FACTOR, Bitmap.Config.RGB_565);
-            synchronized (this) {
+            synchronized (mLowResCanvas) {
                 mLowResCanvas.setBitmap(lowResIcon);
                 mLowResCanvas.drawColor(lowResBackgroundColor);
                 mLowResCanvas.drawBitmap(icon, new Rect(0, 0, icon.getWidth(), icon.getHeight()),
@@ -913,7 +1518,7 @@ public class IconCache {
     private static Bitmap loadIconNoResize(Cursor c, int iconIndex, BitmapFactory.Options options) {
         byte[] data = c.getBlob(iconIndex);
         try {
-            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            return ICON_FORMAT.decode(data, options);
         } catch (Exception e) {
             return null;
         }
@@ -938,6 +1543,13 @@ public class IconCache {
     /**
      * Interface for receiving itemInfo with high-res icon.
      */
+    /**
+     * Listener for the progress of the icon DB updates, called on the main thread.
+     */
+    public interface IconUpdateListener {
+        void onIconUpdateProgress(int writtenCount, int totalCount);
+    }
+
     public interface ItemInfoUpdateReceiver {
 
         void reapplyItemInfo(ItemInfoWithIcon info);
@@ -42,6 +42,7 @@ public class IconChooser extends Activity {
     private IconCache mIconCache;
     private IconsManager mIconsManager;
     private GridAdapter mGridAdapter;
+    private IconsSearchUtils mIconsSearch;
 
     private List<String> allIcons, matchingIcons;
 
@@ -129,6 +130,7 @@ public class IconChooser extends Activity {
                     @Override
                     public void run() {
                         mGridAdapter = new GridAdapter(allIcons, matchingIcons);
+                        mIconsSearch = new IconsSearchUtils(allIcons, matchingIcons);
                         mIconsGrid.setAdapter(mGridAdapter);
                         anim.cancel();
                         loadingView.setVisibility(View.GONE);
@@ -153,7 +155,9 @@ public class IconChooser extends Activity {
             @Override
             public boolean onQueryTextChange(String newText) {
 
-                IconsSearchUtils.filter(newText, matchingIcons, allIcons, mGridAdapter);
+                if (mIconsSearch != null) {
+                    mIconsSearch.filter(newText, mGridAdapter);
+                }
                 return true;
             }
         });
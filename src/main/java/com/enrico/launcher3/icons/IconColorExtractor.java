@@ -10,7 +10,6 @@ import com.enrico.launcher3.graphics.IconPalette;
 
 import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Random;
 
 /**
  * Created by Enrico on 23/08/2017.
@@ -76,26 +75,18 @@ public class IconColorExtractor {
 
             extractedColor = dominant;
 
-            //else, get random palettes from the array list and get the first value different from default color
+            //else, get the first palette different from default color
         } else {
 
-            int randomPalette = getRandomPalette(extractedPalette, defaultColor);
-
-            while (randomPalette == defaultColor) {
-                extractedColor = getRandomPalette(extractedPalette, defaultColor);
+            for (int color : extractedPalette) {
+                if (color != defaultColor) {
+                    extractedColor = color;
+                    break;
+                }
             }
         }
 
         //return the extracted color
         return IconPalette.getLighterOrDarkerVersionOfColor(extractedColor, 1.5f);
     }
-
-    //get random palette from palettes
-    private static int getRandomPalette(ArrayList<Integer> palettes, int defaultColor) {
-        try {
-            return palettes.get((new Random()).nextInt(palettes.size()));
-        } catch (Throwable e) {
-            return defaultColor;
-        }
-    }
 }
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.enrico.launcher3.icons;
+
+import android.graphics.Bitmap;
+import android.os.UserHandle;
+
+import com.enrico.launcher3.icons.IconCache.CacheEntry;
+import com.enrico.launcher3.util.ComponentKey;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size aware memory tier for {@link IconCache}, with an approximate LRU policy. Entries are
+ * accounted by the byte count of their bitmap. When the budget is exceeded, the least recently
+ * used full-res entries are first demoted to their low-res form, and entries are only dropped
+ * when demoting all of them does not free enough memory.
+ *
+ * Lookups do not take any lock: the entries are kept in a {@link ConcurrentHashMap} and a hit
+ * only records the current value of a clock on the entry. The clock advances on every put, so
+ * the recency of the entries read between two puts is not distinguished. Only one thread trims
+ * at a time, and the low-res icons are rendered without holding any lock; they are published
+ * with a compare-and-set, so an entry replaced in the meantime is never overwritten.
+ */
+class IconMemoryCache {
+
+    /**
+     * Creates the low-res replacement for an entry which is being evicted.
+     */
+    interface Demoter {
+
+        /**
+         * @return the low-res form of {@param entry} or null if the entry should be dropped.
+         */
+        CacheEntry demote(ComponentKey key, CacheEntry entry);
+    }
+
+    // Trimming goes below the budget by this fraction, so that it does not run on every put.
+    private static final int TRIM_SLACK_FRACTION = 10;
+
+    private static final Comparator<TrimCandidate> OLDEST_FIRST = new Comparator<TrimCandidate>() {
+        @Override
+        public int compare(TrimCandidate lhs, TrimCandidate rhs) {
+            return lhs.accessStamp < rhs.accessStamp ? -1
+                    : (lhs.accessStamp == rhs.accessStamp ? 0 : 1);
+        }
+    };
+
+    private final ConcurrentHashMap<ComponentKey, CacheEntry> mEntries;
+    private final Demoter mDemoter;
+    private final long mMaxBytes;
+
+    private final AtomicLong mSizeBytes = new AtomicLong();
+    private final AtomicLong mClock = new AtomicLong();
+    private final AtomicBoolean mTrimming = new AtomicBoolean();
+
+    // Updated without synchronization, so the counts are approximate.
+    private int mHitCount;
+    private int mMissCount;
+    // Only updated by the trimming thread.
+    private volatile int mDemotionCount;
+    private volatile int mEvictionCount;
+
+    IconMemoryCache(long maxBytes, int initialCapacity, Demoter demoter) {
+        mMaxBytes = maxBytes;
+        mDemoter = demoter;
+        mEntries = new ConcurrentHashMap<>(initialCapacity);
+    }
+
+    public CacheEntry get(ComponentKey key) {
+        CacheEntry entry = mEntries.get(key);
+        if (entry != null) {
+            entry.accessStamp = mClock.get();
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        return entry;
+    }
+
+    /**
+     * Adds the entry to the cache. The entry should not be modified after it has been added,
+     * instead a new entry should be put, so that the other threads never see a partial entry
+     * and its size is accounted correctly.
+     */
+    public void put(ComponentKey key, CacheEntry entry) {
+        entry.accountedBytes = sizeOf(entry);
+        entry.accessStamp = mClock.incrementAndGet();
+        CacheEntry previous = mEntries.put(key, entry);
+        long size = mSizeBytes.addAndGet(
+                entry.accountedBytes - (previous == null ? 0 : previous.accountedBytes));
+        if (size > mMaxBytes) {
+            trimToSize();
+        }
+    }
+
+    public CacheEntry remove(ComponentKey key) {
+        CacheEntry previous = mEntries.remove(key);
+        if (previous != null) {
+            mSizeBytes.addAndGet(-previous.accountedBytes);
+        }
+        return previous;
+    }
+
+    /**
+     * Removes all the entries belonging to the provided package and user.
+     */
+    public void removePackage(String packageName, UserHandle user) {
+        for (Map.Entry<ComponentKey, CacheEntry> e : mEntries.entrySet()) {
+            ComponentKey key = e.getKey();
+            if (key.componentName.getPackageName().equals(packageName)
+                    && key.user.equals(user)) {
+                removeIfSame(key, e.getValue());
+            }
+        }
+    }
+
+    public void clear() {
+        for (Map.Entry<ComponentKey, CacheEntry> e : mEntries.entrySet()) {
+            removeIfSame(e.getKey(), e.getValue());
+        }
+    }
+
+    private boolean removeIfSame(ComponentKey key, CacheEntry entry) {
+        if (mEntries.remove(key, entry)) {
+            mSizeBytes.addAndGet(-entry.accountedBytes);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Trims the cache until it fits in the budget. If another thread is already trimming, this
+     * returns immediately, and that thread checks the size again before it stops.
+     */
+    private void trimToSize() {
+        while (mSizeBytes.get() > mMaxBytes && mTrimming.compareAndSet(false, true)) {
+            try {
+                trimOnce();
+            } finally {
+                mTrimming.set(false);
+            }
+        }
+    }
+
+    /**
+     * Demotes the full-res entries from the least recently used one until the cache fits in the
+     * budget, and only then drops the least recently used entries.
+     */
+    private void trimOnce() {
+        long target = mMaxBytes - mMaxBytes / TRIM_SLACK_FRACTION;
+
+        // The stamps are copied, so that concurrent hits do not change the order while sorting.
+        ArrayList<TrimCandidate> candidates = new ArrayList<>(mEntries.size());
+        for (Map.Entry<ComponentKey, CacheEntry> e : mEntries.entrySet()) {
+            candidates.add(new TrimCandidate(e.getKey(), e.getValue()));
+        }
+        Collections.sort(candidates, OLDEST_FIRST);
+
+        Iterator<TrimCandidate> itr = candidates.iterator();
+        while (itr.hasNext() && mSizeBytes.get() > target) {
+            TrimCandidate c = itr.next();
+            CacheEntry entry = c.entry;
+            if (entry.isLowResIcon) {
+                continue;
+            }
+            CacheEntry lowRes = mDemoter.demote(c.key, entry);
+            if (lowRes == null) {
+                continue;
+            }
+            lowRes.accountedBytes = sizeOf(lowRes);
+            lowRes.accessStamp = entry.accessStamp;
+            if (mEntries.replace(c.key, entry, lowRes)) {
+                mSizeBytes.addAndGet(lowRes.accountedBytes - entry.accountedBytes);
+                c.entry = lowRes;
+                mDemotionCount++;
+            }
+        }
+
+        itr = candidates.iterator();
+        while (itr.hasNext() && mSizeBytes.get() > target) {
+            TrimCandidate c = itr.next();
+            if (removeIfSame(c.key, c.entry)) {
+                mEvictionCount++;
+            }
+        }
+    }
+
+    private static int sizeOf(CacheEntry entry) {
+        Bitmap icon = entry.icon;
+        return icon == null ? 0 : icon.getByteCount();
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "Icon memory cache: entries=" + mEntries.size()
+                + " size=" + mSizeBytes.get() + " max=" + mMaxBytes);
+        writer.println(prefix + "\thits=" + mHitCount + " misses=" + mMissCount
+                + " demotions=" + mDemotionCount + " evictions=" + mEvictionCount);
+    }
+
+    private static class TrimCandidate {
+        final ComponentKey key;
+        final long accessStamp;
+        CacheEntry entry;
+
+        TrimCandidate(ComponentKey key, CacheEntry entry) {
+            this.key = key;
+            this.entry = entry;
+            this.accessStamp = entry.accessStamp;
+        }
+    }
+}
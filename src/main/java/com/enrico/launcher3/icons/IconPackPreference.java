@@ -21,6 +21,7 @@ import android.widget.ImageView;
 import android.widget.RadioButton;
 import android.widget.TextView;
 
+import com.enrico.launcher3.LauncherAppState;
 import com.enrico.launcher3.R;
 import com.enrico.launcher3.settings.PreferencesState;
 
@@ -31,7 +32,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-public class IconPackPreference extends Preference {
+public class IconPackPreference extends Preference implements IconCache.IconUpdateListener {
 
     private final PackageManager pm;
 
@@ -52,6 +53,31 @@ public class IconPackPreference extends Preference {
         return super.onCreateView(parent);
     }
 
+    /**
+     * Starts showing the progress of the icon pack being applied. Should be paired with
+     * {@link #stopTrackingProgress()} by the hosting fragment, so that the icon cache never
+     * holds on to a destroyed activity.
+     */
+    public void startTrackingProgress() {
+        // Progress reported while the preference was not tracking it was missed.
+        init();
+        LauncherAppState.getInstance(getContext()).getIconCache().addIconUpdateListener(this);
+    }
+
+    public void stopTrackingProgress() {
+        LauncherAppState.getInstance(getContext()).getIconCache().removeIconUpdateListener(this);
+    }
+
+    @Override
+    public void onIconUpdateProgress(int writtenCount, int totalCount) {
+        if (writtenCount < totalCount) {
+            setSummary(getContext().getString(R.string.icon_pack_applying,
+                    writtenCount, totalCount));
+        } else {
+            init();
+        }
+    }
+
     private void init() {
         String currentPack = getPersistedString("");
         if (currentPack.isEmpty()) {
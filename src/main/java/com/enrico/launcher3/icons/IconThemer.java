@@ -1,7 +1,9 @@
 package com.enrico.launcher3.icons;
 
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
 import android.content.pm.LauncherActivityInfo;
 import android.content.pm.PackageManager;
@@ -23,6 +25,7 @@ import org.xmlpull.v1.XmlPullParser;
 
 import java.lang.reflect.InvocationTargetException;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Locale;
 
 class IconThemer {
@@ -86,7 +89,18 @@ class IconThemer {
     }
 
     void updateSystemStateString() {
-        mSystemState = Locale.getDefault().toString();
+        // The icons are rendered again when the icon pack or the icon style change.
+        SharedPreferences prefs = Utilities.getPrefs(mContext);
+        mSystemState = Locale.getDefault().toString()
+                + " " + prefs.getString(IconsManager.ICON_PACK_PREFERENCE_KEY, "")
+                + " " + prefs.getString(IconsManager.ROUND_ICONS_KEY, "");
+    }
+
+    /**
+     * Returns the state the icons are rendered for, without the package specific parts.
+     */
+    String getSystemState() {
+        return mSystemState;
     }
 
     String getIconSystemState(String packageName) {
@@ -167,6 +181,13 @@ class IconThemer {
         return drawable != null ? drawable : info.getIcon(iconDpi);
     }
 
+    /**
+     * Reads ahead the icon pack icons of {@param componentNames}, which are about to be rendered.
+     */
+    void prefetchIcons(Collection<ComponentName> componentNames) {
+        mIconsManager.prefetchThemedIcons(componentNames);
+    }
+
     private Drawable getIconFromHandler(LauncherActivityInfo info) {
         Bitmap bm = mIconsManager.getDrawableIconForPackage(info.getComponentName());
         if (bm == null) {
@@ -5,18 +5,18 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.LauncherActivityInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ResolveInfo;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.CompressFormat;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.PaintFlagsDrawFilter;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
@@ -24,6 +24,7 @@ import android.util.Pair;
 
 import com.enrico.launcher3.ItemInfo;
 import com.enrico.launcher3.LauncherAppState;
+import com.enrico.launcher3.LauncherFiles;
 import com.enrico.launcher3.R;
 import com.enrico.launcher3.Utilities;
 import com.enrico.launcher3.graphics.LauncherIcons;
@@ -31,12 +32,13 @@ import com.enrico.launcher3.graphics.LauncherIcons;
 import org.xmlpull.v1.XmlPullParser;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -53,18 +55,35 @@ public class IconsManager {
     };
 
     private Map<String, IconPackInfo> mIconPacks = new HashMap<>();
-    private static Map<String, String> mAppFilterDrawables = new HashMap<>();
-    private static List<Bitmap> mBackImages = new ArrayList<>();
+    private static AppFilterIndex mAppFilter;
     private static List<String> mDrawables = new ArrayList<>();
+    // Index of mDrawables, built when the drawables are loaded.
+    private static DrawableNameIndex mDrawableIndex;
 
+    // The images of the current icon pack, loaded on first use.
+    private static List<Bitmap> mBackImages;
     private static Bitmap mFrontImage;
     private static Bitmap mMaskImage;
 
     private static Resources mCurrentIconPackRes;
     private static  Resources mOriginalIconPackRes;
     private static String mIconPackPackageName;
+    // The version of the current icon pack, part of the keys of mThemedIcons.
+    private static String mIconPackVersion = "";
+
+    // Max number of prefetched icons waiting to be rendered.
+    private static final int PREFETCHED_ICONS_CAPACITY = 64;
 
     private Context mContext;
+    private final ThemedIconStore mThemedIcons;
+    // Icons read from mThemedIcons ahead of rendering, by key. Guarded by itself.
+    private final LinkedHashMap<String, Bitmap> mPrefetchedIcons =
+            new LinkedHashMap<String, Bitmap>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Bitmap> eldest) {
+                    return size() > PREFETCHED_ICONS_CAPACITY;
+                }
+            };
     private static PackageManager mPackageManager;
     private static String mDefaultIconPack;
 
@@ -74,6 +93,10 @@ public class IconsManager {
         mContext = context;
         mPackageManager = context.getPackageManager();
         mDefaultIconPack = context.getString(R.string.default_iconpack_title);
+        mThemedIcons = new ThemedIconStore(
+                new File(context.getCacheDir(), LauncherFiles.THEMED_ICONS_SEGMENT),
+                new File(context.getCacheDir(), LauncherFiles.THEMED_ICONS_INDEX));
+        deleteLegacyCache(context);
 
         String iconPack =  Utilities.getPrefs(context)
                     .getString(ICON_PACK_PREFERENCE_KEY, mDefaultIconPack);
@@ -85,80 +108,44 @@ public class IconsManager {
 
         mIconPackPackageName = packageName;
         if (!fallback) {
-            mAppFilterDrawables.clear();
-            mBackImages.clear();
-            clearCache(context);
+            synchronized (IconsManager.class) {
+                mAppFilter = null;
+                mBackImages = null;
+                mMaskImage = null;
+                mFrontImage = null;
+                mFactor = 1.0f;
+            }
         } else {
             mDrawables.clear();
+            mDrawableIndex = null;
         }
 
         if (isDefaultIconPack()) {
             return;
         }
 
-        XmlPullParser xpp = null;
-
         //do nothing if icon pack is the default one, i.e. ""
         if (!mIconPackPackageName.isEmpty()) {
             try {
                 mOriginalIconPackRes = mPackageManager.getResourcesForApplication(mIconPackPackageName);
                 mCurrentIconPackRes = mOriginalIconPackRes;
-                int appfilterid = mOriginalIconPackRes.getIdentifier("appfilter", "xml", mIconPackPackageName);
-                if (appfilterid > 0) {
-                    xpp = mOriginalIconPackRes.getXml(appfilterid);
+                if (!fallback) {
+                    PackageInfo info = mPackageManager.getPackageInfo(mIconPackPackageName, 0);
+                    mIconPackVersion = info.versionCode + "_" + info.lastUpdateTime;
                 }
-
-                if (xpp != null) {
-                    int eventType = xpp.getEventType();
-                    while (eventType != XmlPullParser.END_DOCUMENT) {
-                        if (eventType == XmlPullParser.START_TAG) {
-                            if (!fallback & xpp.getName().equals("iconback")) {
-                                for (int i = 0; i < xpp.getAttributeCount(); i++) {
-                                    if (xpp.getAttributeName(i).startsWith("img")) {
-                                        String drawableName = xpp.getAttributeValue(i);
-                                        Bitmap iconback = loadBitmap(drawableName);
-                                        if (iconback != null) {
-                                            mBackImages.add(iconback);
-                                        }
-                                    }
-                                }
-                            } else if (!fallback && xpp.getName().equals("iconmask")) {
-                                if (xpp.getAttributeCount() > 0 && xpp.getAttributeName(0).equals("img1")) {
-                                    String drawableName = xpp.getAttributeValue(0);
-                                    mMaskImage = loadBitmap(drawableName);
-                                }
-                            } else if (!fallback && xpp.getName().equals("iconupon")) {
-                                if (xpp.getAttributeCount() > 0 && xpp.getAttributeName(0).equals("img1")) {
-                                    String drawableName = xpp.getAttributeValue(0);
-                                    mFrontImage = loadBitmap(drawableName);
-                                }
-                            } else if (!fallback && xpp.getName().equals("scale")) {
-                                if (xpp.getAttributeCount() > 0 && xpp.getAttributeName(0).equals("factor")) {
-                                    mFactor = Float.valueOf(xpp.getAttributeValue(0));
-                                }
-                            }
-                            if (xpp.getName().equals("item")) {
-                                String componentName = null;
-                                String drawableName = null;
-
-                                for (int i = 0; i < xpp.getAttributeCount(); i++) {
-                                    if (xpp.getAttributeName(i).equals("component")) {
-                                        componentName = xpp.getAttributeValue(i);
-                                    } else if (xpp.getAttributeName(i).equals("drawable")) {
-                                        drawableName = xpp.getAttributeValue(i);
-                                    }
-                                }
-                                if (fallback && getIdentifier(packageName, drawableName, true) > 0
-                                        && !mDrawables.contains(drawableName)) {
-                                    mDrawables.add(drawableName);
-                                }
-                                if (!fallback && componentName != null && drawableName != null &&
-                                        !mAppFilterDrawables.containsKey(componentName)) {
-                                    mAppFilterDrawables.put(componentName, drawableName);
-                                }
-                            }
-                        }
-                        eventType = xpp.next();
+                // The appfilter is only parsed when the icon pack changed since it was indexed.
+                AppFilterIndex appFilter =
+                        AppFilterIndex.load(context, mIconPackPackageName, mOriginalIconPackRes);
+                if (appFilter == null) {
+                    return;
+                }
+                if (fallback) {
+                    mDrawables.addAll(appFilter.getDrawableNames());
+                } else {
+                    synchronized (IconsManager.class) {
+                        mAppFilter = appFilter;
+                        mBackImages = null;
+                        mFactor = appFilter.getScaleFactor();
                     }
                 }
             } catch (Exception e) {
@@ -167,6 +154,30 @@ public class IconsManager {
         }
     }
 
+    /**
+     * Loads the back, mask and front images of the current icon pack, if they are not loaded
+     * yet.
+     * @return the back images.
+     */
+    private static synchronized List<Bitmap> ensureImagesLoaded() {
+        if (mBackImages != null) {
+            return mBackImages;
+        }
+        mBackImages = new ArrayList<>();
+        if (mAppFilter == null) {
+            return mBackImages;
+        }
+        for (int id : mAppFilter.getBackImageIds()) {
+            Bitmap iconback = loadBitmap(id);
+            if (iconback != null) {
+                mBackImages.add(iconback);
+            }
+        }
+        mMaskImage = loadBitmap(mAppFilter.getMaskId());
+        mFrontImage = loadBitmap(mAppFilter.getFrontId());
+        return mBackImages;
+    }
+
     List<String> getAllDrawables(final String packageName) {
         loadAllDrawables(packageName);
         Collections.sort(mDrawables, new Comparator<String>() {
@@ -175,12 +186,15 @@ public class IconsManager {
                 return drawable.compareToIgnoreCase(drawable2);
             }
         });
+        mDrawableIndex = new DrawableNameIndex(mDrawables);
 
         return mDrawables;
     }
 
     private void loadAllDrawables(String packageName) {
         mDrawables.clear();
+        mDrawableIndex = null;
+        HashSet<String> drawables = new HashSet<>();
         XmlPullParser xpp;
         try {
             Resources res = mPackageManager.getResourcesForApplication(packageName);
@@ -195,8 +209,9 @@ public class IconsManager {
                 if (eventType == XmlPullParser.START_TAG) {
                     if (xpp.getName().equals("item")) {
                         String drawableName = xpp.getAttributeValue(null, "drawable");
-                        if (!mDrawables.contains(drawableName) &&
+                        if (drawableName != null && !drawables.contains(drawableName) &&
                                 getIdentifier(packageName, drawableName, true) > 0) {
+                            drawables.add(drawableName);
                             mDrawables.add(drawableName);
                         }
                     }
@@ -215,24 +230,19 @@ public class IconsManager {
     }
 
     List<String> getMatchingDrawables(String packageName) {
-        List<String> matchingDrawables = new ArrayList<>();
         ApplicationInfo info = null;
         try {
             info = mPackageManager.getApplicationInfo(packageName, 0);
         } catch (NameNotFoundException e) {
             e.printStackTrace();
         }
-        String packageLabel = (info != null ? mPackageManager.getApplicationLabel(info).toString()
-                : packageName).replaceAll("[^a-zA-Z]", "").toLowerCase().trim();
-        for (String drawable : mDrawables) {
-            if (drawable == null) continue;
-            String filteredDrawable = drawable.replaceAll("[^a-zA-Z]", "").toLowerCase().trim();
-            if (filteredDrawable.length() > 2 && (packageLabel.contains(filteredDrawable)
-                    || filteredDrawable.contains(packageLabel))) {
-                matchingDrawables.add(drawable);
-            }
+        String packageLabel = info != null ? mPackageManager.getApplicationLabel(info).toString()
+                : packageName;
+        DrawableNameIndex index = mDrawableIndex;
+        if (index == null) {
+            index = mDrawableIndex = new DrawableNameIndex(mDrawables);
         }
-        return matchingDrawables;
+        return index.getMatches(packageLabel);
     }
 
     private static int getIdentifier(String packageName, String drawableName, boolean currentIconPack) {
@@ -257,8 +267,8 @@ public class IconsManager {
         return null;
     }
 
-    private static Bitmap loadBitmap(String drawableName) {
-        Drawable bitmap = loadDrawable(null, drawableName, true);
+    private static Bitmap loadBitmap(int id) {
+        Drawable bitmap = id > 0 ? mOriginalIconPackRes.getDrawable(id) : null;
         if (bitmap != null && bitmap instanceof BitmapDrawable) {
             return ((BitmapDrawable) bitmap).getBitmap();
         }
@@ -284,10 +294,7 @@ public class IconsManager {
     }
 
     public static void switchIconPacks(String packageName, Context mContext) {
-
-       IconCache mIconCache = LauncherAppState.getInstance(mContext).getIconCache();
-
-        new IconPackLoader(packageName, mContext, mIconCache).execute();
+        new IconPackLoader(packageName, mContext).execute();
     }
 
     Bitmap getDrawableIconForPackage(ComponentName componentName) {
@@ -296,53 +303,95 @@ public class IconsManager {
             return getDefaultAppDrawable(componentName.getPackageName());
         }
 
-        String drawableName = mAppFilterDrawables.get(componentName.toString());
-        Drawable drawable = loadDrawable(null, drawableName, false);
-        if (drawable != null && drawable instanceof BitmapDrawable) {
-            Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
-            cacheStoreDrawable(componentName.toString(), bitmap);
-            return bitmap;
+        String key = getThemedIconKey(componentName);
+        Bitmap cachedIcon;
+        synchronized (mPrefetchedIcons) {
+            cachedIcon = mPrefetchedIcons.remove(key);
+        }
+        if (cachedIcon == null) {
+            cachedIcon = mThemedIcons.get(key);
         }
-
-        Bitmap cachedIcon = cacheGetDrawable(componentName.toString());
         if (cachedIcon != null) {
             return cachedIcon;
         }
 
+        AppFilterIndex appFilter = mAppFilter;
+        int drawableId = appFilter == null ? 0 : appFilter.getDrawableId(componentName.toString());
+        Drawable drawable = drawableId > 0 ? mOriginalIconPackRes.getDrawable(drawableId) : null;
+        if (drawable != null && drawable instanceof BitmapDrawable) {
+            Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+            mThemedIcons.put(key, bitmap);
+            return bitmap;
+        }
+
         return getDefaultAppDrawable(componentName.getPackageName());
     }
 
+    /**
+     * Reads the stored icons of {@param componentNames} in a single pass, so that rendering them
+     * does not read the store once per icon.
+     */
+    void prefetchThemedIcons(Collection<ComponentName> componentNames) {
+        if (isDefaultIconPack()) {
+            return;
+        }
+        ArrayList<String> keys = new ArrayList<>(componentNames.size());
+        for (ComponentName componentName : componentNames) {
+            keys.add(getThemedIconKey(componentName));
+        }
+        HashMap<String, Bitmap> icons = mThemedIcons.getAll(keys);
+        synchronized (mPrefetchedIcons) {
+            mPrefetchedIcons.putAll(icons);
+        }
+    }
+
+    // The icons are rendered on several threads, each with its own canvas and paint.
+    private static final Random sRandom = new Random();
+    private static final ThreadLocal<Canvas> sRenderCanvas = new ThreadLocal<Canvas>() {
+        @Override
+        protected Canvas initialValue() {
+            return new Canvas();
+        }
+    };
+    private static final ThreadLocal<Paint> sMaskPaint = new ThreadLocal<Paint>() {
+        @Override
+        protected Paint initialValue() {
+            Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+            paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_OUT));
+            return paint;
+        }
+    };
+
     private Bitmap generateBitmap(Bitmap defaultBitmap) {
-        if (mBackImages.isEmpty()) {
+        List<Bitmap> backImages = ensureImagesLoaded();
+        Bitmap maskImage = mMaskImage;
+        Bitmap frontImage = mFrontImage;
+        if (backImages.isEmpty()) {
             return defaultBitmap;
         }
-        Random random = new Random();
-        int id = random.nextInt(mBackImages.size());
-        Bitmap backImage = mBackImages.get(id);
+        Bitmap backImage = backImages.get(sRandom.nextInt(backImages.size()));
         int w = backImage.getWidth();
         int h = backImage.getHeight();
 
         Bitmap result = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
-        Canvas canvas = new Canvas(result);
+        Canvas canvas = sRenderCanvas.get();
+        canvas.setBitmap(result);
         canvas.drawBitmap(backImage, 0, 0, null);
 
-        Bitmap scaledBitmap = Bitmap.createScaledBitmap(defaultBitmap,
-                (int) (w * mFactor), (int) (h * mFactor), false);
+        int scaledWidth = (int) (w * mFactor);
+        int scaledHeight = (int) (h * mFactor);
+        int left = (w - scaledWidth) / 2;
+        int top = (h - scaledHeight) / 2;
+        canvas.drawBitmap(defaultBitmap, null,
+                new Rect(left, top, left + scaledWidth, top + scaledHeight), null);
 
-        Bitmap mutableMask = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
-        Canvas maskCanvas = new Canvas(mutableMask);
-        Bitmap targetBitmap = mMaskImage == null ? mutableMask : mMaskImage;
-        maskCanvas.drawBitmap(targetBitmap, 0, 0, new Paint());
-
-        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
-        paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_OUT));
-        canvas.drawBitmap(scaledBitmap, (w - scaledBitmap.getWidth()) / 2,
-                (h - scaledBitmap.getHeight()) / 2, null);
-        canvas.drawBitmap(mutableMask, 0, 0, paint);
-
-        if (mFrontImage != null) {
-            canvas.drawBitmap(mFrontImage, 0, 0, null);
+        if (maskImage != null) {
+            canvas.drawBitmap(maskImage, 0, 0, sMaskPaint.get());
         }
+        if (frontImage != null) {
+            canvas.drawBitmap(frontImage, 0, 0, null);
+        }
+        canvas.setBitmap(null);
         return result;
     }
 
@@ -387,59 +436,22 @@ public class IconsManager {
         }
     }
 
-    private boolean isDrawableInCache(String key) {
-        File drawableFile = cacheGetFileName(key);
-        return drawableFile.isFile();
-    }
-
-    private void cacheStoreDrawable(String key, Bitmap bitmap) {
-        if (isDrawableInCache(key)) return;
-        File drawableFile = cacheGetFileName(key);
-        try (FileOutputStream fos = new FileOutputStream(drawableFile)) {
-            bitmap.compress(CompressFormat.PNG, 100, fos);
-            fos.flush();
-            fos.close();
-        } catch (Exception e) {
-           e.printStackTrace();
-        }
+    private static String getThemedIconKey(ComponentName componentName) {
+        return mIconPackPackageName + "/" + mIconPackVersion + "/" + componentName;
     }
 
-    private Bitmap cacheGetDrawable(String key) {
-        if (!isDrawableInCache(key)) {
-            return null;
-        }
-
-        try (FileInputStream fis = new FileInputStream(cacheGetFileName(key))) {
-            BitmapDrawable drawable =
-                    new BitmapDrawable(mContext.getResources(), BitmapFactory.decodeStream(fis));
-            fis.close();
-            return drawable.getBitmap();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
-        return null;
-    }
-
-    private File cacheGetFileName(String key) {
-        return new File(getIconsCacheDir(mContext) + mIconPackPackageName + "_" + key.hashCode() + ".png");
-    }
-
-    private static File getIconsCacheDir(Context mContext) {
-        return new File(mContext.getCacheDir().getPath() + "/icons/");
-    }
-
-    private static void clearCache(Context mContext) {
-        File cacheDir = getIconsCacheDir(mContext);
+    /**
+     * Deletes the icons cached as separate files by previous versions.
+     */
+    private static void deleteLegacyCache(Context context) {
+        File cacheDir = new File(context.getCacheDir(), "icons");
         if (!cacheDir.isDirectory()) {
             return;
         }
-
         for (File item : cacheDir.listFiles()) {
-            if (!item.delete()) {
-               // Do nothing
-            }
+            item.delete();
         }
+        cacheDir.delete();
     }
 
     private static class IconPackInfo {
@@ -457,11 +469,9 @@ public class IconsManager {
     private static class IconPackLoader extends AsyncTask<Void, Void, Void> {
         private String mIconPackPackageName;
         private Context mContext;
-        private IconCache mIconCache;
-        private IconPackLoader(String packageName, Context context, IconCache iconCache) {
+        private IconPackLoader(String packageName, Context context) {
             mIconPackPackageName = packageName;
             this.mContext = context;
-            mIconCache = iconCache;
         }
 
         @Override
@@ -474,9 +484,8 @@ public class IconsManager {
         protected void onPostExecute(Void aVoid) {
             Utilities.getPrefs(mContext).edit()
                     .putString(ICON_PACK_PREFERENCE_KEY, mIconPackPackageName).apply();
-            mIconCache.clearIconDataBase();
-            mIconCache.flush();
-            LauncherAppState.getInstance(mContext).getModel().forceReload();
+            // The icons are replaced in place, the workspace does not need to be reloaded.
+            LauncherAppState.getInstance(mContext).getModel().reapplyIconPack();
         }
     }
 
@@ -1,69 +1,80 @@
 package com.enrico.launcher3.icons;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
 /**
  * Created by Enrico on 03/09/2017.
+ *
+ * Filters the icons of the chooser by name. While a query is typed, the results of the previous
+ * query are filtered instead of all the icons.
  */
 
 class IconsSearchUtils {
 
-    static void filter(String query, List<String> matchingIcons, List<String> allIcons, IconChooser.GridAdapter mGridAdapter) {
+    private final List<String> mAllIcons;
+    private final List<String> mMatchingIcons;
+
+    // The last query and its results, without the headers.
+    private String mLastQuery;
+    private ArrayList<String> mLastResultsFromAllIcons;
+    private ArrayList<String> mLastResultsFromMatchingIcons;
+
+    IconsSearchUtils(List<String> allIcons, List<String> matchingIcons) {
+        mAllIcons = allIcons;
+        mMatchingIcons = matchingIcons;
+    }
+
+    void filter(String query, IconChooser.GridAdapter mGridAdapter) {
 
         //new array list that will hold the filtered data
         ArrayList<String> resultsFromAllIcons = new ArrayList<>();
         ArrayList<String> resultsFromMatchingIcons = new ArrayList<>();
 
-        Boolean mNoMatchingDrawables = matchingIcons.isEmpty();
+        boolean mNoMatchingDrawables = mMatchingIcons.isEmpty();
 
         if (query.isEmpty()) {
 
-            resultsFromAllIcons.clear();
             resultsFromAllIcons.add(null);
-            resultsFromAllIcons.addAll(allIcons);
-
-            resultsFromMatchingIcons.clear();
+            resultsFromAllIcons.addAll(mAllIcons);
 
             if (!mNoMatchingDrawables) {
                 resultsFromMatchingIcons.add(null);
-                resultsFromMatchingIcons.addAll(matchingIcons);
+                resultsFromMatchingIcons.addAll(mMatchingIcons);
             }
 
+            mLastQuery = null;
             mGridAdapter.filterList(resultsFromAllIcons, resultsFromMatchingIcons);
 
         } else {
 
-            resultsFromAllIcons.clear();
-            resultsFromMatchingIcons.clear();
-
-            if (mNoMatchingDrawables) {
-
-                getFilteredResults(allIcons, resultsFromAllIcons, query);
+            // Every icon matching the query also matches a query it extends.
+            boolean extendsLastQuery = mLastQuery != null && query.contains(mLastQuery);
 
-            } else {
+            getFilteredResults(extendsLastQuery ? mLastResultsFromAllIcons : mAllIcons,
+                    resultsFromAllIcons, query);
 
-                resultsFromAllIcons.clear();
-                resultsFromMatchingIcons.clear();
+            if (!mNoMatchingDrawables) {
+                getFilteredResults(extendsLastQuery ? mLastResultsFromMatchingIcons
+                        : mMatchingIcons, resultsFromMatchingIcons, query);
+            }
 
-                getFilteredResults(allIcons, resultsFromAllIcons, query);
+            mLastQuery = query;
+            mLastResultsFromAllIcons = resultsFromAllIcons;
+            mLastResultsFromMatchingIcons = resultsFromMatchingIcons;
 
-                getFilteredResults(matchingIcons, resultsFromMatchingIcons, query);
-            }
-            //calling a method of the adapter class and passing the filtered list
-            mGridAdapter.filterList(resultsFromAllIcons, resultsFromMatchingIcons);
+            //calling a method of the adapter class and passing copies of the filtered lists,
+            //as the adapter keeps them
+            mGridAdapter.filterList(new ArrayList<>(resultsFromAllIcons),
+                    new ArrayList<>(resultsFromMatchingIcons));
         }
     }
 
     private static void getFilteredResults(List<String> originalList, List<String> filteredResults, String query) {
 
         //looping through existing elements
-        Iterator<String> stringIterator = originalList.iterator();
-
-        //looping through existing elements
-        while (stringIterator.hasNext()) {
-            String str = stringIterator.next();
+        for (int i = 0; i < originalList.size(); i++) {
+            String str = originalList.get(i);
             if (str.contains(query)) filteredResults.add(str);
         }
     }
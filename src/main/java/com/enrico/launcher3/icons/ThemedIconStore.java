@@ -0,0 +1,602 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.enrico.launcher3.icons;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.enrico.launcher3.Utilities;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Disk cache of the icons of the icon packs, stored as PNGs in a single append-only segment
+ * file.
+ *
+ * Each icon is stored under the SHA-1 digest of its key, which identifies the icon pack, its
+ * version and the component, so icons of different packs never collide and switching packs does
+ * not discard the icons of the other packs. Records are never rewritten in place: when the
+ * segment grows over {@link #MAX_SEGMENT_SIZE}, it is compacted into a new segment which only
+ * keeps the most recently used icons.
+ *
+ * The segment is laid out as:
+ *   header (magic, version, generation) | records (magic, digest, png length, png)
+ * The index of the records, in least recently used order, is saved to a separate file from time
+ * to time. When the segment is opened, the records appended after the index was saved are read
+ * back from the segment, and a record cut by a crash is dropped. Each rewrite of the segment gets
+ * a new generation, which the index must match, so that an index saved for a previous segment is
+ * never used.
+ *
+ * The lock of the store guards the index in memory and is only held for lookups and appends:
+ * icons are compressed and decoded outside of it, and records are read with positional reads,
+ * so that concurrent readers do not serialize on the file pointer.
+ */
+class ThemedIconStore {
+
+    private static final int MAGIC = 0x54494353;
+    private static final int INDEX_MAGIC = 0x54494958;
+    private static final int VERSION = 2;
+    private static final int RECORD_MAGIC = 0x52454344;
+
+    private static final int DIGEST_SIZE = 20;
+    // magic, version, generation
+    private static final int HEADER_SIZE = 2 * 4 + 8;
+    // magic, digest, png length
+    private static final int RECORD_HEADER_SIZE = 4 + DIGEST_SIZE + 4;
+
+    private static final int MAX_SEGMENT_SIZE = 8 * 1024 * 1024;
+    // Size of the records kept when the segment is compacted.
+    private static final int COMPACTED_SIZE = MAX_SEGMENT_SIZE / 2;
+    // Number of records appended before the index is saved again.
+    private static final int INDEX_SAVE_INTERVAL = 32;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mSegmentFile;
+    private final File mIndexFile;
+
+    // The records by digest, in least recently used order. This and the fields below are
+    // guarded by this.
+    private final LinkedHashMap<String, Record> mRecords = new LinkedHashMap<>(16, 0.75f, true);
+    private long mSegmentLength;
+    private long mGeneration;
+    private int mUnsavedRecords;
+
+    // Lazily opened on first use, since it does disk I/O.
+    private RandomAccessFile mSegment;
+    private FileChannel mChannel;
+    private boolean mOpenFailed;
+    private boolean mCompacting;
+
+    // Serializes the writes of the index file, which are done without holding the lock.
+    private final Object mIndexLock = new Object();
+
+    ThemedIconStore(File segmentFile, File indexFile) {
+        mSegmentFile = segmentFile;
+        mIndexFile = indexFile;
+    }
+
+    /**
+     * Returns the icon stored for {@param key}, or null.
+     */
+    public Bitmap get(String key) {
+        return getAll(Collections.singletonList(key)).get(key);
+    }
+
+    /**
+     * Returns the icons stored for {@param keys}, read in a single pass over the segment. Keys
+     * without an icon are not in the result.
+     */
+    public HashMap<String, Bitmap> getAll(Collection<String> keys) {
+        HashMap<String, Bitmap> result = new HashMap<>();
+        ArrayList<String> digests = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            digests.add(getDigest(key));
+        }
+
+        ArrayList<String> foundKeys = new ArrayList<>(keys.size());
+        ArrayList<Record> records = new ArrayList<>(keys.size());
+        FileChannel channel;
+        long generation;
+        synchronized (this) {
+            if (!ensureOpen()) {
+                return result;
+            }
+            int i = 0;
+            for (String key : keys) {
+                String digest = digests.get(i++);
+                Record record = digest == null ? null : mRecords.get(digest);
+                if (record != null) {
+                    foundKeys.add(key);
+                    records.add(record);
+                }
+            }
+            channel = mChannel;
+            generation = mGeneration;
+        }
+        if (records.isEmpty()) {
+            return result;
+        }
+
+        // Positional reads do not move the file pointer, so readers do not need the lock.
+        byte[][] data;
+        try {
+            data = read(channel, records);
+        } catch (IOException e) {
+            synchronized (this) {
+                // A compaction closes the channel, which is only a miss for this read.
+                if (generation == mGeneration) {
+                    e.printStackTrace();
+                    reset();
+                }
+            }
+            return result;
+        }
+        synchronized (this) {
+            // The segment was rewritten while reading, the offsets may point to other records.
+            if (generation != mGeneration) {
+                return result;
+            }
+        }
+        for (int i = 0; i < data.length; i++) {
+            Bitmap icon = BitmapFactory.decodeByteArray(data[i], 0, data[i].length);
+            if (icon != null) {
+                result.put(foundKeys.get(i), icon);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stores the icon for {@param key}, unless an icon is already stored for it. The icon is
+     * compressed without holding the lock, which is only held to append the record.
+     */
+    public void put(String key, Bitmap icon) {
+        String digest = getDigest(key);
+        if (digest == null) {
+            return;
+        }
+        synchronized (this) {
+            if (!ensureOpen() || mRecords.containsKey(digest)) {
+                return;
+            }
+        }
+
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        if (!icon.compress(Bitmap.CompressFormat.PNG, 100, png)) {
+            return;
+        }
+        byte[] data = png.toByteArray();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + data.length);
+        record.putInt(RECORD_MAGIC).put(toBytes(digest)).putInt(data.length).put(data);
+        record.flip();
+
+        boolean compact = false;
+        byte[] index = null;
+        synchronized (this) {
+            // Another thread might have stored the same icon while compressing.
+            if (!ensureOpen() || mRecords.containsKey(digest)) {
+                return;
+            }
+            try {
+                writeFully(mChannel, record, mSegmentLength);
+            } catch (IOException e) {
+                e.printStackTrace();
+                reset();
+                return;
+            }
+            mRecords.put(digest, new Record(mSegmentLength + RECORD_HEADER_SIZE, data.length));
+            mSegmentLength += RECORD_HEADER_SIZE + data.length;
+
+            if (mSegmentLength > MAX_SEGMENT_SIZE) {
+                compact = !mCompacting;
+                mCompacting = true;
+            } else if (++mUnsavedRecords >= INDEX_SAVE_INTERVAL) {
+                index = serializeIndex();
+            }
+        }
+        if (compact) {
+            compact();
+        } else if (index != null) {
+            writeIndex(index);
+        }
+    }
+
+    /**
+     * Reads the PNGs of {@param records}, in the order of the segment.
+     */
+    private static byte[][] read(FileChannel channel, List<Record> records) throws IOException {
+        Integer[] order = new Integer[records.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        final List<Record> unsorted = records;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(unsorted.get(a).offset, unsorted.get(b).offset);
+            }
+        });
+        byte[][] data = new byte[order.length][];
+        for (int i : order) {
+            Record record = records.get(i);
+            data[i] = new byte[record.length];
+            readFully(channel, ByteBuffer.wrap(data[i]), record.offset);
+        }
+        return data;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    /**
+     * Rewrites the segment with the most recently used records only. The records are copied
+     * without holding the lock; the records appended meanwhile are dropped, and stored again on
+     * their next miss.
+     */
+    private void compact() {
+        ArrayList<String> digests = new ArrayList<>();
+        ArrayList<Record> records = new ArrayList<>();
+        FileChannel channel;
+        long oldGeneration;
+        long generation;
+        synchronized (this) {
+            for (Map.Entry<String, Record> entry : mRecords.entrySet()) {
+                digests.add(entry.getKey());
+                records.add(entry.getValue());
+            }
+            channel = mChannel;
+            oldGeneration = mGeneration;
+            generation = newGeneration();
+        }
+        long size = 0;
+        int first = records.size();
+        while (first > 0 && size + RECORD_HEADER_SIZE + records.get(first - 1).length
+                <= COMPACTED_SIZE) {
+            first--;
+            size += RECORD_HEADER_SIZE + records.get(first).length;
+        }
+        digests = new ArrayList<>(digests.subList(first, digests.size()));
+        records = new ArrayList<>(records.subList(first, records.size()));
+
+        File tmpFile = new File(mSegmentFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            byte[][] data = read(channel, records);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation);
+            for (int i = 0; i < data.length; i++) {
+                out.writeInt(RECORD_MAGIC);
+                out.write(toBytes(digests.get(i)));
+                out.writeInt(data[i].length);
+                out.write(data[i]);
+            }
+            out.close();
+            out = null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmpFile.delete();
+            synchronized (this) {
+                mCompacting = false;
+                if (oldGeneration == mGeneration) {
+                    reset();
+                }
+            }
+            return;
+        } finally {
+            Utilities.closeSilently(out);
+        }
+
+        byte[] index;
+        synchronized (this) {
+            mCompacting = false;
+            if (oldGeneration != mGeneration) {
+                // The segment was reset while compacting.
+                tmpFile.delete();
+                return;
+            }
+            closeSegment();
+            if (!tmpFile.renameTo(mSegmentFile)) {
+                tmpFile.delete();
+                reset();
+                return;
+            }
+            try {
+                mSegment = new RandomAccessFile(mSegmentFile, "rw");
+                mChannel = mSegment.getChannel();
+            } catch (IOException e) {
+                e.printStackTrace();
+                mRecords.clear();
+                mOpenFailed = true;
+                return;
+            }
+
+            mRecords.clear();
+            long offset = HEADER_SIZE;
+            for (int i = 0; i < records.size(); i++) {
+                int length = records.get(i).length;
+                mRecords.put(digests.get(i), new Record(offset + RECORD_HEADER_SIZE, length));
+                offset += RECORD_HEADER_SIZE + length;
+            }
+            mSegmentLength = offset;
+            mGeneration = generation;
+            index = serializeIndex();
+        }
+        writeIndex(index);
+    }
+
+    private boolean ensureOpen() {
+        if (mSegment != null) {
+            return true;
+        }
+        if (mOpenFailed) {
+            return false;
+        }
+        try {
+            mSegment = new RandomAccessFile(mSegmentFile, "rw");
+            mChannel = mSegment.getChannel();
+            long length = mSegment.length();
+            boolean valid = length >= HEADER_SIZE && mSegment.readInt() == MAGIC
+                    && mSegment.readInt() == VERSION;
+            if (!valid) {
+                reset();
+                return mSegment != null;
+            }
+            mGeneration = mSegment.readLong();
+            // Read back the records appended after the index was saved.
+            long offset = loadIndex(length);
+            while (offset + RECORD_HEADER_SIZE <= length) {
+                mSegment.seek(offset);
+                if (mSegment.readInt() != RECORD_MAGIC) {
+                    break;
+                }
+                byte[] digest = new byte[DIGEST_SIZE];
+                mSegment.readFully(digest);
+                int dataLength = mSegment.readInt();
+                long end = offset + RECORD_HEADER_SIZE + dataLength;
+                if (dataLength < 0 || end > length) {
+                    break;
+                }
+                mRecords.put(toHex(digest), new Record(offset + RECORD_HEADER_SIZE, dataLength));
+                offset = end;
+            }
+            if (offset < length) {
+                // The last record was not fully written.
+                mSegment.setLength(offset);
+            }
+            mSegmentLength = offset;
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeSegment();
+            mOpenFailed = true;
+            return false;
+        }
+    }
+    /**
+     * Loads the saved index, if it is valid for a segment of {@param segmentLength} bytes.
+     * @return the offset of the first record which is not in the index.
+     */
+    private long loadIndex(long segmentLength) {
+        mRecords.clear();
+        if (!mIndexFile.isFile()) {
+            return HEADER_SIZE;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mIndexFile)));
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != VERSION
+                    || in.readLong() != mGeneration) {
+                return HEADER_SIZE;
+            }
+            long indexedLength = in.readLong();
+            if (indexedLength < HEADER_SIZE || indexedLength > segmentLength) {
+                return HEADER_SIZE;
+            }
+            int count = in.readInt();
+            byte[] digest = new byte[DIGEST_SIZE];
+            for (int i = 0; i < count; i++) {
+                in.readFully(digest);
+                long offset = in.readLong();
+                int length = in.readInt();
+                if (offset < HEADER_SIZE + RECORD_HEADER_SIZE || length < 0
+                        || offset + length > indexedLength) {
+                    mRecords.clear();
+                    return HEADER_SIZE;
+                }
+                mRecords.put(toHex(digest), new Record(offset, length));
+            }
+            return indexedLength;
+        } catch (IOException e) {
+            e.printStackTrace();
+            mRecords.clear();
+            return HEADER_SIZE;
+        } finally {
+            Utilities.closeSilently(in);
+        }
+    }
+
+    /**
+     * Returns the content of the index file for the current records. Must be called with the
+     * lock held; the bytes are written with {@link #writeIndex(byte[])} after releasing it.
+     */
+    private byte[] serializeIndex() {
+        mUnsavedRecords = 0;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                4 + 4 + 8 + 8 + 4 + mRecords.size() * (DIGEST_SIZE + 8 + 4));
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(mGeneration);
+            out.writeLong(mSegmentLength);
+            out.writeInt(mRecords.size());
+            for (Map.Entry<String, Record> entry : mRecords.entrySet()) {
+                out.write(toBytes(entry.getKey()));
+                out.writeLong(entry.getValue().offset);
+                out.writeInt(entry.getValue().length);
+            }
+        } catch (IOException e) {
+            // Not thrown by a ByteArrayOutputStream.
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Saves an index returned by {@link #serializeIndex()}. An index written out of order is
+     * still valid: it either covers a prefix of the segment, whose remaining records are read
+     * back when the segment is opened, or has an older generation and is ignored.
+     */
+    private void writeIndex(byte[] index) {
+        synchronized (mIndexLock) {
+            // Write to a temporary file first, so that a partial index is never read.
+            File tmpFile = new File(mIndexFile.getPath() + ".tmp");
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(tmpFile);
+                out.write(index);
+                out.close();
+                out = null;
+                if (!tmpFile.renameTo(mIndexFile)) {
+                    tmpFile.delete();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                tmpFile.delete();
+            } finally {
+                Utilities.closeSilently(out);
+            }
+        }
+    }
+
+    /**
+     * Removes all the records, after an error or if the segment is not valid.
+     */
+    private void reset() {
+        mRecords.clear();
+        mUnsavedRecords = 0;
+        mIndexFile.delete();
+        try {
+            if (mSegment == null) {
+                mSegment = new RandomAccessFile(mSegmentFile, "rw");
+            }
+            long generation = newGeneration();
+            mChannel = mSegment.getChannel();
+            mSegment.setLength(0);
+            mSegment.seek(0);
+            mSegment.writeInt(MAGIC);
+            mSegment.writeInt(VERSION);
+            mSegment.writeLong(generation);
+            mSegmentLength = HEADER_SIZE;
+            mGeneration = generation;
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeSegment();
+            mOpenFailed = true;
+        }
+    }
+
+    private long newGeneration() {
+        return Math.max(mGeneration + 1, System.currentTimeMillis());
+    }
+
+    private void closeSegment() {
+        Utilities.closeSilently(mSegment);
+        mSegment = null;
+        mChannel = null;
+    }
+
+    /**
+     * Returns the hex SHA-1 digest of {@param key}, or null if SHA-1 is not available.
+     */
+    private static String getDigest(String key) {
+        try {
+            return toHex(MessageDigest.getInstance("SHA-1").digest(key.getBytes(UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] toBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static class Record {
+        // Offset of the PNG in the segment.
+        final long offset;
+        final int length;
+
+        Record(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
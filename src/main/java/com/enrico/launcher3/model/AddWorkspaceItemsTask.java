@@ -37,6 +37,7 @@ import com.enrico.launcher3.util.GridOccupancy;
 import com.enrico.launcher3.util.Provider;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -161,8 +162,13 @@ public class AddWorkspaceItemsTask extends ExtendedModelTask {
             intentWithoutPkg = intent.toUri(0);
         }
 
+        // A matching shortcut has the same component or package as the intent.
+        String targetPackage = intent.getComponent() != null
+                ? intent.getComponent().getPackageName() : intent.getPackage();
         synchronized (dataModel) {
-            for (ItemInfo item : dataModel.itemsIdMap) {
+            Iterable<ItemInfo> items = targetPackage == null ? dataModel.itemsIdMap
+                    : dataModel.getItemsForPackages(Collections.singleton(targetPackage), user);
+            for (ItemInfo item : items) {
                 if (item instanceof ShortcutInfo) {
                     ShortcutInfo info = (ShortcutInfo) item;
                     if (item.getIntent() != null && info.user.equals(user)) {
@@ -192,7 +198,7 @@ public class AddWorkspaceItemsTask extends ExtendedModelTask {
 
         // Use sBgItemsIdMap as all the items are already loaded.
         synchronized (dataModel) {
-            for (ItemInfo info : dataModel.itemsIdMap) {
+            for (ItemInfo info : dataModel.getDesktopItems()) {
                 if (info.container == LauncherSettings.Favorites.CONTAINER_DESKTOP) {
                     ArrayList<ItemInfo> items = screenItems.get(info.screenId);
                     if (items == null) {
@@ -30,6 +30,7 @@ import com.enrico.launcher3.shortcuts.DeepShortcutManager;
 import com.enrico.launcher3.shortcuts.ShortcutInfoCompat;
 import com.enrico.launcher3.shortcuts.ShortcutKey;
 import com.enrico.launcher3.util.ComponentKey;
+import com.enrico.launcher3.util.ItemInfoMatcher;
 import com.enrico.launcher3.util.LongArrayMap;
 import com.enrico.launcher3.util.MultiHashMap;
 
@@ -37,7 +38,9 @@ import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -84,6 +87,12 @@ public class BgDataModel {
      */
     public final MultiHashMap<ComponentKey, String> deepShortcutMap = new MultiHashMap<>();
 
+    /**
+     * Secondary indexes of {@link #itemsIdMap}, kept in sync by {@link #addItem},
+     * {@link #removeItem} and {@link #updateItem}.
+     */
+    private final ItemIndex mIndex = new ItemIndex();
+
     /**
      * Clears all the data
      */
@@ -95,6 +104,110 @@ public class BgDataModel {
         workspaceScreens.clear();
         pinnedShortcutCounts.clear();
         deepShortcutMap.clear();
+        mIndex.clear();
+    }
+
+    /**
+     * Replaces the workspace items with the ones of {@param model}, sharing the same objects.
+     */
+    public synchronized void copyWorkspaceFrom(BgDataModel model) {
+        workspaceItems.clear();
+        appWidgets.clear();
+        folders.clear();
+        itemsIdMap.clear();
+        workspaceScreens.clear();
+        pinnedShortcutCounts.clear();
+
+        synchronized (model) {
+            workspaceItems.addAll(model.workspaceItems);
+            appWidgets.addAll(model.appWidgets);
+            for (int i = 0; i < model.folders.size(); i++) {
+                folders.put(model.folders.keyAt(i), model.folders.valueAt(i));
+            }
+            for (int i = 0; i < model.itemsIdMap.size(); i++) {
+                itemsIdMap.put(model.itemsIdMap.keyAt(i), model.itemsIdMap.valueAt(i));
+            }
+            workspaceScreens.addAll(model.workspaceScreens);
+            for (Map.Entry<ShortcutKey, MutableInt> entry : model.pinnedShortcutCounts.entrySet()) {
+                pinnedShortcutCounts.put(entry.getKey(), new MutableInt(entry.getValue().value));
+            }
+        }
+
+        mIndex.clear();
+        for (int i = 0; i < itemsIdMap.size(); i++) {
+            mIndex.add(itemsIdMap.valueAt(i));
+        }
+    }
+
+    /**
+     * Returns the shortcuts, including the ones in folders, and widgets whose target component,
+     * widget provider or icon resource belongs to one of {@param packageNames}.
+     * @param user the user of the items, or null for all users.
+     */
+    public synchronized ArrayList<ItemInfo> getItemsForPackages(
+            Collection<String> packageNames, UserHandle user) {
+        ArrayList<ItemInfo> result = new ArrayList<>();
+        boolean checkDuplicates = false;
+        for (String packageName : packageNames) {
+            ArrayList<ItemInfo> items = mIndex.getItemsForPackage(packageName);
+            if (items == null) {
+                continue;
+            }
+            for (ItemInfo item : items) {
+                if (user != null && !user.equals(item.user)) {
+                    continue;
+                }
+                // Only items with an icon resource from another package are indexed twice.
+                if (checkDuplicates && item instanceof ShortcutInfo
+                        && ((ShortcutInfo) item).iconResource != null
+                        && result.contains(item)) {
+                    continue;
+                }
+                result.add(item);
+            }
+            checkDuplicates = true;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the items directly in {@param container}, which is either a folder id or
+     * {@link LauncherSettings.Favorites#CONTAINER_HOTSEAT}.
+     */
+    public synchronized ArrayList<ItemInfo> getItemsInContainer(long container) {
+        ArrayList<ItemInfo> items = mIndex.getItemsInContainer(container);
+        return items == null ? new ArrayList<ItemInfo>() : new ArrayList<>(items);
+    }
+
+    /**
+     * Returns the items directly on the desktop screen {@param screenId}.
+     */
+    public synchronized ArrayList<ItemInfo> getItemsOnScreen(long screenId) {
+        ArrayList<ItemInfo> items = mIndex.getItemsOnScreen(screenId);
+        return items == null ? new ArrayList<ItemInfo>() : new ArrayList<>(items);
+    }
+
+    public synchronized boolean hasItemsOnScreen(long screenId) {
+        return mIndex.getItemsOnScreen(screenId) != null;
+    }
+
+    /**
+     * Returns all the items directly on the desktop, on any screen.
+     */
+    public synchronized ArrayList<ItemInfo> getDesktopItems() {
+        ArrayList<ItemInfo> items = new ArrayList<>();
+        mIndex.getDesktopItems(items);
+        return items;
+    }
+
+    /**
+     * Returns the items satisfying {@param matcher}, only looking at the items of the packages
+     * the matcher is limited to, if any.
+     */
+    public synchronized HashSet<ItemInfo> filterItemInfos(ItemInfoMatcher matcher) {
+        Collection<String> packageNames = matcher.getPackageNames();
+        return matcher.filterItemInfos(packageNames == null
+                ? itemsIdMap : getItemsForPackages(packageNames, null));
     }
 
      public synchronized void dump(String prefix, FileDescriptor fd, PrintWriter writer,
@@ -138,12 +251,13 @@ public class BgDataModel {
         }
     }
 
-    synchronized void removeItem(Context context, ItemInfo... items) {
+    public synchronized void removeItem(Context context, ItemInfo... items) {
         removeItem(context, Arrays.asList(items));
     }
 
     synchronized void removeItem(Context context, Iterable<? extends ItemInfo> items) {
         for (ItemInfo item : items) {
+            long container = mIndex.remove(item);
             switch (item.itemType) {
                 case LauncherSettings.Favorites.ITEM_TYPE_FOLDER:
                     folders.remove(item.id);
@@ -163,7 +277,10 @@ public class BgDataModel {
                 }
                 case LauncherSettings.Favorites.ITEM_TYPE_APPLICATION:
                 case LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT:
-                    workspaceItems.remove(item);
+                    // Items in folders are not in the workspace items.
+                    if (container == ItemInfo.NO_ID || isWorkspaceContainer(container)) {
+                        workspaceItems.remove(item);
+                    }
                     break;
                 case LauncherSettings.Favorites.ITEM_TYPE_APPWIDGET:
                 case LauncherSettings.Favorites.ITEM_TYPE_CUSTOM_APPWIDGET:
@@ -176,6 +293,7 @@ public class BgDataModel {
 
     synchronized void addItem(Context context, ItemInfo item, boolean newItem) {
         itemsIdMap.put(item.id, item);
+        mIndex.add(item);
         switch (item.itemType) {
             case LauncherSettings.Favorites.ITEM_TYPE_FOLDER:
                 folders.put(item.id, (FolderInfo) item);
@@ -221,6 +339,36 @@ public class BgDataModel {
         }
     }
 
+    /**
+     * Updates the indexes and the workspace items after {@param item} was moved or changed.
+     */
+    public synchronized void updateItem(ItemInfo item) {
+        long oldContainer = mIndex.add(item);
+        switch (item.itemType) {
+            case LauncherSettings.Favorites.ITEM_TYPE_APPLICATION:
+            case LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT:
+            case LauncherSettings.Favorites.ITEM_TYPE_DEEP_SHORTCUT:
+            case LauncherSettings.Favorites.ITEM_TYPE_FOLDER:
+                // Items which were not indexed yet need to be looked up.
+                boolean wasOnWorkspace = oldContainer == ItemInfo.NO_ID
+                        ? workspaceItems.contains(item) : isWorkspaceContainer(oldContainer);
+                boolean isOnWorkspace = isWorkspaceContainer(item.container);
+                if (isOnWorkspace && !wasOnWorkspace) {
+                    workspaceItems.add(item);
+                } else if (!isOnWorkspace && wasOnWorkspace) {
+                    workspaceItems.remove(item);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static boolean isWorkspaceContainer(long container) {
+        return container == LauncherSettings.Favorites.CONTAINER_DESKTOP
+                || container == LauncherSettings.Favorites.CONTAINER_HOTSEAT;
+    }
+
     /**
      * Return an existing FolderInfo object if we have encountered this ID previously,
      * or make a new one.
@@ -57,7 +57,7 @@ public class CacheDataUpdatedTask extends ExtendedModelTask {
 
         ArrayList<ShortcutInfo> updatedShortcuts = new ArrayList<>();
         synchronized (dataModel) {
-            for (ItemInfo info : dataModel.itemsIdMap) {
+            for (ItemInfo info : dataModel.getItemsForPackages(mPackages, mUser)) {
                 if (info instanceof ShortcutInfo && mUser.equals(info.user)) {
                     ShortcutInfo si = (ShortcutInfo) info;
                     ComponentName cn = si.getTargetComponent();
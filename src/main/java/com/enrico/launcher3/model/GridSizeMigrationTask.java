@@ -11,6 +11,7 @@ import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.graphics.Point;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 
 import com.enrico.launcher3.AndroidVersion;
@@ -53,6 +54,13 @@ public class GridSizeMigrationTask {
     private static final float WT_WIDGET_FACTOR = 0.6f;
     private static final float WT_FOLDER_FACTOR = 0.5f;
 
+    // Time after which a placement search keeps the best placement found so far.
+    private static final long SOLVER_TIME_BUDGET_MS = 200;
+    // Maximum number of occupancy states remembered by a placement search.
+    private static final int MAX_VISITED_STATES = 50000;
+    // Margin for the rounding errors of the weight loss bound.
+    private static final float WEIGHT_EPSILON = 0.001f;
+
     private final Context mContext;
     private final InvariantDeviceProfile mIdp;
 
@@ -388,9 +396,18 @@ public class GridSizeMigrationTask {
         return finalItems;
     }
 
+    /**
+     * Finds the placement of a list of items on a partially occupied grid, with the lowest weight
+     * loss and then the lowest move cost.
+     *
+     * The search is a branch and bound over the items: branches which can not beat the best
+     * placement found so far are cut, using a lower bound of the weight loss of the remaining
+     * items, and a branch is also cut when the same occupancy was already reached at the same item
+     * with lower costs. The search stops after {@link #SOLVER_TIME_BUDGET_MS}, keeping the best
+     * placement found so far.
+     */
     private class OptimalPlacementSolution {
         private final ArrayList<DbEntry> itemsToPlace;
-        private final GridOccupancy occupied;
 
         // If set to true, item movement are not considered in move cost, leading to a more
         // linear placement.
@@ -399,6 +416,26 @@ public class GridSizeMigrationTask {
         // The first row in the grid from where the placement should start.
         private final int startY;
 
+        // The occupied cells of each row, as bits.
+        private final int[] occupiedRows;
+        private int vacantCellCount;
+
+        // The placement of each item in the current branch, a span of 0 if it is not placed.
+        private final int[] placedX, placedY, placedSpanX, placedSpanY;
+
+        // The smallest area the items from an index onwards can be placed in, and the lowest
+        // weight per cell of these items.
+        private final int[] remainingArea;
+        private final float[] remainingWeightPerCell;
+
+        // The lowest costs with which each occupancy was reached, by item index. Only used when
+        // the occupancy fits in a long.
+        private final ArrayList<HashMap<Long, float[]>> visitedStates;
+        private int visitedStateCount;
+
+        private final long deadline;
+        private int stepCount;
+
         float lowestWeightLoss = Float.MAX_VALUE;
         float lowestMoveCost = Float.MAX_VALUE;
         ArrayList<DbEntry> finalPlacedItems;
@@ -410,17 +447,49 @@ public class GridSizeMigrationTask {
 
         OptimalPlacementSolution(GridOccupancy occupied, ArrayList<DbEntry> itemsToPlace,
                 int startY, boolean ignoreMove) {
-            this.occupied = occupied;
             this.itemsToPlace = itemsToPlace;
             this.ignoreMove = ignoreMove;
             this.startY = startY;
 
             // Sort the items such that larger widgets appear first followed by 1x1 items
             Collections.sort(this.itemsToPlace);
+
+            occupiedRows = new int[mTrgY];
+            for (int y = 0; y < mTrgY; y++) {
+                for (int x = 0; x < mTrgX; x++) {
+                    if (occupied.isOccupied(x, y)) {
+                        occupiedRows[y] |= 1 << x;
+                    } else {
+                        vacantCellCount++;
+                    }
+                }
+            }
+
+            int count = itemsToPlace.size();
+            placedX = new int[count];
+            placedY = new int[count];
+            placedSpanX = new int[count];
+            placedSpanY = new int[count];
+
+            remainingArea = new int[count + 1];
+            remainingWeightPerCell = new float[count + 1];
+            remainingWeightPerCell[count] = Float.MAX_VALUE;
+            for (int i = count - 1; i >= 0; i--) {
+                DbEntry entry = itemsToPlace.get(i);
+                // Items are shrunk by at most one cell in each direction.
+                int area = Math.max(entry.minSpanX, entry.spanX - 1)
+                        * Math.max(entry.minSpanY, entry.spanY - 1);
+                remainingArea[i] = remainingArea[i + 1] + area;
+                remainingWeightPerCell[i] =
+                        Math.min(remainingWeightPerCell[i + 1], entry.weight / area);
+            }
+
+            visitedStates = mTrgX * mTrgY <= 64 ? new ArrayList<HashMap<Long, float[]>>() : null;
+            deadline = SystemClock.uptimeMillis() + SOLVER_TIME_BUDGET_MS;
         }
 
         public void find() {
-            find(0, 0, 0, new ArrayList<DbEntry>());
+            find(0, 0, 0);
         }
 
         /**
@@ -428,10 +497,8 @@ public class GridSizeMigrationTask {
          * @param index the position in {@link #itemsToPlace} to start looking at.
          * @param weightLoss total weight loss upto this point
          * @param moveCost total move cost upto this point
-         * @param itemsPlaced all the items already placed upto this point
          */
-        public void find(int index, float weightLoss, float moveCost,
-                ArrayList<DbEntry> itemsPlaced) {
+        private void find(int index, float weightLoss, float moveCost) {
             if ((weightLoss >= lowestWeightLoss) ||
                     ((weightLoss == lowestWeightLoss) && (moveCost >= lowestMoveCost))) {
                 // Abort, as we already have a better solution.
@@ -441,9 +508,23 @@ public class GridSizeMigrationTask {
                 // End loop.
                 lowestWeightLoss = weightLoss;
                 lowestMoveCost = moveCost;
+                finalPlacedItems = getPlacedItems();
+                return;
+            }
 
-                // Keep a deep copy of current configuration as it can change during recursion.
-                finalPlacedItems = deepCopy(itemsPlaced);
+            if (finalPlacedItems != null && isOutOfTime()) {
+                return;
+            }
+
+            // Items which do not fit in the vacant cells are lost, at least at the lowest weight
+            // per cell.
+            int excessArea = remainingArea[index] - vacantCellCount;
+            if (excessArea > 0 && weightLoss + excessArea * remainingWeightPerCell[index]
+                    > lowestWeightLoss + WEIGHT_EPSILON) {
+                return;
+            }
+
+            if (isVisited(index, weightLoss, moveCost)) {
                 return;
             }
 
@@ -451,11 +532,6 @@ public class GridSizeMigrationTask {
             int myX = me.cellX;
             int myY = me.cellY;
 
-            // List of items to pass over if this item was placed.
-            ArrayList<DbEntry> itemsIncludingMe = new ArrayList<>(itemsPlaced.size() + 1);
-            itemsIncludingMe.addAll(itemsPlaced);
-            itemsIncludingMe.add(me);
-
             if (me.spanX > 1 || me.spanY > 1) {
                 // If the current item is a widget (and it greater than 1x1), try to place it at
                 // all possible positions. This is because a widget placed at one position can
@@ -467,65 +543,48 @@ public class GridSizeMigrationTask {
                     for (int x = 0; x < mTrgX; x++) {
                         float newMoveCost = moveCost;
                         if (x != myX) {
-                            me.cellX = x;
                             newMoveCost ++;
                         }
                         if (y != myY) {
-                            me.cellY = y;
                             newMoveCost ++;
                         }
                         if (ignoreMove) {
                             newMoveCost = moveCost;
                         }
 
-                        if (occupied.isRegionVacant(x, y, myW, myH)) {
+                        if (isRegionVacant(x, y, myW, myH)) {
                             // place at this position and continue search.
-                            occupied.markCells(me, true);
-                            find(index + 1, weightLoss, newMoveCost, itemsIncludingMe);
-                            occupied.markCells(me, false);
+                            findWithPlacement(index, x, y, myW, myH, weightLoss, newMoveCost);
                         }
 
                         // Try resizing horizontally
-                        if (myW > me.minSpanX && occupied.isRegionVacant(x, y, myW - 1, myH)) {
-                            me.spanX --;
-                            occupied.markCells(me, true);
+                        if (myW > me.minSpanX && isRegionVacant(x, y, myW - 1, myH)) {
                             // 1 extra move cost
-                            find(index + 1, weightLoss, newMoveCost + 1, itemsIncludingMe);
-                            occupied.markCells(me, false);
-                            me.spanX ++;
+                            findWithPlacement(index, x, y, myW - 1, myH,
+                                    weightLoss, newMoveCost + 1);
                         }
 
                         // Try resizing vertically
-                        if (myH > me.minSpanY && occupied.isRegionVacant(x, y, myW, myH - 1)) {
-                            me.spanY --;
-                            occupied.markCells(me, true);
+                        if (myH > me.minSpanY && isRegionVacant(x, y, myW, myH - 1)) {
                             // 1 extra move cost
-                            find(index + 1, weightLoss, newMoveCost + 1, itemsIncludingMe);
-                            occupied.markCells(me, false);
-                            me.spanY ++;
+                            findWithPlacement(index, x, y, myW, myH - 1,
+                                    weightLoss, newMoveCost + 1);
                         }
 
                         // Try resizing horizontally & vertically
                         if (myH > me.minSpanY && myW > me.minSpanX &&
-                                occupied.isRegionVacant(x, y, myW - 1, myH - 1)) {
-                            me.spanX --;
-                            me.spanY --;
-                            occupied.markCells(me, true);
+                                isRegionVacant(x, y, myW - 1, myH - 1)) {
                             // 2 extra move cost
-                            find(index + 1, weightLoss, newMoveCost + 2, itemsIncludingMe);
-                            occupied.markCells(me, false);
-                            me.spanX ++;
-                            me.spanY ++;
+                            findWithPlacement(index, x, y, myW - 1, myH - 1,
+                                    weightLoss, newMoveCost + 2);
                         }
-                        me.cellX = myX;
-                        me.cellY = myY;
                     }
                 }
 
                 // Finally also try a solution when this item is not included. Trying it in the end
-                // causes it to get skipped in most cases due to higher weight loss, and prevents
-                // unnecessary deep copies of various configurations.
-                find(index + 1, weightLoss + me.weight, moveCost, itemsPlaced);
+                // causes it to get skipped in most cases due to higher weight loss.
+                placedSpanX[index] = 0;
+                find(index + 1, weightLoss + me.weight, moveCost);
             } else {
                 // Since this is a 1x1 item and all the following items are also 1x1, just place
                 // it at 'the most appropriate position' and hope for the best.
@@ -535,7 +594,7 @@ public class GridSizeMigrationTask {
 
                 for (int y = startY; y < mTrgY; y++) {
                     for (int x = 0; x < mTrgX; x++) {
-                        if (!occupied.cells[x][y]) {
+                        if ((occupiedRows[y] & (1 << x)) == 0) {
                             int dist = ignoreMove ? 0 :
                                 ((me.cellX - x) * (me.cellX - x) + (me.cellY - y) * (me.cellY - y));
                             if (dist < newDistance) {
@@ -550,21 +609,15 @@ public class GridSizeMigrationTask {
                 if (newX < mTrgX && newY < mTrgY) {
                     float newMoveCost = moveCost;
                     if (newX != myX) {
-                        me.cellX = newX;
                         newMoveCost ++;
                     }
                     if (newY != myY) {
-                        me.cellY = newY;
                         newMoveCost ++;
                     }
                     if (ignoreMove) {
                         newMoveCost = moveCost;
                     }
-                    occupied.markCells(me, true);
-                    find(index + 1, weightLoss, newMoveCost, itemsIncludingMe);
-                    occupied.markCells(me, false);
-                    me.cellX = myX;
-                    me.cellY = myY;
+                    findWithPlacement(index, newX, newY, 1, 1, weightLoss, newMoveCost);
 
                     // Try to find a solution without this item, only if
                     //  1) there was at least one space, i.e., we were able to place this item
@@ -574,16 +627,106 @@ public class GridSizeMigrationTask {
                     //      anyway be same.
                     if (index + 1 < itemsToPlace.size()
                             && itemsToPlace.get(index + 1).weight >= me.weight && !ignoreMove) {
-                        find(index + 1, weightLoss + me.weight, moveCost, itemsPlaced);
+                        placedSpanX[index] = 0;
+                        find(index + 1, weightLoss + me.weight, moveCost);
                     }
                 } else {
                     // No more space. Jump to the end.
-                    for (int i = index + 1; i < itemsToPlace.size(); i++) {
-                        weightLoss += itemsToPlace.get(i).weight;
+                    for (int i = index; i < itemsToPlace.size(); i++) {
+                        placedSpanX[i] = 0;
+                        if (i > index) {
+                            weightLoss += itemsToPlace.get(i).weight;
+                        }
                     }
-                    find(itemsToPlace.size(), weightLoss + me.weight, moveCost, itemsPlaced);
+                    find(itemsToPlace.size(), weightLoss + me.weight, moveCost);
+                }
+            }
+        }
+
+        private void findWithPlacement(int index, int x, int y, int spanX, int spanY,
+                float weightLoss, float moveCost) {
+            placedX[index] = x;
+            placedY[index] = y;
+            placedSpanX[index] = spanX;
+            placedSpanY[index] = spanY;
+            markRegion(x, y, spanX, spanY, true);
+            find(index + 1, weightLoss, moveCost);
+            markRegion(x, y, spanX, spanY, false);
+        }
+
+        private boolean isRegionVacant(int x, int y, int spanX, int spanY) {
+            if (x < 0 || y < 0 || x + spanX > mTrgX || y + spanY > mTrgY) {
+                return false;
+            }
+            int mask = ((1 << spanX) - 1) << x;
+            for (int j = y; j < y + spanY; j++) {
+                if ((occupiedRows[j] & mask) != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void markRegion(int x, int y, int spanX, int spanY, boolean value) {
+            int mask = ((1 << spanX) - 1) << x;
+            for (int j = y; j < y + spanY; j++) {
+                occupiedRows[j] = value ? (occupiedRows[j] | mask) : (occupiedRows[j] & ~mask);
+            }
+            vacantCellCount += value ? -spanX * spanY : spanX * spanY;
+        }
+
+        /**
+         * Returns true if the current occupancy was already reached at {@param index} with costs
+         * which are not higher, in which case this branch can not lead to a better placement.
+         */
+        private boolean isVisited(int index, float weightLoss, float moveCost) {
+            if (visitedStates == null) {
+                return false;
+            }
+            long state = 0;
+            for (int y = 0; y < mTrgY; y++) {
+                state |= ((long) occupiedRows[y]) << (y * mTrgX);
+            }
+            while (visitedStates.size() <= index) {
+                visitedStates.add(new HashMap<Long, float[]>());
+            }
+            HashMap<Long, float[]> states = visitedStates.get(index);
+            float[] costs = states.get(state);
+            if (costs == null) {
+                if (visitedStateCount < MAX_VISITED_STATES) {
+                    states.put(state, new float[] {weightLoss, moveCost});
+                    visitedStateCount++;
+                }
+                return false;
+            }
+            if (costs[0] <= weightLoss && costs[1] <= moveCost) {
+                return true;
+            }
+            if ((weightLoss < costs[0]) || ((weightLoss == costs[0]) && (moveCost < costs[1]))) {
+                costs[0] = weightLoss;
+                costs[1] = moveCost;
+            }
+            return false;
+        }
+
+        private boolean isOutOfTime() {
+            // Only check the clock once in a while.
+            return (++stepCount & 0xff) == 0 && SystemClock.uptimeMillis() > deadline;
+        }
+
+        private ArrayList<DbEntry> getPlacedItems() {
+            ArrayList<DbEntry> placedItems = new ArrayList<>();
+            for (int i = 0; i < itemsToPlace.size(); i++) {
+                if (placedSpanX[i] > 0) {
+                    DbEntry entry = itemsToPlace.get(i).copy();
+                    entry.cellX = placedX[i];
+                    entry.cellY = placedY[i];
+                    entry.spanX = placedSpanX[i];
+                    entry.spanY = placedSpanY[i];
+                    placedItems.add(entry);
                 }
             }
+            return placedItems;
         }
     }
 
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.enrico.launcher3.model;
+
+import android.content.ComponentName;
+import android.content.Intent;
+
+import com.enrico.launcher3.ItemInfo;
+import com.enrico.launcher3.LauncherAppWidgetInfo;
+import com.enrico.launcher3.LauncherSettings.Favorites;
+import com.enrico.launcher3.ShortcutInfo;
+import com.enrico.launcher3.util.LongArrayMap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Secondary indexes over the items of a {@link BgDataModel}, by package and by container.
+ *
+ * An item is indexed by id with the keys it had when it was last indexed, so that it can be
+ * removed from the index even after its fields were changed. Callers need to check the fields of the
+ * returned items, as they can have changed since.
+ */
+class ItemIndex {
+
+    // Items by the package of their target component or widget provider, and of their icon
+    // resource.
+    private final HashMap<String, ArrayList<ItemInfo>> mByPackage = new HashMap<>();
+    // Items by container, desktop items are indexed by screen instead.
+    private final LongArrayMap<ArrayList<ItemInfo>> mByContainer = new LongArrayMap<>();
+    private final LongArrayMap<ArrayList<ItemInfo>> mByScreen = new LongArrayMap<>();
+    // The keys of every indexed item, by id.
+    private final LongArrayMap<Entry> mEntries = new LongArrayMap<>();
+
+    private static class Entry {
+        ItemInfo item;
+        String packageName;
+        String iconPackageName;
+        long container;
+        long screenId;
+    }
+
+    public void clear() {
+        mByPackage.clear();
+        mByContainer.clear();
+        mByScreen.clear();
+        mEntries.clear();
+    }
+
+    /**
+     * Indexes {@param item} with its current fields, replacing its previous keys.
+     * @return the container the item was previously indexed in, or {@link ItemInfo#NO_ID}.
+     */
+    public long add(ItemInfo item) {
+        Entry entry = mEntries.get(item.id);
+        long oldContainer = ItemInfo.NO_ID;
+        if (entry != null) {
+            oldContainer = entry.container;
+            unindex(entry);
+        } else {
+            entry = new Entry();
+            mEntries.put(item.id, entry);
+        }
+
+        entry.item = item;
+        entry.packageName = getPackageName(item);
+        entry.iconPackageName = null;
+        if (item instanceof ShortcutInfo && ((ShortcutInfo) item).iconResource != null) {
+            String iconPackageName = ((ShortcutInfo) item).iconResource.packageName;
+            if (iconPackageName != null && !iconPackageName.equals(entry.packageName)) {
+                entry.iconPackageName = iconPackageName;
+            }
+        }
+        entry.container = item.container;
+        entry.screenId = item.screenId;
+
+        addToList(mByPackage, entry.packageName, item);
+        addToList(mByPackage, entry.iconPackageName, item);
+        if (entry.container == Favorites.CONTAINER_DESKTOP) {
+            addToList(mByScreen, entry.screenId, item);
+        } else {
+            addToList(mByContainer, entry.container, item);
+        }
+        return oldContainer;
+    }
+
+    /**
+     * Removes {@param item} from the index.
+     * @return the container the item was indexed in, or {@link ItemInfo#NO_ID}.
+     */
+    public long remove(ItemInfo item) {
+        Entry entry = mEntries.get(item.id);
+        if (entry == null) {
+            return ItemInfo.NO_ID;
+        }
+        mEntries.remove(item.id);
+        unindex(entry);
+        return entry.container;
+    }
+
+    public ArrayList<ItemInfo> getItemsForPackage(String packageName) {
+        return mByPackage.get(packageName);
+    }
+
+    public ArrayList<ItemInfo> getItemsInContainer(long container) {
+        return mByContainer.get(container);
+    }
+
+    public ArrayList<ItemInfo> getItemsOnScreen(long screenId) {
+        return mByScreen.get(screenId);
+    }
+
+    /**
+     * Adds all the items on the desktop to {@param out}.
+     */
+    public void getDesktopItems(ArrayList<ItemInfo> out) {
+        for (ArrayList<ItemInfo> items : mByScreen) {
+            out.addAll(items);
+        }
+    }
+
+    private void unindex(Entry entry) {
+        removeFromList(mByPackage, entry.packageName, entry.item);
+        removeFromList(mByPackage, entry.iconPackageName, entry.item);
+        if (entry.container == Favorites.CONTAINER_DESKTOP) {
+            removeFromList(mByScreen, entry.screenId, entry.item);
+        } else {
+            removeFromList(mByContainer, entry.container, entry.item);
+        }
+    }
+
+    private static String getPackageName(ItemInfo item) {
+        if (item instanceof LauncherAppWidgetInfo) {
+            ComponentName provider = ((LauncherAppWidgetInfo) item).providerName;
+            return provider == null ? null : provider.getPackageName();
+        }
+        ComponentName cn = item.getTargetComponent();
+        if (cn != null) {
+            return cn.getPackageName();
+        }
+        Intent intent = item.getIntent();
+        return intent == null ? null : intent.getPackage();
+    }
+
+    private static void addToList(
+            HashMap<String, ArrayList<ItemInfo>> map, String key, ItemInfo item) {
+        if (key == null) {
+            return;
+        }
+        ArrayList<ItemInfo> items = map.get(key);
+        if (items == null) {
+            items = new ArrayList<>(2);
+            map.put(key, items);
+        }
+        items.add(item);
+    }
+
+    private static void addToList(LongArrayMap<ArrayList<ItemInfo>> map, long key, ItemInfo item) {
+        ArrayList<ItemInfo> items = map.get(key);
+        if (items == null) {
+            items = new ArrayList<>(4);
+            map.put(key, items);
+        }
+        items.add(item);
+    }
+
+    private static void removeFromList(
+            HashMap<String, ArrayList<ItemInfo>> map, String key, ItemInfo item) {
+        if (key == null) {
+            return;
+        }
+        ArrayList<ItemInfo> items = map.get(key);
+        if (items != null && items.remove(item) && items.isEmpty()) {
+            map.remove(key);
+        }
+    }
+
+    private static void removeFromList(
+            LongArrayMap<ArrayList<ItemInfo>> map, long key, ItemInfo item) {
+        ArrayList<ItemInfo> items = map.get(key);
+        if (items != null && items.remove(item) && items.isEmpty()) {
+            map.remove(key);
+        }
+    }
+}
@@ -31,6 +31,7 @@ import android.provider.BaseColumns;
 import android.text.TextUtils;
 import android.util.LongSparseArray;
 
+import com.enrico.launcher3.FavoritesDao;
 import com.enrico.launcher3.InvariantDeviceProfile;
 import com.enrico.launcher3.ItemInfo;
 import com.enrico.launcher3.LauncherAppState;
@@ -56,12 +57,38 @@ import java.util.ArrayList;
  */
 public class LoaderCursor extends CursorWrapper {
 
+    /**
+     * The columns needed to load the workspace. The icon column is left out, as only a few items
+     * have their icon stored in the DB, see {@link #loadIcon}.
+     */
+    public static final String[] PROJECTION = {
+            LauncherSettings.Favorites._ID,
+            LauncherSettings.Favorites.TITLE,
+            LauncherSettings.Favorites.INTENT,
+            LauncherSettings.Favorites.CONTAINER,
+            LauncherSettings.Favorites.SCREEN,
+            LauncherSettings.Favorites.CELLX,
+            LauncherSettings.Favorites.CELLY,
+            LauncherSettings.Favorites.SPANX,
+            LauncherSettings.Favorites.SPANY,
+            LauncherSettings.Favorites.ITEM_TYPE,
+            LauncherSettings.Favorites.APPWIDGET_ID,
+            LauncherSettings.Favorites.APPWIDGET_PROVIDER,
+            LauncherSettings.Favorites.ICON_PACKAGE,
+            LauncherSettings.Favorites.ICON_RESOURCE,
+            LauncherSettings.Favorites.PROFILE_ID,
+            LauncherSettings.Favorites.RESTORED,
+            LauncherSettings.Favorites.RANK,
+            LauncherSettings.Favorites.OPTIONS,
+    };
+
     public final LongSparseArray<UserHandle> allUsers = new LongSparseArray<>();
 
     private final Context mContext;
     private final UserManagerCompat mUserManager;
     private final IconCache mIconCache;
     private final InvariantDeviceProfile mIDP;
+    private final FavoritesDao mDao;
 
     private final ArrayList<Long> itemsToRemove = new ArrayList<>();
     private final ArrayList<Long> restoredRows = new ArrayList<>();
@@ -69,7 +96,6 @@ public class LoaderCursor extends CursorWrapper {
 
     private final int iconPackageIndex;
     private final int iconResourceIndex;
-    private final int iconIndex;
     public final int titleIndex;
 
     private final int idIndex;
@@ -95,10 +121,10 @@ public class LoaderCursor extends CursorWrapper {
         mContext = app.getContext();
         mIconCache = app.getIconCache();
         mIDP = app.getInvariantDeviceProfile();
+        mDao = app.getFavoritesDao();
         mUserManager = UserManagerCompat.getInstance(mContext);
 
         // Init column indices
-        iconIndex = getColumnIndexOrThrow(LauncherSettings.Favorites.ICON);
         iconPackageIndex = getColumnIndexOrThrow(LauncherSettings.Favorites.ICON_PACKAGE);
         iconResourceIndex = getColumnIndexOrThrow(LauncherSettings.Favorites.ICON_RESOURCE);
         titleIndex = getColumnIndexOrThrow(LauncherSettings.Favorites.TITLE);
@@ -158,7 +184,8 @@ public class LoaderCursor extends CursorWrapper {
     }
 
     /**
-     * Loads the icon from the cursor and updates the {@param info} if the icon is an app resource.
+     * Loads the icon of the current item and updates the {@param info} if the icon is an app
+     * resource. The icon stored in the DB is queried separately, as it is not in the cursor.
      */
     private Bitmap loadIcon(ShortcutInfo info) {
         Bitmap icon = null;
@@ -174,7 +201,10 @@ public class LoaderCursor extends CursorWrapper {
         }
         if (icon == null) {
             // Failed to load from resource, try loading from DB.
-            byte[] data = getBlob(iconIndex);
+            byte[] data = mDao.loadIcon(id);
+            if (data == null) {
+                return null;
+            }
             try {
                 icon = LauncherIcons.createIconBitmap(
                         BitmapFactory.decodeByteArray(data, 0, data.length), mContext);
@@ -390,15 +420,15 @@ public class LoaderCursor extends CursorWrapper {
             }
 
             if (hotseatOccupancy != null) {
-                if (hotseatOccupancy.cells[(int) item.screenId][0]) {
+                if (hotseatOccupancy.isOccupied((int) item.screenId, 0)) {
                     return false;
                 } else {
-                    hotseatOccupancy.cells[(int) item.screenId][0] = true;
+                    hotseatOccupancy.markCells((int) item.screenId, 0, 1, 1, true);
                     return true;
                 }
             } else {
                 final GridOccupancy occupancy = new GridOccupancy(mIDP.numHotseatIcons, 1);
-                occupancy.cells[(int) item.screenId][0] = true;
+                occupancy.markCells((int) item.screenId, 0, 1, 1, true);
                 occupied.put((long) LauncherSettings.Favorites.CONTAINER_HOTSEAT, occupancy);
                 return true;
             }
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.enrico.launcher3.model;
+
+import android.graphics.Bitmap;
+import android.text.TextUtils;
+
+import com.enrico.launcher3.FolderInfo;
+import com.enrico.launcher3.ItemInfo;
+import com.enrico.launcher3.LauncherAppWidgetInfo;
+import com.enrico.launcher3.LauncherSettings.Favorites;
+import com.enrico.launcher3.ShortcutInfo;
+
+import java.util.ArrayList;
+
+/**
+ * The changes between the workspace items which are bound and the ones which were loaded again
+ * from the DB, as the callbacks needed to update the bound views:
+ *   - items whose view is removed, either because the item was removed, or because it was moved
+ *     or changed in a way which requires a new view.
+ *   - items whose view is added.
+ *   - shortcuts whose view is updated in place, with a new title, icon or state.
+ *
+ * Items which are bound and did not move keep their object, so that the views and the model
+ * keep sharing the same objects. A folder is only kept if its contents did not change, otherwise
+ * it is replaced as a whole.
+ */
+public class ModelDiff {
+
+    /** Items on the workspace or hotseat whose view is removed. */
+    public final ArrayList<ItemInfo> removed = new ArrayList<>();
+    /** Shortcuts and folders on the workspace or hotseat whose view is added. */
+    public final ArrayList<ItemInfo> added = new ArrayList<>();
+    /** Widgets whose view is added. */
+    public final ArrayList<LauncherAppWidgetInfo> addedWidgets = new ArrayList<>();
+    /** Bound shortcuts, including the ones in folders, which were updated in place. */
+    public final ArrayList<ShortcutInfo> updated = new ArrayList<>();
+
+    private final BgDataModel mMerged = new BgDataModel();
+
+    private ModelDiff() { }
+
+    /**
+     * Computes the changes from {@param bound} to {@param loaded}.
+     * @return null if the changes can not be bound incrementally, in which case the workspace
+     *         should be bound again.
+     */
+    public static ModelDiff compute(BgDataModel bound, BgDataModel loaded) {
+        ModelDiff diff = new ModelDiff();
+        synchronized (bound) {
+            synchronized (loaded) {
+                // The screens are only created by a full bind.
+                if (!bound.workspaceScreens.equals(loaded.workspaceScreens)) {
+                    return null;
+                }
+                diff.merge(bound, loaded);
+            }
+        }
+        return diff;
+    }
+
+    public boolean isEmpty() {
+        return removed.isEmpty() && added.isEmpty() && addedWidgets.isEmpty()
+                && updated.isEmpty();
+    }
+
+    public int size() {
+        return removed.size() + added.size() + addedWidgets.size() + updated.size();
+    }
+
+    /**
+     * Replaces the workspace items of {@param model} with the loaded items, using the bound
+     * objects for the items which are still bound.
+     */
+    public void applyTo(BgDataModel model) {
+        model.copyWorkspaceFrom(mMerged);
+    }
+
+    private void merge(BgDataModel bound, BgDataModel loaded) {
+        mMerged.workspaceScreens.addAll(loaded.workspaceScreens);
+        mMerged.pinnedShortcutCounts.putAll(loaded.pinnedShortcutCounts);
+
+        for (ItemInfo item : loaded.itemsIdMap) {
+            if (item.container != Favorites.CONTAINER_DESKTOP
+                    && item.container != Favorites.CONTAINER_HOTSEAT) {
+                // Folder contents follow their folder.
+                continue;
+            }
+            ItemInfo boundItem = bound.itemsIdMap.get(item.id);
+            ItemInfo mergedItem = item;
+            if (boundItem != null && isSamePlacement(boundItem, item)) {
+                if (item instanceof ShortcutInfo) {
+                    if (!isSamePresentation((ShortcutInfo) boundItem, (ShortcutInfo) item)) {
+                        ((ShortcutInfo) boundItem).updatePresentationFrom((ShortcutInfo) item);
+                        updated.add((ShortcutInfo) boundItem);
+                    }
+                    mergedItem = boundItem;
+                } else if (item instanceof FolderInfo) {
+                    if (isSameFolder((FolderInfo) boundItem, (FolderInfo) item)) {
+                        mergedItem = boundItem;
+                    }
+                } else if (item instanceof LauncherAppWidgetInfo) {
+                    if (isSameWidget((LauncherAppWidgetInfo) boundItem,
+                            (LauncherAppWidgetInfo) item)) {
+                        mergedItem = boundItem;
+                    }
+                }
+            }
+
+            if (mergedItem != boundItem) {
+                if (item instanceof LauncherAppWidgetInfo) {
+                    addedWidgets.add((LauncherAppWidgetInfo) item);
+                } else {
+                    added.add(item);
+                }
+            }
+            addToMerged(mergedItem);
+        }
+
+        // Views of the items which were removed, moved or replaced. The views of items in a
+        // folder are removed with their folder.
+        for (ItemInfo boundItem : bound.itemsIdMap) {
+            if ((boundItem.container == Favorites.CONTAINER_DESKTOP
+                    || boundItem.container == Favorites.CONTAINER_HOTSEAT)
+                    && mMerged.itemsIdMap.get(boundItem.id) != boundItem) {
+                removed.add(boundItem);
+            }
+        }
+    }
+
+    private void addToMerged(ItemInfo item) {
+        mMerged.itemsIdMap.put(item.id, item);
+        if (item instanceof FolderInfo) {
+            FolderInfo folder = (FolderInfo) item;
+            mMerged.folders.put(folder.id, folder);
+            mMerged.workspaceItems.add(folder);
+            for (ShortcutInfo info : folder.contents) {
+                mMerged.itemsIdMap.put(info.id, info);
+            }
+        } else if (item instanceof LauncherAppWidgetInfo) {
+            mMerged.appWidgets.add((LauncherAppWidgetInfo) item);
+        } else {
+            mMerged.workspaceItems.add(item);
+        }
+    }
+
+    /**
+     * Returns true if the bound folder can be kept, updating its contents in place.
+     */
+    private boolean isSameFolder(FolderInfo bound, FolderInfo loaded) {
+        if (!TextUtils.equals(bound.title, loaded.title) || bound.options != loaded.options
+                || bound.contents.size() != loaded.contents.size()) {
+            return false;
+        }
+        int count = bound.contents.size();
+        for (int i = 0; i < count; i++) {
+            if (!isSamePlacement(bound.contents.get(i), loaded.contents.get(i))) {
+                return false;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            ShortcutInfo boundInfo = bound.contents.get(i);
+            ShortcutInfo loadedInfo = loaded.contents.get(i);
+            if (!isSamePresentation(boundInfo, loadedInfo)) {
+                boundInfo.updatePresentationFrom(loadedInfo);
+                updated.add(boundInfo);
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSamePlacement(ItemInfo a, ItemInfo b) {
+        return a.id == b.id && a.getClass() == b.getClass() && a.itemType == b.itemType
+                && a.container == b.container && a.screenId == b.screenId
+                && a.cellX == b.cellX && a.cellY == b.cellY
+                && a.spanX == b.spanX && a.spanY == b.spanY && a.rank == b.rank
+                && equals(a.user, b.user);
+    }
+
+    /**
+     * The pixels of the icons are only compared when everything else matches, since icons
+     * decoded from the snapshot and from the DB are never the same object.
+     */
+    private static boolean isSamePresentation(ShortcutInfo a, ShortcutInfo b) {
+        return a.usingLowResIcon == b.usingLowResIcon
+                && a.isDisabled == b.isDisabled && a.status == b.status
+                && TextUtils.equals(a.title, b.title)
+                && TextUtils.equals(a.contentDescription, b.contentDescription)
+                && (a.intent == null ? b.intent == null
+                        : b.intent != null && a.intent.toUri(0).equals(b.intent.toUri(0)))
+                && isSameIcon(a.iconBitmap, b.iconBitmap);
+    }
+
+    private static boolean isSameIcon(Bitmap a, Bitmap b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null || a.getWidth() != b.getWidth()
+                || a.getHeight() != b.getHeight() || a.getConfig() != b.getConfig()) {
+            return false;
+        }
+        return a.sameAs(b);
+    }
+
+    private static boolean isSameWidget(LauncherAppWidgetInfo a, LauncherAppWidgetInfo b) {
+        return a.appWidgetId == b.appWidgetId && a.restoreStatus == b.restoreStatus
+                && equals(a.providerName, b.providerName);
+    }
+
+    private static boolean equals(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
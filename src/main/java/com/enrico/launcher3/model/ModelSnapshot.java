@@ -0,0 +1,572 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.enrico.launcher3.model;
+
+import android.annotation.TargetApi;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ChangedPackages;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.Process;
+import android.os.UserHandle;
+import android.provider.Settings;
+import android.text.TextUtils;
+import android.util.AtomicFile;
+
+import com.enrico.launcher3.AndroidVersion;
+import com.enrico.launcher3.FolderInfo;
+import com.enrico.launcher3.InvariantDeviceProfile;
+import com.enrico.launcher3.ItemInfo;
+import com.enrico.launcher3.LauncherAppState;
+import com.enrico.launcher3.LauncherAppWidgetInfo;
+import com.enrico.launcher3.LauncherFiles;
+import com.enrico.launcher3.LauncherModel;
+import com.enrico.launcher3.LauncherSettings.Favorites;
+import com.enrico.launcher3.ShortcutInfo;
+import com.enrico.launcher3.Utilities;
+import com.enrico.launcher3.compat.UserManagerCompat;
+import com.enrico.launcher3.folder.Folder;
+import com.enrico.launcher3.folder.FolderIcon;
+import com.enrico.launcher3.icons.IconCache;
+import com.enrico.launcher3.util.PackageUserKey;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Compact binary copy of the workspace part of the {@link BgDataModel}: the screens, and the
+ * position, title, intent, state and badge color of every item. It is written after a successful
+ * load, and read back on the next cold start so that the workspace can be bound before the
+ * launcher DB is parsed and every item is checked against the package manager.
+ *
+ * A snapshot is only used when it was written for the same DB content (number of items and
+ * last modification time), the same screens, build, locale and grid, and when no package
+ * changed since then. It is still only a hint: the loader always verifies it against the DB.
+ * Before O, where the changed packages can not be queried, the environment stamp includes a
+ * hash of the last update times of all the installed packages, read with a single call. The
+ * packages of the items of other profiles are not covered by it, and their last update time is
+ * saved with the snapshot and checked against the package manager.
+ */
+public class ModelSnapshot {
+
+    private static final int MAGIC = 0x4c4d534e;
+    private static final int VERSION = 4;
+
+    private static final int NO_ICON = -1;
+
+    private final Context mContext;
+    private final AtomicFile mFile;
+
+    // Stamps of the last snapshot read or written, to skip writing an identical snapshot.
+    private String mLastEnvironmentStamp;
+    private long mLastItemCount = -1;
+    private long mLastModified = -1;
+    // Package manager sequence number used for the last snapshot, see getChangedPackages().
+    private int mPackageSequenceNumber;
+    // Whether the last snapshot has packages which are not covered by the environment stamp,
+    // in which case it is always written again.
+    private boolean mLastHasProfilePackages;
+
+    public ModelSnapshot(Context context) {
+        mContext = context;
+        mFile = new AtomicFile(new File(context.getCacheDir(), LauncherFiles.MODEL_SNAPSHOT));
+    }
+
+    /**
+     * Writes the workspace items of {@param model}, unless the DB did not change since the last
+     * snapshot. Items which are being restored or installed are not supported, in which case
+     * the previous snapshot is deleted instead.
+     */
+    public void write(BgDataModel model) {
+        long[] dbStamp = readDbStamp();
+        if (dbStamp == null) {
+            return;
+        }
+        String environmentStamp = getEnvironmentStamp(true);
+        if (dbStamp[0] == mLastItemCount && dbStamp[1] == mLastModified
+                && environmentStamp.equals(mLastEnvironmentStamp) && !mLastHasProfilePackages) {
+            return;
+        }
+
+        FileOutputStream stream = null;
+        try {
+            stream = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(environmentStamp);
+            out.writeLong(dbStamp[0]);
+            out.writeLong(dbStamp[1]);
+
+            boolean supported;
+            boolean hasProfilePackages;
+            synchronized (model) {
+                hasProfilePackages = writePackages(out, model) > 0;
+                out.writeInt(model.workspaceScreens.size());
+                for (long screenId : model.workspaceScreens) {
+                    out.writeLong(screenId);
+                }
+                out.writeInt(model.itemsIdMap.size());
+                supported = true;
+                for (ItemInfo item : model.itemsIdMap) {
+                    if (!writeItem(out, item)) {
+                        supported = false;
+                        break;
+                    }
+                }
+            }
+            out.flush();
+
+            if (supported) {
+                mFile.finishWrite(stream);
+                mLastEnvironmentStamp = environmentStamp;
+                mLastItemCount = dbStamp[0];
+                mLastModified = dbStamp[1];
+                mLastHasProfilePackages = hasProfilePackages;
+            } else {
+                mFile.failWrite(stream);
+                delete();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (stream != null) {
+                mFile.failWrite(stream);
+            }
+        }
+    }
+
+    /**
+     * Fills {@param model} with the workspace items of the snapshot, if it is still valid.
+     * @return false if there is no valid snapshot, in which case {@param model} is left empty.
+     */
+    public boolean read(LauncherAppState app, BgDataModel model) {
+        if (!mFile.getBaseFile().exists()) {
+            return false;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+            String environmentStamp = in.readUTF();
+            long itemCount = in.readLong();
+            long lastModified = in.readLong();
+            if (!isEnvironmentValid(environmentStamp)) {
+                return false;
+            }
+            long[] dbStamp = readDbStamp();
+            if (dbStamp == null || dbStamp[0] != itemCount || dbStamp[1] != lastModified) {
+                return false;
+            }
+            int profilePackageCount = in.readInt();
+            if (!arePackagesValid(in, profilePackageCount)) {
+                return false;
+            }
+
+            ArrayList<Long> screens = new ArrayList<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                screens.add(in.readLong());
+            }
+            if (!screens.equals(LauncherModel.loadWorkspaceScreensDb(mContext))) {
+                return false;
+            }
+
+            model.clear();
+            model.workspaceScreens.addAll(screens);
+            for (int i = in.readInt(); i > 0; i--) {
+                ItemInfo item = readItem(in, app.getIconCache(), model);
+                if (item == null) {
+                    model.clear();
+                    return false;
+                }
+                model.addItem(mContext, item, false);
+            }
+            for (FolderInfo folder : model.folders) {
+                Collections.sort(folder.contents, Folder.ITEM_POS_COMPARATOR);
+            }
+
+            mLastEnvironmentStamp = environmentStamp;
+            mLastItemCount = itemCount;
+            mLastModified = lastModified;
+            mLastHasProfilePackages = profilePackageCount > 0;
+            return true;
+        } catch (IOException | URISyntaxException | RuntimeException e) {
+            e.printStackTrace();
+            model.clear();
+            return false;
+        } finally {
+            Utilities.closeSilently(in);
+        }
+    }
+
+    public void delete() {
+        mFile.delete();
+        mLastEnvironmentStamp = null;
+        mLastItemCount = -1;
+        mLastModified = -1;
+    }
+
+    /**
+     * Writes the last update time of the packages of the items of other profiles, before O only.
+     * A package which is not installed anymore is written with an update time of -1.
+     * @return the number of packages written.
+     */
+    private int writePackages(DataOutputStream out, BgDataModel model) throws IOException {
+        if (AndroidVersion.isAtLeastOreo()) {
+            out.writeInt(0);
+            return 0;
+        }
+        UserHandle myUser = Process.myUserHandle();
+        HashSet<PackageUserKey> packages = new HashSet<>();
+        for (ItemInfo item : model.itemsIdMap) {
+            String packageName = getPackageName(item);
+            // The packages of this user are covered by the environment stamp.
+            if (packageName != null && item.user != null && !myUser.equals(item.user)) {
+                packages.add(new PackageUserKey(packageName, item.user));
+            }
+        }
+        UserManagerCompat userManager = UserManagerCompat.getInstance(mContext);
+        out.writeInt(packages.size());
+        for (PackageUserKey key : packages) {
+            out.writeUTF(key.mPackageName);
+            out.writeLong(userManager.getSerialNumberForUser(key.mUser));
+            out.writeLong(getLastUpdateTime(key.mPackageName, key.mUser));
+        }
+        return packages.size();
+    }
+
+    /**
+     * Checks the {@param count} packages saved by {@link #writePackages}.
+     * @return false if one of them was updated, installed or removed since the snapshot was
+     * written.
+     */
+    private boolean arePackagesValid(DataInputStream in, int count) throws IOException {
+        UserManagerCompat userManager = UserManagerCompat.getInstance(mContext);
+        boolean valid = true;
+        for (int i = count; i > 0; i--) {
+            String packageName = in.readUTF();
+            UserHandle user = userManager.getUserForSerialNumber(in.readLong());
+            long lastUpdateTime = in.readLong();
+            // Keep reading past an invalid package, so that the stream stays consistent.
+            if (valid && (user == null
+                    || getLastUpdateTime(packageName, user) != lastUpdateTime)) {
+                valid = false;
+            }
+        }
+        return valid;
+    }
+
+    private long getLastUpdateTime(String packageName, UserHandle user) {
+        int uninstalled = Build.VERSION.SDK_INT >= 24 ? PackageManager.MATCH_UNINSTALLED_PACKAGES
+                : PackageManager.GET_UNINSTALLED_PACKAGES;
+        int flags = Process.myUserHandle().equals(user) ? 0 : uninstalled;
+        try {
+            return mContext.getPackageManager().getPackageInfo(packageName, flags).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return -1;
+        }
+    }
+
+    private static String getPackageName(ItemInfo item) {
+        if (item instanceof LauncherAppWidgetInfo) {
+            ComponentName provider = ((LauncherAppWidgetInfo) item).providerName;
+            return provider == null ? null : provider.getPackageName();
+        }
+        Intent intent = item.getIntent();
+        if (intent == null) {
+            return null;
+        }
+        return intent.getComponent() != null
+                ? intent.getComponent().getPackageName() : intent.getPackage();
+    }
+
+    /**
+     * @return false if the item can not be restored from a snapshot.
+     */
+    private boolean writeItem(DataOutputStream out, ItemInfo item) throws IOException {
+        out.writeInt(item.itemType);
+        out.writeLong(item.id);
+        out.writeLong(item.container);
+        out.writeLong(item.screenId);
+        out.writeInt(item.cellX);
+        out.writeInt(item.cellY);
+        out.writeInt(item.spanX);
+        out.writeInt(item.spanY);
+        out.writeInt(item.rank);
+        out.writeLong(UserManagerCompat.getInstance(mContext).getSerialNumberForUser(item.user));
+        writeString(out, item.title);
+        writeString(out, item.contentDescription);
+
+        if (item instanceof ShortcutInfo) {
+            ShortcutInfo info = (ShortcutInfo) item;
+            // Promise icons and disabled deep shortcuts depend on state which is not stored.
+            if (info.status != 0 || info.intent == null || (info.isDisabled != 0
+                    && info.itemType == Favorites.ITEM_TYPE_DEEP_SHORTCUT)) {
+                return false;
+            }
+            out.writeUTF(info.intent.toUri(0));
+            out.writeInt(info.isDisabled);
+            writeString(out, info.iconResource == null ? null : info.iconResource.packageName);
+            writeString(out, info.iconResource == null ? null : info.iconResource.resourceName);
+            // App icons are loaded from the icon cache.
+            byte[] icon = info.itemType == Favorites.ITEM_TYPE_APPLICATION
+                    || info.iconBitmap == null ? null : Utilities.flattenBitmap(info.iconBitmap);
+            if (icon == null) {
+                out.writeInt(NO_ICON);
+            } else {
+                out.writeInt(icon.length);
+                out.write(icon);
+            }
+            // Stored so that the badges of the bound items never extract the palette.
+            out.writeInt(info.iconColor);
+        } else if (item instanceof FolderInfo) {
+            out.writeInt(((FolderInfo) item).options);
+        } else if (item instanceof LauncherAppWidgetInfo) {
+            LauncherAppWidgetInfo info = (LauncherAppWidgetInfo) item;
+            if (info.restoreStatus != 0) {
+                return false;
+            }
+            out.writeInt(info.appWidgetId);
+            out.writeUTF(info.providerName.flattenToString());
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private ItemInfo readItem(DataInputStream in, IconCache iconCache, BgDataModel model)
+            throws IOException, URISyntaxException {
+        int itemType = in.readInt();
+        long id = in.readLong();
+        long container = in.readLong();
+        long screenId = in.readLong();
+        int cellX = in.readInt();
+        int cellY = in.readInt();
+        int spanX = in.readInt();
+        int spanY = in.readInt();
+        int rank = in.readInt();
+        UserHandle user = UserManagerCompat.getInstance(mContext)
+                .getUserForSerialNumber(in.readLong());
+        String title = readString(in);
+        String contentDescription = readString(in);
+
+        final ItemInfo item;
+        switch (itemType) {
+            case Favorites.ITEM_TYPE_APPLICATION:
+            case Favorites.ITEM_TYPE_SHORTCUT:
+            case Favorites.ITEM_TYPE_DEEP_SHORTCUT: {
+                ShortcutInfo info = new ShortcutInfo();
+                info.itemType = itemType;
+                info.user = user;
+                info.intent = Intent.parseUri(in.readUTF(), 0);
+                info.isDisabled = in.readInt();
+                String iconPackage = readString(in);
+                String iconResource = readString(in);
+                if (iconPackage != null || iconResource != null) {
+                    info.iconResource = new Intent.ShortcutIconResource();
+                    info.iconResource.packageName = iconPackage;
+                    info.iconResource.resourceName = iconResource;
+                }
+                int iconLength = in.readInt();
+                if (iconLength != NO_ICON) {
+                    byte[] icon = new byte[iconLength];
+                    in.readFully(icon);
+                    info.iconBitmap = BitmapFactory.decodeByteArray(icon, 0, iconLength);
+                }
+                int iconColor = in.readInt();
+                if (user == null) {
+                    return null;
+                }
+
+                if (itemType == Favorites.ITEM_TYPE_APPLICATION) {
+                    // Same as the loader, only the folder previews use high-res icons.
+                    boolean useLowResIcon = container != Favorites.CONTAINER_DESKTOP
+                            && container != Favorites.CONTAINER_HOTSEAT
+                            && rank >= FolderIcon.NUM_ITEMS_IN_PREVIEW;
+                    iconCache.getTitleAndIcon(info, useLowResIcon);
+                    if (info.iconColor == 0 && !iconCache.isDefaultIcon(info.iconBitmap, user)) {
+                        info.iconColor = iconColor;
+                    }
+                } else if (info.iconBitmap == null) {
+                    info.iconBitmap = iconCache.getDefaultIcon(user);
+                } else {
+                    info.iconColor = iconColor;
+                }
+                if (TextUtils.isEmpty(info.title)) {
+                    info.title = title;
+                }
+                info.contentDescription = contentDescription;
+                item = info;
+                break;
+            }
+            case Favorites.ITEM_TYPE_FOLDER: {
+                FolderInfo info = model.findOrMakeFolder(id);
+                info.title = title;
+                info.options = in.readInt();
+                item = info;
+                break;
+            }
+            case Favorites.ITEM_TYPE_APPWIDGET:
+            case Favorites.ITEM_TYPE_CUSTOM_APPWIDGET: {
+                int appWidgetId = in.readInt();
+                ComponentName provider = ComponentName.unflattenFromString(in.readUTF());
+                if (provider == null) {
+                    return null;
+                }
+                LauncherAppWidgetInfo info = new LauncherAppWidgetInfo(appWidgetId, provider);
+                info.title = title;
+                info.contentDescription = contentDescription;
+                item = info;
+                break;
+            }
+            default:
+                return null;
+        }
+        item.id = id;
+        item.container = container;
+        item.screenId = screenId;
+        item.cellX = cellX;
+        item.cellY = cellY;
+        item.spanX = spanX;
+        item.spanY = spanY;
+        item.rank = rank;
+        if (user != null) {
+            item.user = user;
+        }
+        return item;
+    }
+
+    /**
+     * Returns the number of workspace items and their last modification time. Every insert and
+     * update of the launcher provider sets the modification time, and deletes change the count.
+     */
+    private long[] readDbStamp() {
+        Cursor c = null;
+        try {
+            c = mContext.getContentResolver().query(Favorites.CONTENT_URI,
+                    new String[] {"COUNT(*)", "MAX(" + Favorites.MODIFIED + ")"},
+                    null, null, null);
+            if (c == null || !c.moveToFirst()) {
+                return null;
+            }
+            return new long[] {c.getLong(0), c.getLong(1)};
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            Utilities.closeSilently(c);
+        }
+    }
+
+    /**
+     * Returns a stamp of everything outside the launcher DB which changes how the items are
+     * loaded.
+     * @param update whether to advance the package sequence number to the current one.
+     */
+    private String getEnvironmentStamp(boolean update) {
+        InvariantDeviceProfile idp = LauncherAppState.getIDP(mContext);
+        StringBuilder stamp = new StringBuilder(Build.FINGERPRINT)
+                .append('|').append(mContext.getResources().getConfiguration().locale)
+                .append('|').append(idp.numRows).append('x').append(idp.numColumns)
+                .append('x').append(idp.numHotseatIcons);
+        if (AndroidVersion.isAtLeastOreo()) {
+            if (update) {
+                updatePackageSequenceNumber();
+            }
+            stamp.append('|').append(getBootCount())
+                    .append('|').append(mPackageSequenceNumber);
+        } else {
+            stamp.append('|').append(getInstalledPackagesStamp());
+        }
+        return stamp.toString();
+    }
+
+    /**
+     * Returns the number of packages installed for this user and a hash of their last update
+     * times, which changes when any package is installed, updated or removed. The hash does not
+     * depend on the order of the packages.
+     */
+    private String getInstalledPackagesStamp() {
+        List<PackageInfo> packages = mContext.getPackageManager().getInstalledPackages(0);
+        long hash = 0;
+        for (PackageInfo info : packages) {
+            hash += (info.packageName.hashCode() * 31L + info.lastUpdateTime)
+                    * 0x9E3779B97F4A7C15L;
+        }
+        return packages.size() + ":" + Long.toHexString(hash);
+    }
+
+    private boolean isEnvironmentValid(String environmentStamp) {
+        if (!AndroidVersion.isAtLeastOreo()) {
+            return environmentStamp.equals(getEnvironmentStamp(false));
+        }
+        // The sequence number is the last field, check that no package changed since then.
+        int separator = environmentStamp.lastIndexOf('|');
+        try {
+            mPackageSequenceNumber = Integer.parseInt(environmentStamp.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return environmentStamp.equals(getEnvironmentStamp(false))
+                && getChangedPackages(mPackageSequenceNumber) == null;
+    }
+
+    private void updatePackageSequenceNumber() {
+        ChangedPackages changed = getChangedPackages(mPackageSequenceNumber);
+        if (changed != null) {
+            mPackageSequenceNumber = changed.getSequenceNumber();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private ChangedPackages getChangedPackages(int sequenceNumber) {
+        return mContext.getPackageManager().getChangedPackages(sequenceNumber);
+    }
+
+    @TargetApi(Build.VERSION_CODES.N)
+    private int getBootCount() {
+        // The package sequence numbers are reset on reboot.
+        return Settings.Global.getInt(mContext.getContentResolver(), Settings.Global.BOOT_COUNT, 0);
+    }
+
+    private static void writeString(DataOutputStream out, CharSequence value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value.toString());
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -16,25 +16,27 @@
 
 package com.enrico.launcher3.model;
 
-import android.content.ContentProviderOperation;
-import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
-import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 
+import com.enrico.launcher3.BuildConfig;
+import com.enrico.launcher3.FavoritesDao;
 import com.enrico.launcher3.FolderInfo;
 import com.enrico.launcher3.ItemInfo;
 import com.enrico.launcher3.LauncherAppState;
 import com.enrico.launcher3.LauncherModel;
-import com.enrico.launcher3.LauncherProvider;
-import com.enrico.launcher3.LauncherSettings;
 import com.enrico.launcher3.LauncherSettings.Favorites;
-import com.enrico.launcher3.LauncherSettings.Settings;
 import com.enrico.launcher3.ShortcutInfo;
 import com.enrico.launcher3.util.ContentWriter;
 import com.enrico.launcher3.util.ItemInfoMatcher;
+import com.enrico.launcher3.util.LongArrayMap;
 import com.enrico.launcher3.util.LooperExecuter;
+import com.enrico.launcher3.util.Thunk;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.concurrent.Executor;
@@ -44,13 +46,22 @@ import java.util.concurrent.Executor;
  */
 public class ModelWriter {
 
-    private final Context mContext;
+    // Updates of existing items are written to the DB after this delay, so that the successive
+    // updates of an item, like the moves of a drag and drop, are written once. The model is
+    // updated right away, so that the model tasks never see a stale item.
+    private static final long UPDATE_DELAY_MS = 150;
+
+    @Thunk static final UpdateQueue sUpdateQueue = new UpdateQueue();
+
+    @Thunk final Context mContext;
+    @Thunk final FavoritesDao mDao;
     private final BgDataModel mBgDataModel;
     private final Executor mWorkerExecutor;
     private final boolean mHasVerticalHotseat;
 
     public ModelWriter(Context context, BgDataModel dataModel, boolean hasVerticalHotseat) {
         mContext = context;
+        mDao = LauncherAppState.getInstance(context).getFavoritesDao();
         mBgDataModel = dataModel;
         mWorkerExecutor = new LooperExecuter(LauncherModel.getWorkerLooper());
         mHasVerticalHotseat = hasVerticalHotseat;
@@ -137,7 +148,7 @@ public class ModelWriter {
                 .put(Favorites.RANK, item.rank)
                 .put(Favorites.SCREEN, item.screenId);
 
-        mWorkerExecutor.execute(new UpdateItemRunnable(item, writer));
+        enqueueUpdate(item, writer);
     }
 
     /**
@@ -145,23 +156,20 @@ public class ModelWriter {
      * cellX, cellY have already been updated on the ItemInfos.
      */
     public void moveItemsInDatabase(final ArrayList<ItemInfo> items, long container, int screen) {
-        ArrayList<ContentValues> contentValues = new ArrayList<>();
         int count = items.size();
 
         for (int i = 0; i < count; i++) {
             ItemInfo item = items.get(i);
             updateItemInfoProps(item, container, screen, item.cellX, item.cellY);
 
-            final ContentValues values = new ContentValues();
-            values.put(Favorites.CONTAINER, item.container);
-            values.put(Favorites.CELLX, item.cellX);
-            values.put(Favorites.CELLY, item.cellY);
-            values.put(Favorites.RANK, item.rank);
-            values.put(Favorites.SCREEN, item.screenId);
-
-            contentValues.add(values);
+            final ContentWriter writer = new ContentWriter(mContext)
+                    .put(Favorites.CONTAINER, item.container)
+                    .put(Favorites.CELLX, item.cellX)
+                    .put(Favorites.CELLY, item.cellY)
+                    .put(Favorites.RANK, item.rank)
+                    .put(Favorites.SCREEN, item.screenId);
+            enqueueUpdate(item, writer);
         }
-        mWorkerExecutor.execute(new UpdateItemsRunnable(items, contentValues));
     }
 
     /**
@@ -182,7 +190,7 @@ public class ModelWriter {
                 .put(Favorites.SPANY, item.spanY)
                 .put(Favorites.SCREEN, item.screenId);
 
-        mWorkerExecutor.execute(new UpdateItemRunnable(item, writer));
+        enqueueUpdate(item, writer);
     }
 
     /**
@@ -191,7 +199,35 @@ public class ModelWriter {
     public void updateItemInDatabase(ItemInfo item) {
         ContentWriter writer = new ContentWriter(mContext);
         item.onAddToDatabase(writer);
-        mWorkerExecutor.execute(new UpdateItemRunnable(item, writer));
+        enqueueUpdate(item, writer);
+    }
+
+    private void enqueueUpdate(final ItemInfo item, ContentWriter writer) {
+        final long itemId = item.id;
+        final StackTraceElement[] stackTrace =
+                BuildConfig.DEBUG ? new Throwable().getStackTrace() : null;
+        sUpdateQueue.enqueue(this, itemId, writer);
+        mWorkerExecutor.execute(new Runnable() {
+            public void run() {
+                updateItemArrays(item, itemId, stackTrace);
+            }
+        });
+    }
+
+    /**
+     * Writes the pending item updates now, instead of after the delay. When called on the
+     * worker thread, the updates are written before returning.
+     */
+    public static void flushPendingUpdates() {
+        if (Looper.myLooper() == LauncherModel.getWorkerLooper()) {
+            sUpdateQueue.flush();
+        } else {
+            sUpdateQueue.scheduleFlush(0);
+        }
+    }
+
+    public static void dumpStats(String prefix, PrintWriter writer) {
+        sUpdateQueue.dump(prefix, writer);
     }
 
     /**
@@ -203,16 +239,17 @@ public class ModelWriter {
         updateItemInfoProps(item, container, screenId, cellX, cellY);
 
         final ContentWriter writer = new ContentWriter(mContext);
-        final ContentResolver cr = mContext.getContentResolver();
         item.onAddToDatabase(writer);
 
-        item.id = Settings.call(cr, Settings.METHOD_NEW_ITEM_ID).getLong(Settings.EXTRA_VALUE);
+        item.id = mDao.generateNewItemId();
         writer.put(Favorites._ID, item.id);
 
-        final StackTraceElement[] stackTrace = new Throwable().getStackTrace();
+        final StackTraceElement[] stackTrace =
+                BuildConfig.DEBUG ? new Throwable().getStackTrace() : null;
         mWorkerExecutor.execute(new Runnable() {
             public void run() {
-                cr.insert(Favorites.CONTENT_URI, writer.getValues(mContext));
+                sUpdateQueue.flush();
+                mDao.insert(writer.getValues(mContext));
 
                 synchronized (mBgDataModel) {
                     checkItemInfoLocked(item.id, item, stackTrace);
@@ -233,7 +270,7 @@ public class ModelWriter {
      * Removes all the items from the database matching {@param matcher}.
      */
     public void deleteItemsFromDatabase(ItemInfoMatcher matcher) {
-        deleteItemsFromDatabase(matcher.filterItemInfos(mBgDataModel.itemsIdMap));
+        deleteItemsFromDatabase(mBgDataModel.filterItemInfos(matcher));
     }
 
     /**
@@ -242,12 +279,18 @@ public class ModelWriter {
     void deleteItemsFromDatabase(final Iterable<? extends ItemInfo> items) {
         mWorkerExecutor.execute(new Runnable() {
             public void run() {
+                sUpdateQueue.flush();
+                ArrayList<ItemInfo> itemList = new ArrayList<>();
                 for (ItemInfo item : items) {
-                    final Uri uri = Favorites.getContentUri(item.id);
-                    mContext.getContentResolver().delete(uri, null, null);
-
-                    mBgDataModel.removeItem(mContext, item);
+                    itemList.add(item);
                 }
+                long[] ids = new long[itemList.size()];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = itemList.get(i).id;
+                }
+                mDao.delete(ids);
+
+                mBgDataModel.removeItem(mContext, itemList);
             }
         });
     }
@@ -258,113 +301,149 @@ public class ModelWriter {
     public void deleteFolderAndContentsFromDatabase(final FolderInfo info) {
         mWorkerExecutor.execute(new Runnable() {
             public void run() {
-                ContentResolver cr = mContext.getContentResolver();
-                cr.delete(LauncherSettings.Favorites.CONTENT_URI,
-                        LauncherSettings.Favorites.CONTAINER + "=" + info.id, null);
+                sUpdateQueue.flush();
+                mDao.deleteFolderAndContents(info.id);
+
                 mBgDataModel.removeItem(mContext, info.contents);
                 info.contents.clear();
-
-                cr.delete(LauncherSettings.Favorites.getContentUri(info.id), null, null);
                 mBgDataModel.removeItem(mContext, info);
             }
         });
     }
 
-    private class UpdateItemRunnable extends UpdateItemBaseRunnable {
-        private final ItemInfo mItem;
-        private final ContentWriter mWriter;
-        private final long mItemId;
-
-        UpdateItemRunnable(ItemInfo item, ContentWriter writer) {
-            mItem = item;
-            mWriter = writer;
-            mItemId = item.id;
-        }
+    @Thunk void updateItemArrays(ItemInfo item, long itemId, StackTraceElement[] stackTrace) {
+        // Lock on mBgLock *after* the db operation
+        synchronized (mBgDataModel) {
+            checkItemInfoLocked(itemId, item, stackTrace);
+
+            if (item.container != Favorites.CONTAINER_DESKTOP &&
+                    item.container != Favorites.CONTAINER_HOTSEAT) {
+                // Item is in a folder, make sure this folder exists
+                if (!mBgDataModel.folders.containsKey(item.container)) {
+                    // An items container is being set to a that of an item which is not in
+                    // the list of Folders.
+                    String msg = "item: " + item + " container being set to: " +
+                            item.container + ", not in the list of folders";
+                }
+            }
 
-        @Override
-        public void run() {
-            Uri uri = Favorites.getContentUri(mItemId);
-            mContext.getContentResolver().update(uri, mWriter.getValues(mContext), null, null);
-            updateItemArrays(mItem, mItemId);
+            // Items are added/removed from the corresponding FolderInfo elsewhere, such
+            // as in Workspace.onDrop. Here, we just add/remove them from the list of items
+            // that are on the desktop, as appropriate
+            ItemInfo modelItem = mBgDataModel.itemsIdMap.get(itemId);
+            if (modelItem != null) {
+                mBgDataModel.updateItem(modelItem);
+            }
         }
     }
 
-    private class UpdateItemsRunnable extends UpdateItemBaseRunnable {
-        private final ArrayList<ContentValues> mValues;
-        private final ArrayList<ItemInfo> mItems;
-
-        UpdateItemsRunnable(ArrayList<ItemInfo> items, ArrayList<ContentValues> values) {
-            mValues = values;
-            mItems = items;
+    private static class PendingUpdate {
+        final long itemId;
+        final ContentWriter writer;
+        final long enqueueTime;
+        ModelWriter modelWriter;
+
+        PendingUpdate(ModelWriter modelWriter, long itemId, ContentWriter writer) {
+            this.itemId = itemId;
+            this.writer = writer;
+            this.enqueueTime = SystemClock.uptimeMillis();
+            this.modelWriter = modelWriter;
         }
+    }
 
-        @Override
-        public void run() {
-            ArrayList<ContentProviderOperation> ops = new ArrayList<>();
-            int count = mItems.size();
-            for (int i = 0; i < count; i++) {
-                ItemInfo item = mItems.get(i);
-                final long itemId = item.id;
-                final Uri uri = Favorites.getContentUri(itemId);
-                ContentValues values = mValues.get(i);
-
-                ops.add(ContentProviderOperation.newUpdate(uri).withValues(values).build());
-                updateItemArrays(item, itemId);
+    /**
+     * The pending DB updates of existing items, by item id. The updates are written by the worker
+     * thread in a single transaction.
+     */
+    private static class UpdateQueue implements Runnable {
+
+        private final Handler mWorkerHandler = new Handler(LauncherModel.getWorkerLooper());
+        private final LongArrayMap<PendingUpdate> mPending = new LongArrayMap<>();
+        private boolean mFlushScheduled;
+
+        private int mUpdateCount;
+        private int mCoalescedCount;
+        private int mMaxQueueDepth;
+        private int mFlushCount;
+        private long mTotalFlushMs;
+        private long mMaxFlushMs;
+        private long mMaxDelayMs;
+
+        public synchronized void enqueue(ModelWriter modelWriter, long itemId,
+                ContentWriter writer) {
+            mUpdateCount++;
+            PendingUpdate update = mPending.get(itemId);
+            if (update == null) {
+                update = new PendingUpdate(modelWriter, itemId, writer);
+                mPending.put(itemId, update);
+                mMaxQueueDepth = Math.max(mMaxQueueDepth, mPending.size());
+            } else {
+                update.writer.putAll(writer);
+                update.modelWriter = modelWriter;
+                mCoalescedCount++;
             }
-            try {
-                mContext.getContentResolver().applyBatch(LauncherProvider.AUTHORITY, ops);
-            } catch (Exception e) {
-                e.printStackTrace();
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mWorkerHandler.postDelayed(this, UPDATE_DELAY_MS);
             }
         }
-    }
 
-    private abstract class UpdateItemBaseRunnable implements Runnable {
-        private final StackTraceElement[] mStackTrace;
+        public synchronized void scheduleFlush(long delay) {
+            if (!mPending.isEmpty()) {
+                mFlushScheduled = true;
+                mWorkerHandler.removeCallbacks(this);
+                mWorkerHandler.postDelayed(this, delay);
+            }
+        }
 
-        UpdateItemBaseRunnable() {
-            mStackTrace = new Throwable().getStackTrace();
+        @Override
+        public void run() {
+            flush();
         }
 
-        void updateItemArrays(ItemInfo item, long itemId) {
-            // Lock on mBgLock *after* the db operation
-            synchronized (mBgDataModel) {
-                checkItemInfoLocked(itemId, item, mStackTrace);
-
-                if (item.container != Favorites.CONTAINER_DESKTOP &&
-                        item.container != Favorites.CONTAINER_HOTSEAT) {
-                    // Item is in a folder, make sure this folder exists
-                    if (!mBgDataModel.folders.containsKey(item.container)) {
-                        // An items container is being set to a that of an item which is not in
-                        // the list of Folders.
-                        String msg = "item: " + item + " container being set to: " +
-                                item.container + ", not in the list of folders";
-                    }
+        /**
+         * Writes the pending updates, must be called on the worker thread.
+         */
+        public void flush() {
+            LongArrayMap<PendingUpdate> updates;
+            synchronized (this) {
+                if (mPending.isEmpty()) {
+                    return;
                 }
+                updates = mPending.clone();
+                mPending.clear();
+                mFlushScheduled = false;
+                mWorkerHandler.removeCallbacks(this);
+            }
 
-                // Items are added/removed from the corresponding FolderInfo elsewhere, such
-                // as in Workspace.onDrop. Here, we just add/remove them from the list of items
-                // that are on the desktop, as appropriate
-                ItemInfo modelItem = mBgDataModel.itemsIdMap.get(itemId);
-                if (modelItem != null &&
-                        (modelItem.container == Favorites.CONTAINER_DESKTOP ||
-                                modelItem.container == Favorites.CONTAINER_HOTSEAT)) {
-                    switch (modelItem.itemType) {
-                        case Favorites.ITEM_TYPE_APPLICATION:
-                        case Favorites.ITEM_TYPE_SHORTCUT:
-                        case Favorites.ITEM_TYPE_DEEP_SHORTCUT:
-                        case Favorites.ITEM_TYPE_FOLDER:
-                            if (!mBgDataModel.workspaceItems.contains(modelItem)) {
-                                mBgDataModel.workspaceItems.add(modelItem);
-                            }
-                            break;
-                        default:
-                            break;
-                    }
-                } else {
-                    mBgDataModel.workspaceItems.remove(modelItem);
-                }
+            long startTime = SystemClock.uptimeMillis();
+            long firstUpdateTime = startTime;
+            ModelWriter modelWriter = updates.valueAt(0).modelWriter;
+            long[] ids = new long[updates.size()];
+            ArrayList<ContentValues> values = new ArrayList<>(ids.length);
+            for (int i = 0; i < ids.length; i++) {
+                PendingUpdate update = updates.valueAt(i);
+                ids[i] = update.itemId;
+                values.add(update.writer.getValues(modelWriter.mContext));
+                firstUpdateTime = Math.min(firstUpdateTime, update.enqueueTime);
+            }
+            modelWriter.mDao.update(ids, values);
+
+            long endTime = SystemClock.uptimeMillis();
+            synchronized (this) {
+                mFlushCount++;
+                mTotalFlushMs += endTime - startTime;
+                mMaxFlushMs = Math.max(mMaxFlushMs, endTime - startTime);
+                mMaxDelayMs = Math.max(mMaxDelayMs, endTime - firstUpdateTime);
             }
         }
+
+        public synchronized void dump(String prefix, PrintWriter writer) {
+            writer.println(prefix + "Item updates: pending=" + mPending.size()
+                    + " updates=" + mUpdateCount + " coalesced=" + mCoalescedCount
+                    + " maxQueueDepth=" + mMaxQueueDepth + " flushes=" + mFlushCount
+                    + " avgFlushMs=" + (mFlushCount == 0 ? 0 : mTotalFlushMs / mFlushCount)
+                    + " maxFlushMs=" + mMaxFlushMs + " maxDelayMs=" + mMaxDelayMs);
+        }
     }
 }
@@ -27,6 +27,7 @@ import com.enrico.launcher3.ShortcutInfo;
 import com.enrico.launcher3.compat.PackageInstallerCompat;
 import com.enrico.launcher3.compat.PackageInstallerCompat.PackageInstallInfo;
 
+import java.util.Collections;
 import java.util.HashSet;
 
 /**
@@ -49,7 +50,8 @@ public class PackageInstallStateChangedTask extends ExtendedModelTask {
 
         synchronized (dataModel) {
             final HashSet<ItemInfo> updates = new HashSet<>();
-            for (ItemInfo info : dataModel.itemsIdMap) {
+            for (ItemInfo info : dataModel.getItemsForPackages(
+                    Collections.singleton(mInstallInfo.packageName), null)) {
                 if (info instanceof ShortcutInfo) {
                     ShortcutInfo si = (ShortcutInfo) info;
                     ComponentName cn = si.getTargetComponent();
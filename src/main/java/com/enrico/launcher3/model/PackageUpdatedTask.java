@@ -193,7 +193,11 @@ public class PackageUpdatedTask extends ExtendedModelTask {
             final ArrayList<LauncherAppWidgetInfo> widgets = new ArrayList<>();
 
             synchronized (dataModel) {
-                for (ItemInfo info : dataModel.itemsIdMap) {
+                // Only the items of the packages can be affected, unless all the packages of the
+                // user are updated.
+                Iterable<ItemInfo> items = mOp == OP_USER_AVAILABILITY_CHANGE
+                        ? dataModel.itemsIdMap : dataModel.getItemsForPackages(packageSet, mUser);
+                for (ItemInfo info : items) {
                     if (info instanceof ShortcutInfo && mUser.equals(info.user)) {
                         ShortcutInfo si = (ShortcutInfo) info;
                         boolean infoUpdated = false;
@@ -205,6 +209,7 @@ public class PackageUpdatedTask extends ExtendedModelTask {
                             Bitmap icon = LauncherIcons.createIconBitmap(si.iconResource, context);
                             if (icon != null) {
                                 si.iconBitmap = icon;
+                                si.iconColor = 0;
                                 infoUpdated = true;
                             }
                         }
@@ -56,23 +56,23 @@ public class WidgetsModel {
      *                    only widgets and shortcuts associated with the package/user are.
      */
     public ArrayList<WidgetItem> update(Context context, @Nullable PackageUserKey packageUser) {
+        return update(context, packageUser, null);
+    }
 
-        final ArrayList<WidgetItem> widgetsAndShortcuts = new ArrayList<>();
-        try {
-            PackageManager pm = context.getPackageManager();
-            InvariantDeviceProfile idp = LauncherAppState.getIDP(context);
-
-            // Widgets
-            AppWidgetManagerCompat widgetManager = AppWidgetManagerCompat.getInstance(context);
-            for (AppWidgetProviderInfo widgetInfo : widgetManager.getAllProviders(packageUser)) {
-                widgetsAndShortcuts.add(new WidgetItem(LauncherAppWidgetProviderInfo
-                        .fromProviderInfo(context, widgetInfo), pm, idp));
-            }
+    /**
+     * Same as {@link #update(Context, PackageUserKey)}, but uses {@param queried} as the
+     * widgets and shortcuts if it is not null, instead of querying them again.
+     *
+     * @see #queryWidgetsAndShortcuts(Context, PackageUserKey, ArrayList)
+     */
+    public ArrayList<WidgetItem> update(Context context, @Nullable PackageUserKey packageUser,
+            @Nullable ArrayList<WidgetItem> queried) {
 
-            // Shortcuts
-            for (ShortcutConfigActivityInfo info : LauncherAppsCompat.getInstance(context)
-                    .getCustomShortcutActivityList(packageUser)) {
-                widgetsAndShortcuts.add(new WidgetItem(info));
+        final ArrayList<WidgetItem> widgetsAndShortcuts =
+                queried != null ? queried : new ArrayList<WidgetItem>();
+        try {
+            if (queried == null) {
+                queryWidgetsAndShortcuts(context, packageUser, widgetsAndShortcuts);
             }
             setWidgetsAndShortcuts(widgetsAndShortcuts, context, packageUser);
         } catch (Exception e) {
@@ -88,6 +88,29 @@ public class WidgetsModel {
         return widgetsAndShortcuts;
     }
 
+    /**
+     * Queries the widgets and shortcuts from the system into {@param out}. This does not touch
+     * the model, so it can run on any thread.
+     */
+    public static void queryWidgetsAndShortcuts(Context context,
+            @Nullable PackageUserKey packageUser, ArrayList<WidgetItem> out) {
+        PackageManager pm = context.getPackageManager();
+        InvariantDeviceProfile idp = LauncherAppState.getIDP(context);
+
+        // Widgets
+        AppWidgetManagerCompat widgetManager = AppWidgetManagerCompat.getInstance(context);
+        for (AppWidgetProviderInfo widgetInfo : widgetManager.getAllProviders(packageUser)) {
+            out.add(new WidgetItem(LauncherAppWidgetProviderInfo
+                    .fromProviderInfo(context, widgetInfo), pm, idp));
+        }
+
+        // Shortcuts
+        for (ShortcutConfigActivityInfo info : LauncherAppsCompat.getInstance(context)
+                .getCustomShortcutActivityList(packageUser)) {
+            out.add(new WidgetItem(info));
+        }
+    }
+
     private void setWidgetsAndShortcuts(ArrayList<WidgetItem> rawWidgetsShortcuts,
             Context context, @Nullable PackageUserKey packageUser) {
 
@@ -10,6 +10,7 @@ public class PreferenceKeys {
     public static final String CHOOSE_THEME_PREFERENCE_KEY = "pref_chooseTheme";
     public static final String DT_LOCK_PREFERENCE_KEY = "pref_dtLock";
     static final String PINCH_OVERVIEW_PREFERENCE_KEY = "pref_pinchOverview";
+    static final String SCORED_SEARCH_PREFERENCE_KEY = "pref_scoredSearch";
     static final String LIGHT_STATUS_BAR_PREFERENCE_KEY = "pref_lightStatus";
     static final String SHOW_BADGE_PREFERENCE_KEY = "pref_showBadge";
     static final String THEME_PREFERENCE_KEY = "pref_lightOrDark";
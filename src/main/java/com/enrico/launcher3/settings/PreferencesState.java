@@ -36,6 +36,10 @@ public class PreferencesState {
         return Utilities.getPrefs(context).getBoolean(PreferenceKeys.PINCH_OVERVIEW_PREFERENCE_KEY, false);
     }
 
+    public static boolean isScoredSearchPrefEnabled(Context context) {
+        return Utilities.getPrefs(context).getBoolean(PreferenceKeys.SCORED_SEARCH_PREFERENCE_KEY, false);
+    }
+
     public static boolean isLightStatusBarPrefEnabled(Context context) {
         return Utilities.getPrefs(context).getBoolean(PreferenceKeys.LIGHT_STATUS_BAR_PREFERENCE_KEY, false);
     }
@@ -40,6 +40,7 @@ import com.enrico.launcher3.PermissionUtils;
 import com.enrico.launcher3.R;
 import com.enrico.launcher3.Utilities;
 import com.enrico.launcher3.graphics.IconShapeOverride;
+import com.enrico.launcher3.icons.IconPackPreference;
 import com.enrico.launcher3.icons.IconsManager;
 import com.enrico.launcher3.icons.RandomIconsTile;
 
@@ -101,6 +102,7 @@ public class SettingsActivity extends Activity {
         private SystemDisplayRotationLockObserver mRotationLockObserver;
         private IconBadgingObserver mIconBadgingObserver;
         private SharedPreferences.OnSharedPreferenceChangeListener mListenerOptions;
+        private IconPackPreference mIconPackPreference;
 
         @Override
         public void onCreate(Bundle savedInstanceState) {
@@ -162,6 +164,9 @@ public class SettingsActivity extends Activity {
 
             disableRoundIcons();
 
+            mIconPackPreference =
+                    (IconPackPreference) findPreference(IconsManager.ICON_PACK_PREFERENCE_KEY);
+
             mListenerOptions = new SharedPreferences.OnSharedPreferenceChangeListener() {
                 @Override
                 public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
@@ -220,6 +225,7 @@ public class SettingsActivity extends Activity {
             super.onResume();
 
             Utilities.getPrefs(getActivity()).registerOnSharedPreferenceChangeListener(mListenerOptions);
+            mIconPackPreference.startTrackingProgress();
         }
 
         //unregister preferences changes
@@ -227,6 +233,7 @@ public class SettingsActivity extends Activity {
         public void onPause() {
 
             Utilities.getPrefs(getActivity()).unregisterOnSharedPreferenceChangeListener(mListenerOptions);
+            mIconPackPreference.stopTrackingProgress();
 
             super.onPause();
         }
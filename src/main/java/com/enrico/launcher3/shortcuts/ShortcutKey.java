@@ -12,7 +12,7 @@ import com.enrico.launcher3.util.ComponentKey;
  */
 public class ShortcutKey extends ComponentKey {
 
-    private ShortcutKey(String packageName, UserHandle user, String id) {
+    public ShortcutKey(String packageName, UserHandle user, String id) {
         // Use the id as the class name.
         super(new ComponentName(packageName, id), user);
     }
@@ -89,6 +89,18 @@ public class ContentWriter {
         return put(key, UserManagerCompat.getInstance(mContext).getSerialNumberForUser(user));
     }
 
+    /**
+     * Adds the values of {@param writer}, replacing the existing values with the same keys.
+     */
+    public ContentWriter putAll(ContentWriter writer) {
+        mValues.putAll(writer.mValues);
+        if (writer.mIcon != null) {
+            mIcon = writer.mIcon;
+            mUser = writer.mUser;
+        }
+        return this;
+    }
+
     /**
      * Commits any pending validation and returns the final values.
      * Must not be called on UI thread.
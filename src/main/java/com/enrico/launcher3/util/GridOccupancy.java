@@ -4,20 +4,51 @@ import android.graphics.Rect;
 
 import com.enrico.launcher3.ItemInfo;
 
+import java.util.Arrays;
+
 /**
  * Utility object to manage the occupancy in a grid.
+ *
+ * Each row is stored as a bitmask, where bit x is set if the cell at column x is occupied, so
+ * the grid can be at most {@link #MAX_COLUMNS} wide.
  */
 public class GridOccupancy {
 
+    public static final int MAX_COLUMNS = 64;
+
     private final int mCountX;
     private final int mCountY;
 
-    public final boolean[][] cells;
+    private final long[] mRows;
+
+    // Incremented on every change, to invalidate the cached vacant positions.
+    private int mVersion;
+
+    // The positions where a region of mVacantSpanX x mVacantSpanY is vacant, at mVacantVersion.
+    private long[] mVacantPositions;
+    private int mVacantSpanX;
+    private int mVacantSpanY;
+    private int mVacantVersion = -1;
 
     public GridOccupancy(int countX, int countY) {
+        if (countX > MAX_COLUMNS) {
+            throw new IllegalArgumentException("Too many columns: " + countX);
+        }
         mCountX = countX;
         mCountY = countY;
-        cells = new boolean[countX][countY];
+        mRows = new long[countY];
+    }
+
+    public int getCountX() {
+        return mCountX;
+    }
+
+    public int getCountY() {
+        return mCountY;
+    }
+
+    public boolean isOccupied(int x, int y) {
+        return (mRows[y] & (1L << x)) != 0;
     }
 
     /**
@@ -30,32 +61,53 @@ public class GridOccupancy {
      * @return true if a vacant cell was found
      */
     public boolean findVacantCell(int[] vacantOut, int spanX, int spanY) {
-        for (int y = 0; (y + spanY) <= mCountY; y++) {
-            for (int x = 0; (x + spanX) <= mCountX; x++) {
-                boolean available = !cells[x][y];
-                out:
-                for (int i = x; i < x + spanX; i++) {
-                    for (int j = y; j < y + spanY; j++) {
-                        available = available && !cells[i][j];
-                        if (!available) break out;
-                    }
-                }
-                if (available) {
-                    vacantOut[0] = x;
-                    vacantOut[1] = y;
-                    return true;
-                }
+        long[] positions = getVacantPositions(spanX, spanY);
+        for (int y = 0; y < positions.length; y++) {
+            if (positions[y] != 0) {
+                vacantOut[0] = Long.numberOfTrailingZeros(positions[y]);
+                vacantOut[1] = y;
+                return true;
             }
         }
         return false;
     }
 
-    public void copyTo(GridOccupancy dest) {
-        for (int i = 0; i < mCountX; i++) {
-            for (int j = 0; j < mCountY; j++) {
-                dest.cells[i][j] = cells[i][j];
+    /**
+     * Returns the positions where a region of {@param spanX} x {@param spanY} is vacant, as a
+     * bitmask per row: bit x of row y is set if the region starting at (x, y) is vacant. The
+     * returned array is shared and only valid until this grid changes.
+     */
+    public long[] getVacantPositions(int spanX, int spanY) {
+        if (mVacantVersion == mVersion && mVacantSpanX == spanX && mVacantSpanY == spanY) {
+            return mVacantPositions;
+        }
+        int rowCount = spanX > 0 && spanY > 0 ? Math.max(0, mCountY - spanY + 1) : 0;
+        if (mVacantPositions == null || mVacantPositions.length != rowCount) {
+            mVacantPositions = new long[rowCount];
+        }
+        long allColumns = getMask(0, mCountX);
+        for (int y = 0; y < rowCount; y++) {
+            long occupied = 0;
+            for (int j = y; j < y + spanY; j++) {
+                occupied |= mRows[j];
+            }
+            // Keep the columns which start a run of spanX vacant cells.
+            long vacant = ~occupied & allColumns;
+            long starts = vacant;
+            for (int i = 1; i < spanX && starts != 0; i++) {
+                starts &= vacant >>> i;
             }
+            mVacantPositions[y] = starts;
         }
+        mVacantSpanX = spanX;
+        mVacantSpanY = spanY;
+        mVacantVersion = mVersion;
+        return mVacantPositions;
+    }
+
+    public void copyTo(GridOccupancy dest) {
+        System.arraycopy(mRows, 0, dest.mRows, 0, Math.min(mRows.length, dest.mRows.length));
+        dest.mVersion++;
     }
 
     public boolean isRegionVacant(int x, int y, int spanX, int spanY) {
@@ -64,11 +116,26 @@ public class GridOccupancy {
         if (x < 0 || y < 0 || x2 >= mCountX || y2 >= mCountY) {
             return false;
         }
-        for (int i = x; i <= x2; i++) {
-            for (int j = y; j <= y2; j++) {
-                if (cells[i][j]) {
-                    return false;
-                }
+        long mask = getMask(x, spanX);
+        for (int j = y; j <= y2; j++) {
+            if ((mRows[j] & mask) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if none of the occupied cells of {@param shape}, placed at (x, y), are
+     * occupied in this grid.
+     */
+    public boolean isRegionVacant(int x, int y, GridOccupancy shape) {
+        if (x < 0 || y < 0 || x + shape.mCountX > mCountX || y + shape.mCountY > mCountY) {
+            return false;
+        }
+        for (int j = 0; j < shape.mCountY; j++) {
+            if ((mRows[y + j] & (shape.mRows[j] << x)) != 0) {
+                return false;
             }
         }
         return true;
@@ -76,11 +143,16 @@ public class GridOccupancy {
 
     public void markCells(int cellX, int cellY, int spanX, int spanY, boolean value) {
         if (cellX < 0 || cellY < 0) return;
-        for (int x = cellX; x < cellX + spanX && x < mCountX; x++) {
-            for (int y = cellY; y < cellY + spanY && y < mCountY; y++) {
-                cells[x][y] = value;
+        long mask = getMask(cellX, Math.min(cellX + spanX, mCountX) - cellX);
+        if (mask == 0) return;
+        for (int y = cellY; y < cellY + spanY && y < mCountY; y++) {
+            if (value) {
+                mRows[y] |= mask;
+            } else {
+                mRows[y] &= ~mask;
             }
         }
+        mVersion++;
     }
 
     public void markCells(Rect r, boolean value) {
@@ -96,6 +168,18 @@ public class GridOccupancy {
     }
 
     public void clear() {
-        markCells(0, 0, mCountX, mCountY, false);
+        Arrays.fill(mRows, 0);
+        mVersion++;
+    }
+
+    /**
+     * Returns the mask of the {@param width} columns starting at {@param x}.
+     */
+    private static long getMask(int x, int width) {
+        if (width <= 0 || x >= MAX_COLUMNS) {
+            return 0;
+        }
+        long mask = width >= MAX_COLUMNS ? -1L : (1L << width) - 1;
+        return mask << x;
     }
 }
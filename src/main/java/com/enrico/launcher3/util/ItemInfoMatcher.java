@@ -26,6 +26,7 @@ import com.enrico.launcher3.LauncherSettings.Favorites;
 import com.enrico.launcher3.ShortcutInfo;
 import com.enrico.launcher3.shortcuts.ShortcutKey;
 
+import java.util.Collection;
 import java.util.HashSet;
 
 /**
@@ -35,6 +36,14 @@ public abstract class ItemInfoMatcher {
 
     public abstract boolean matches(ItemInfo info, ComponentName cn);
 
+    /**
+     * Returns the packages of the components this matcher can match, or null if it can match
+     * components of any package.
+     */
+    public Collection<String> getPackageNames() {
+        return null;
+    }
+
     /**
      * Filters {@param infos} to those satisfying the {@link #matches(ItemInfo, ComponentName)}.
      */
@@ -77,11 +86,20 @@ public abstract class ItemInfoMatcher {
 
     public static ItemInfoMatcher ofComponents(
             final HashSet<ComponentName> components, final UserHandle user) {
+        final HashSet<String> packageNames = new HashSet<>();
+        for (ComponentName cn : components) {
+            packageNames.add(cn.getPackageName());
+        }
         return new ItemInfoMatcher() {
             @Override
             public boolean matches(ItemInfo info, ComponentName cn) {
                 return components.contains(cn) && info.user.equals(user);
             }
+
+            @Override
+            public Collection<String> getPackageNames() {
+                return packageNames;
+            }
         };
     }
 
@@ -92,6 +110,11 @@ public abstract class ItemInfoMatcher {
             public boolean matches(ItemInfo info, ComponentName cn) {
                 return packageNames.contains(cn.getPackageName()) && info.user.equals(user);
             }
+
+            @Override
+            public Collection<String> getPackageNames() {
+                return packageNames;
+            }
         };
     }
 
@@ -24,6 +24,41 @@ public class LogConfig {
      */
     public static final String KEEP_ALL_ICONS = "KeepAllIcons";
 
+    /**
+     * When turned on, icons missing from the icon DB are rendered one at a time on the worker
+     * thread instead of in parallel.
+     */
+    public static final String SERIAL_ICON_UPDATES = "SerialIconUpdates";
+
+    /**
+     * When turned on, the loader queries all apps, deep shortcuts and widgets one after the
+     * other on the worker thread instead of in parallel with the workspace loading.
+     */
+    public static final String SERIAL_LOADER = "SerialLoader";
+
+    /**
+     * When turned on, the workspace is always bound after loading the launcher DB, instead of
+     * from the model snapshot of the previous load.
+     */
+    public static final String NO_MODEL_SNAPSHOT = "NoModelSnapshot";
+
+    /**
+     * When turned on, icons are stored as PNG in the icon DB instead of deflated raw pixels.
+     * Changing it resets the icon DB. Takes precedence over {@link #RAW_ICON_CACHE}.
+     */
+    public static final String PNG_ICON_CACHE = "PngIconCache";
+
+    /**
+     * When turned on, the raw pixels of the icons are stored without deflating them, which makes
+     * the icons faster to decode but the DB much larger. Changing it resets the icon DB.
+     */
+    public static final String RAW_ICON_CACHE = "RawIconCache";
+
+    /**
+     * When turned on, low-res icons are not stored in the memory-mapped icon atlas.
+     */
+    public static final String NO_ICON_ATLAS = "NoIconAtlas";
+
     /**
      * When turned on, icon cache is only fetched from memory and not disk.
      */
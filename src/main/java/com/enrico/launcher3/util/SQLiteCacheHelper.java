@@ -3,32 +3,75 @@ package com.enrico.launcher3.util;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteFullException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 
+import com.enrico.launcher3.LauncherModel;
 import com.enrico.launcher3.Utilities;
 
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * An extension of {@link SQLiteOpenHelper} with utility methods for a single table cache DB.
  * Any exception during write operations are ignored, and any version change causes a DB reset.
+ *
+ * Writes are queued and applied in batches, in a single transaction, on the worker thread, once
+ * enough writes are pending or after a short delay. Queries on the worker thread apply the
+ * pending writes first. Queries on other threads never flush: a lookup of a single row by
+ * equality on its columns is answered from the latest pending insert of that row if there is
+ * one, and returns no row while any delete is pending, which is a cache miss for the caller.
+ * Other queries on other threads only see the writes which were already applied.
  */
 public abstract class SQLiteCacheHelper {
 
     private static final boolean NO_ICON_CACHE = Utilities.isPropertyEnabled(LogConfig.MEMORY_ONLY_ICON_CACHE);
 
+    // Number of pending writes which triggers a flush.
+    private static final int FLUSH_BATCH_SIZE = 32;
+    // Max delay before pending writes are flushed on the worker thread.
+    private static final int FLUSH_DELAY_MS = 500;
+
     private final String mTableName;
     private final MySQLiteOpenHelper mOpenHelper;
 
     private boolean mIgnoreWrites;
 
+    private final Handler mWorkerHandler;
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    // Guarded by itself.
+    private final ArrayList<PendingWrite> mPendingWrites = new ArrayList<>();
+    // Number of deletes in mPendingWrites, guarded by mPendingWrites.
+    private int mPendingDeletes;
+    // Makes sure that batches are applied in order.
+    private final Object mFlushLock = new Object();
+
+    // Stats, guarded by mFlushLock.
+    private int mWriteCount;
+    private int mBatchCount;
+    private long mTotalBatchTime;
+    private long mMaxBatchTime;
+
     public SQLiteCacheHelper(Context context, String name, int version, String tableName) {
         if (NO_ICON_CACHE) {
             name = null;
         }
         mTableName = tableName;
         mOpenHelper = new MySQLiteOpenHelper(context, name, version);
+        mWorkerHandler = new Handler(LauncherModel.getWorkerLooper());
 
         mIgnoreWrites = false;
     }
@@ -40,13 +83,7 @@ public abstract class SQLiteCacheHelper {
         if (mIgnoreWrites) {
             return;
         }
-        try {
-            mOpenHelper.getWritableDatabase().delete(mTableName, whereClause, whereArgs);
-        } catch (SQLiteFullException e) {
-            onDiskFull(e);
-        } catch (SQLiteException e) {
-            e.printStackTrace();
-        }
+        enqueue(new PendingWrite(null, whereClause, whereArgs));
     }
 
     /**
@@ -56,13 +93,99 @@ public abstract class SQLiteCacheHelper {
         if (mIgnoreWrites) {
             return;
         }
-        try {
-            mOpenHelper.getWritableDatabase().insertWithOnConflict(
-                    mTableName, null, values, SQLiteDatabase.CONFLICT_REPLACE);
-        } catch (SQLiteFullException e) {
-            onDiskFull(e);
-        } catch (SQLiteException e) {
-            e.printStackTrace();
+        enqueue(new PendingWrite(values, null, null));
+    }
+
+    /**
+     * Inserts or replaces all the provided rows.
+     * @see #insertOrReplace(ContentValues)
+     */
+    public void insertOrReplace(List<ContentValues> rows) {
+        for (int i = 0; i < rows.size(); i++) {
+            insertOrReplace(rows.get(i));
+        }
+    }
+
+    private void enqueue(PendingWrite write) {
+        int pendingCount;
+        synchronized (mPendingWrites) {
+            mPendingWrites.add(write);
+            if (write.values == null) {
+                mPendingDeletes++;
+            }
+            pendingCount = mPendingWrites.size();
+            if (pendingCount == 1) {
+                mWorkerHandler.postDelayed(mFlushRunnable, FLUSH_DELAY_MS);
+            }
+        }
+        if (pendingCount >= FLUSH_BATCH_SIZE) {
+            if (Looper.myLooper() == mWorkerHandler.getLooper()) {
+                flush();
+            } else {
+                flushAsync();
+            }
+        }
+    }
+
+    /**
+     * Applies all the pending writes in a single transaction.
+     */
+    public void flush() {
+        synchronized (mFlushLock) {
+            ArrayList<PendingWrite> writes;
+            synchronized (mPendingWrites) {
+                if (mPendingWrites.isEmpty()) {
+                    return;
+                }
+                writes = new ArrayList<>(mPendingWrites);
+                mPendingWrites.clear();
+                mPendingDeletes = 0;
+                // Cancelled with the batch swap, so that a write enqueued right after always
+                // schedules a new flush.
+                mWorkerHandler.removeCallbacks(mFlushRunnable);
+            }
+            if (mIgnoreWrites) {
+                return;
+            }
+
+            long startTime = SystemClock.uptimeMillis();
+            try {
+                SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    for (int i = 0; i < writes.size(); i++) {
+                        PendingWrite write = writes.get(i);
+                        if (write.values != null) {
+                            db.insertWithOnConflict(mTableName, null, write.values,
+                                    SQLiteDatabase.CONFLICT_REPLACE);
+                        } else {
+                            db.delete(mTableName, write.whereClause, write.whereArgs);
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            } catch (SQLiteFullException e) {
+                onDiskFull(e);
+            } catch (SQLiteException e) {
+                e.printStackTrace();
+            }
+            long batchTime = SystemClock.uptimeMillis() - startTime;
+            mWriteCount += writes.size();
+            mBatchCount++;
+            mTotalBatchTime += batchTime;
+            mMaxBatchTime = Math.max(mMaxBatchTime, batchTime);
+        }
+    }
+
+    /**
+     * Flushes the pending writes on the worker thread.
+     */
+    public void flushAsync() {
+        synchronized (mPendingWrites) {
+            mWorkerHandler.removeCallbacks(mFlushRunnable);
+            mWorkerHandler.post(mFlushRunnable);
         }
     }
 
@@ -74,16 +197,125 @@ public abstract class SQLiteCacheHelper {
      * @see SQLiteDatabase#query(String, String[], String, String[], String, String, String)
      */
     public Cursor query(String[] columns, String selection, String[] selectionArgs) {
+        if (Looper.myLooper() == mWorkerHandler.getLooper()) {
+            flush();
+        } else {
+            Cursor pending = queryPendingWrites(columns, selection, selectionArgs);
+            if (pending != null) {
+                return pending;
+            }
+        }
         return mOpenHelper.getReadableDatabase().query(
                 mTableName, columns, selection, selectionArgs, null, null, null);
     }
 
+    /**
+     * Answers a lookup by equality from the pending writes, so that a query off the worker
+     * thread never reads a row which is about to be replaced or deleted.
+     *
+     * @return a cursor with the latest pending insert of the row, an empty cursor if a delete is
+     * pending, or null if the pending writes do not affect the query and the DB should be read.
+     */
+    private Cursor queryPendingWrites(String[] columns, String selection, String[] selectionArgs) {
+        String[] selectionColumns = parseEqualitySelection(selection, selectionArgs);
+        synchronized (mPendingWrites) {
+            if (mPendingWrites.isEmpty() || selectionColumns == null) {
+                return null;
+            }
+            for (int i = mPendingWrites.size() - 1; i >= 0; i--) {
+                PendingWrite write = mPendingWrites.get(i);
+                if (write.values == null) {
+                    // The where clause of the delete can not be matched against the selection.
+                    return new MatrixCursor(columns, 0);
+                }
+                if (matches(write.values, selectionColumns, selectionArgs)) {
+                    MatrixCursor cursor = new MatrixCursor(columns, 1);
+                    Object[] row = new Object[columns.length];
+                    for (int j = 0; j < columns.length; j++) {
+                        row[j] = write.values.get(columns[j]);
+                    }
+                    cursor.addRow(row);
+                    return cursor;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses a selection of the form {@code "col1 = ? AND col2 = ?"}.
+     *
+     * @return the columns of the selection, in the order of the arguments, or null if the
+     * selection has any other form.
+     */
+    private static String[] parseEqualitySelection(String selection, String[] selectionArgs) {
+        if (selection == null || selectionArgs == null) {
+            return null;
+        }
+        String[] terms = selection.split(" AND ");
+        if (terms.length != selectionArgs.length) {
+            return null;
+        }
+        String[] columns = new String[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            String term = terms[i].trim();
+            if (!term.endsWith("= ?")) {
+                return null;
+            }
+            String column = term.substring(0, term.length() - 3).trim();
+            if (column.isEmpty() || column.indexOf(' ') >= 0) {
+                return null;
+            }
+            columns[i] = column;
+        }
+        return columns;
+    }
+
+    private static boolean matches(ContentValues values, String[] columns, String[] args) {
+        for (int i = 0; i < columns.length; i++) {
+            if (!args[i].equals(values.getAsString(columns[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public void clear() {
-        mOpenHelper.clearDB(mOpenHelper.getWritableDatabase());
+        synchronized (mFlushLock) {
+            synchronized (mPendingWrites) {
+                mPendingWrites.clear();
+                mPendingDeletes = 0;
+            }
+            mOpenHelper.clearDB(mOpenHelper.getWritableDatabase());
+        }
     }
 
     protected abstract void onCreateTable(SQLiteDatabase db);
 
+    public void dump(String prefix, PrintWriter writer) {
+        synchronized (mFlushLock) {
+            writer.println(prefix + mTableName + " writes=" + mWriteCount
+                    + " batches=" + mBatchCount
+                    + " avgBatchTime=" + (mBatchCount == 0 ? 0 : mTotalBatchTime / mBatchCount)
+                    + "ms maxBatchTime=" + mMaxBatchTime + "ms");
+        }
+    }
+
+    /**
+     * A write waiting to be applied. A null {@link #values} denotes a delete.
+     */
+    private static class PendingWrite {
+        final ContentValues values;
+        final String whereClause;
+        final String[] whereArgs;
+
+        PendingWrite(ContentValues values, String whereClause, String[] whereArgs) {
+            this.values = values;
+            this.whereClause = whereClause;
+            this.whereArgs = whereArgs;
+        }
+    }
+
     /**
      * A private inner class to prevent direct DB access.
      */
@@ -91,6 +323,7 @@ public abstract class SQLiteCacheHelper {
 
         MySQLiteOpenHelper(Context context, String name, int version) {
             super(new NoLocaleSqliteContext(context), name, null, version);
+            setWriteAheadLoggingEnabled(true);
         }
 
         @Override